@@ -0,0 +1,258 @@
+// Copyright 2009 Google Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.google.code.twisty;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.app.Instrumentation;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+/**
+ * Starts and stops the interpreters hundreds of times in one process.
+ * Games are either interrupted or, for Z-code, quit by typing QUIT, so
+ * that nitfol's own z_close() runs before shutdown.
+ * Since they no longer restart the process between games, any state
+ * that shutdown leaves behind turns up here: a pointer freed twice
+ * crashes the process, a game that can't start again never prints
+ * anything, and memory or files that aren't released make the native
+ * heap or the descriptor table grow from run to run.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TerpRestartTest {
+    private static final String TAG = "Twisty";
+
+    private static final int RUNS = 400;
+
+    /*
+     * Runs before the first sample, so that caches have filled. It is
+     * also how many sessions are prepared between games.
+     */
+    private static final int WARMUP = 20;
+
+    /*
+     * How much the native heap and the descriptor table may grow over
+     * the measured runs. A story's memory is hundreds of kilobytes, so
+     * leaking it on every run would exceed this many times over.
+     */
+    private static final long MAX_HEAP_GROWTH = 8 * 1024 * 1024;
+    private static final int MAX_FD_GROWTH = 4;
+
+    private static final long START_TIMEOUT_MS = 10000;
+    private static final long STOP_TIMEOUT_MS = 10000;
+
+    /* Alternates between nitfol and git. */
+    private static final int[] GAMES = { R.raw.violet, R.raw.glulxercise };
+
+    @Rule
+    public final ActivityTestRule<Twisty> activityRule =
+        new ActivityTestRule<Twisty>(Twisty.class);
+
+    @Test
+    public void startAndStopRepeatedly() throws InterruptedException {
+        final Twisty twisty = activityRule.getActivity();
+        Instrumentation instrumentation =
+            InstrumentationRegistry.getInstrumentation();
+
+        Usage before = null;
+        for (int i = 0; i < RUNS; i++) {
+            if (i == WARMUP) {
+                before = Usage.sample();
+            }
+            // Every other nitfol game is quit from inside the game.
+            runGame(twisty, instrumentation, GAMES[i % GAMES.length],
+                    i % 4 == 0, "run " + i);
+        }
+        Usage.sample().assertGrowthFrom(before);
+    }
+
+    @Test
+    public void prepareAndCancelRepeatedly() throws Exception {
+        final Twisty twisty = activityRule.getActivity();
+        Instrumentation instrumentation =
+            InstrumentationRegistry.getInstrumentation();
+        String[] paths = {
+            copyStory(twisty, R.raw.violet, "violet.z8"),
+            copyStory(twisty, R.raw.glulxercise, "glulxercise.ulx"),
+        };
+
+        // Each prewarm() loads the story and cancels the one before it,
+        // so startup and shutdown run without the game ever running.
+        // Sessions wait for each other, so after each batch a game is
+        // run, which lets the cancelled ones finish first.
+        Usage before = null;
+        for (int i = 0; i < RUNS; i++) {
+            final String path = paths[i % paths.length];
+            instrumentation.runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    twisty.prewarm(path);
+                }
+            });
+            if ((i + 1) % WARMUP == 0) {
+                instrumentation.runOnMainSync(new Runnable() {
+                    @Override
+                    public void run() {
+                        twisty.cancelPrewarm();
+                    }
+                });
+                runGame(twisty, instrumentation, R.raw.violet, false,
+                        "run after " + (i + 1) + " sessions");
+                if (before == null) {
+                    before = Usage.sample();
+                }
+            }
+        }
+        Usage.sample().assertGrowthFrom(before);
+    }
+
+    /*
+     * Starts a built-in game and waits until it has printed something to
+     * its story window. Then it either stops the game or, if quit is
+     * set, types QUIT and confirms it at the game's prompts. Either way
+     * it waits until the game has shut down.
+     */
+    private static void runGame(final Twisty twisty,
+            Instrumentation instrumentation, final int game, boolean quit,
+            String what) throws InterruptedException {
+
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                twisty.startTerp(game);
+            }
+        });
+
+        if (quit) {
+            awaitText(twisty, instrumentation, ">", what + " showed no prompt");
+            instrumentation.sendStringSync("quit\n");
+            awaitText(twisty, instrumentation, "?",
+                    what + " did not ask to quit");
+            instrumentation.sendStringSync("y\n");
+        } else {
+            awaitText(twisty, instrumentation, "", what + " printed nothing");
+            instrumentation.runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    twisty.stopTerp();
+                }
+            });
+        }
+
+        final boolean[] running = new boolean[1];
+        long deadline = SystemClock.uptimeMillis() + STOP_TIMEOUT_MS;
+        do {
+            Thread.sleep(20);
+            instrumentation.runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    running[0] = twisty.gameIsRunning;
+                }
+            });
+        } while (running[0] && SystemClock.uptimeMillis() < deadline);
+        assertFalse(what + " did not stop", running[0]);
+    }
+
+    /* Waits until the story window's text, trimmed, ends with a suffix. */
+    private static void awaitText(final Twisty twisty,
+            Instrumentation instrumentation, String suffix, String failure)
+            throws InterruptedException {
+
+        final String[] text = new String[1];
+        long deadline = SystemClock.uptimeMillis() + START_TIMEOUT_MS;
+        boolean found;
+        do {
+            Thread.sleep(20);
+            instrumentation.runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    text[0] = twisty.glkLayout.getStoryText(80);
+                }
+            });
+            String trimmed = (text[0] == null ? "" : text[0].trim());
+            found = trimmed.length() > 0 && trimmed.endsWith(suffix);
+        } while (!found && SystemClock.uptimeMillis() < deadline);
+        assertTrue(failure, found);
+    }
+
+    /* Native heap in use and open descriptors, at one point in time. */
+    private static final class Usage {
+        final long heap;
+        final int fds;
+
+        private Usage(long heap, int fds) {
+            this.heap = heap;
+            this.fds = fds;
+        }
+
+        static Usage sample() {
+            // Let finalizers release what the Java side still holds
+            System.gc();
+            System.runFinalization();
+            System.gc();
+            String[] fds = new File("/proc/self/fd").list();
+            return new Usage(Debug.getNativeHeapAllocatedSize(),
+                    fds == null ? 0 : fds.length);
+        }
+
+        void assertGrowthFrom(Usage before) {
+            Log.i(TAG, "Native heap " + before.heap + " -> " + heap
+                    + " bytes, descriptors " + before.fds + " -> " + fds);
+            assertTrue("Native heap grew by " + (heap - before.heap)
+                    + " bytes", heap - before.heap <= MAX_HEAP_GROWTH);
+            assertTrue("Descriptors grew by " + (fds - before.fds),
+                    fds - before.fds <= MAX_FD_GROWTH);
+        }
+    }
+
+    /* Copies a built-in story to a file, for sessions that read a path. */
+    private static String copyStory(Twisty twisty, int resource, String name)
+            throws IOException {
+
+        File file = new File(twisty.getCacheDir(), name);
+        InputStream in = twisty.getResources().openRawResource(resource);
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    out.write(buf, 0, n);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        return file.getPath();
+    }
+}
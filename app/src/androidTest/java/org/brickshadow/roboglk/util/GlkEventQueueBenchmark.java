@@ -0,0 +1,220 @@
+/* This file is a part of roboglk.
+ * Copyright (c) 2009 Edward McCardell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.brickshadow.roboglk.util;
+
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+
+import org.brickshadow.roboglk.GlkEventType;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.os.Message;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+
+/**
+ * Compares the enqueue/dequeue latency of {@link GlkEventQueue} with the
+ * queue it replaced, which kept {@code Message}s in linked lists guarded
+ * by a shared monitor. The results are written to the log under the
+ * "Twisty" tag; nothing is asserted about the timings.
+ */
+@RunWith(AndroidJUnit4.class)
+public class GlkEventQueueBenchmark {
+    private static final String TAG = "Twisty";
+
+    private static final int WARMUP = 20000;
+    private static final int ITERATIONS = 200000;
+    private static final int ROUND_TRIPS = 5000;
+
+    /*
+     * The old queue, cut down to what the benchmark uses: select-class
+     * events, a monitor that select() waits on, and translateEvent().
+     */
+    private static final class MessageQueue {
+        private final LinkedList<Message> selectQueue =
+            new LinkedList<Message>();
+        private final LinkedList<Message> pollQueue =
+            new LinkedList<Message>();
+        private final Object lock = new Object();
+
+        void putEvent(Message msg) {
+            synchronized(lock) {
+                boolean wasEmpty = selectQueue.isEmpty() && pollQueue.isEmpty();
+                selectQueue.add(msg);
+                if (wasEmpty) {
+                    lock.notify();
+                }
+            }
+        }
+
+        void select(int[] event) throws InterruptedException {
+            Message msg;
+            synchronized(lock) {
+                while (selectQueue.isEmpty() && pollQueue.isEmpty()) {
+                    lock.wait();
+                }
+                msg = selectQueue.poll();
+                if (msg == null) {
+                    msg = pollQueue.poll();
+                }
+            }
+            GlkEventQueue.translateEvent(msg, event);
+            msg.recycle();
+        }
+    }
+
+    /* One side of the benchmark: an event is put, then taken. */
+    private interface Queue {
+        void put(int arg);
+        void take(int[] event) throws InterruptedException;
+    }
+
+    private static Queue ringQueue() {
+        final GlkEventQueue queue = new GlkEventQueue();
+        return new Queue() {
+            @Override
+            public void put(int arg) {
+                queue.putEvent(GlkEventType.CharInput, null, arg, 0);
+            }
+
+            @Override
+            public void take(int[] event) {
+                queue.select(event);
+            }
+        };
+    }
+
+    private static Queue messageQueue() {
+        final MessageQueue queue = new MessageQueue();
+        return new Queue() {
+            @Override
+            public void put(int arg) {
+                Message msg = Message.obtain();
+                msg.what = GlkEventType.CharInput;
+                msg.arg1 = arg;
+                queue.putEvent(msg);
+            }
+
+            @Override
+            public void take(int[] event) throws InterruptedException {
+                queue.select(event);
+            }
+        };
+    }
+
+    @Test
+    public void sameThread() throws InterruptedException {
+        sameThread(messageQueue(), WARMUP);
+        sameThread(ringQueue(), WARMUP);
+
+        double messageNs = sameThread(messageQueue(), ITERATIONS);
+        double ringNs = sameThread(ringQueue(), ITERATIONS);
+        Log.i(TAG, String.format(
+                "Event queue, same thread: Message %.0f ns, ring %.0f ns"
+                + " per put and take", messageNs, ringNs));
+    }
+
+    /* Returns the mean time for a put followed by a take. */
+    private static double sameThread(Queue queue, int iterations)
+            throws InterruptedException {
+
+        int[] event = new int[4];
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            queue.put(i);
+            queue.take(event);
+        }
+        long elapsed = System.nanoTime() - start;
+        assertEquals(iterations - 1, event[2]);
+        return (double) elapsed / iterations;
+    }
+
+    @Test
+    public void crossThread() throws Exception {
+        crossThread(messageQueue(), ROUND_TRIPS / 5);
+        crossThread(ringQueue(), ROUND_TRIPS / 5);
+
+        long[] message = crossThread(messageQueue(), ROUND_TRIPS);
+        long[] ring = crossThread(ringQueue(), ROUND_TRIPS);
+        Log.i(TAG, String.format(
+                "Event queue, UI to interpreter thread: Message median %d ns,"
+                + " 99th %d ns; ring median %d ns, 99th %d ns",
+                percentile(message, 50), percentile(message, 99),
+                percentile(ring, 50), percentile(ring, 99)));
+    }
+
+    /*
+     * Returns the time from each put on this thread until a waiting
+     * consumer thread has taken the event. Only one event is in flight
+     * at a time, so this includes waking the consumer up.
+     */
+    private static long[] crossThread(final Queue queue, final int trips)
+            throws Exception {
+
+        final long[] latencies = new long[trips];
+        final long[] putTimes = new long[trips];
+        final Object done = new Object();
+        final int[] taken = new int[1];
+
+        Thread consumer = new Thread("benchmark-consumer") {
+            @Override
+            public void run() {
+                int[] event = new int[4];
+                try {
+                    for (int i = 0; i < trips; i++) {
+                        queue.take(event);
+                        latencies[event[2]] =
+                            System.nanoTime() - putTimes[event[2]];
+                        synchronized(done) {
+                            taken[0] = i + 1;
+                            done.notify();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // The test failed elsewhere.
+                }
+            }
+        };
+        consumer.start();
+
+        for (int i = 0; i < trips; i++) {
+            // Let the consumer go back to waiting first.
+            Thread.sleep(0, 200000);
+            putTimes[i] = System.nanoTime();
+            queue.put(i);
+            synchronized(done) {
+                while (taken[0] <= i) {
+                    done.wait();
+                }
+            }
+        }
+        consumer.join();
+        return latencies;
+    }
+
+    private static long percentile(long[] values, int p) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1, sorted.length * p / 100)];
+    }
+}
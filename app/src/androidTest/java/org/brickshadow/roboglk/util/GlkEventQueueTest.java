@@ -0,0 +1,91 @@
+/* This file is a part of roboglk.
+ * Copyright (c) 2009 Edward McCardell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.brickshadow.roboglk.util;
+
+
+import static org.junit.Assert.assertEquals;
+
+import org.brickshadow.roboglk.GlkEventType;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.support.test.runner.AndroidJUnit4;
+
+
+@RunWith(AndroidJUnit4.class)
+public class GlkEventQueueTest {
+
+    /* More than either ring holds. */
+    private static final int BURST = 1000;
+
+    @Test
+    public void selectEventsBeyondTheRingAreKeptInOrder() {
+        GlkEventQueue queue = new GlkEventQueue();
+        for (int i = 0; i < BURST; i++) {
+            queue.putEvent(GlkEventType.CharInput, null, i, 0);
+        }
+
+        int[] event = new int[4];
+        for (int i = 0; i < BURST; i++) {
+            queue.select(event);
+            assertEquals(GlkEventType.CharInput, event[0]);
+            assertEquals(i, event[2]);
+        }
+        assertEquals(BURST - 256, queue.getOverflowedEventCount());
+    }
+
+    @Test
+    public void pollEventsBeyondTheRingAreKeptInOrder() {
+        GlkEventQueue queue = new GlkEventQueue();
+        for (int i = 0; i < BURST; i++) {
+            queue.putEvent(GlkEventType.SoundNotify, null, i, 0);
+        }
+
+        int[] event = new int[4];
+        for (int i = 0; i < BURST; i++) {
+            queue.poll(event);
+            assertEquals(GlkEventType.SoundNotify, event[0]);
+            assertEquals(i, event[2]);
+        }
+        queue.poll(event);
+        assertEquals(GlkEventType.None, event[0]);
+    }
+
+    @Test
+    public void eventsAfterAnOverflowWaitTheirTurn() {
+        GlkEventQueue queue = new GlkEventQueue();
+        int[] event = new int[4];
+        int next = 0;
+        int taken = 0;
+
+        // Keep the ring nearly full while its overflow list drains.
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 300; i++) {
+                queue.putEvent(GlkEventType.LineInput, null, next++, 0);
+            }
+            for (int i = 0; i < 200; i++) {
+                queue.select(event);
+                assertEquals(taken++, event[2]);
+            }
+        }
+        while (taken < next) {
+            queue.select(event);
+            assertEquals(taken++, event[2]);
+        }
+    }
+}
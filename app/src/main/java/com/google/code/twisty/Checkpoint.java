@@ -0,0 +1,143 @@
+// Copyright 2009 Google Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.google.code.twisty;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.brickshadow.roboglk.GlkFactory;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * The checkpoint of the game that was running when Twisty last went
+ * into the background, so that the game can carry on where it was
+ * when Twisty is started again.
+ * <p>
+ * The interpreter writes its own state to {@link #getStateFile()}
+ * (see {@link GlkFactory#setCheckpoint}), replacing the file only once
+ * the new state is complete. When it reports success, {@link #commit}
+ * records which game the state belongs to and the end of the story
+ * window's text, which is shown again when the game resumes.
+ */
+class Checkpoint {
+    private static final String TAG = "Twisty";
+
+    private static final String PREFS_NAME = "checkpoint";
+    private static final String KEY_GAME = "game";
+
+    /** The most text kept for the story window, in characters. */
+    static final int MAX_TEXT = 8 * 1024;
+
+    private final File stateFile;
+    private final File textFile;
+    private final SharedPreferences prefs;
+
+    Checkpoint(Context context) {
+        File dir = context.getFilesDir();
+        stateFile = new File(dir, "checkpoint");
+        textFile = new File(dir, "checkpoint.txt");
+        prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /** The file the interpreter writes its state to. */
+    File getStateFile() {
+        return stateFile;
+    }
+
+    /** Returns true if a game can be resumed from the checkpoint. */
+    boolean exists() {
+        return prefs.contains(KEY_GAME) && stateFile.exists();
+    }
+
+    /**
+     * Returns the game the checkpoint belongs to: a story's path, or
+     * the name of a built-in game that was run from the APK.
+     */
+    String getGame() {
+        return prefs.getString(KEY_GAME, null);
+    }
+
+    /**
+     * Records the game whose state the interpreter has just written,
+     * and the text to show when it resumes.
+     */
+    void commit(String game, String text) {
+        writeText(text);
+        prefs.edit().putString(KEY_GAME, game).commit();
+    }
+
+    /** Returns the story text saved with the checkpoint, or null. */
+    String readText() {
+        if (!textFile.exists()) {
+            return null;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(textFile);
+            byte[] data = new byte[(int) textFile.length()];
+            int n = 0;
+            int got;
+            while (n < data.length
+                    && (got = in.read(data, n, data.length - n)) != -1) {
+                n += got;
+            }
+            return new String(data, 0, n, "UTF-8");
+        } catch (IOException e) {
+            Log.i(TAG, "Failed to read checkpoint text: " + e.getMessage());
+            return null;
+        } finally {
+            try {
+                if (in != null) in.close();
+            } catch (IOException e) {}
+        }
+    }
+
+    /** Forgets the checkpoint, so that nothing is resumed. */
+    void discard() {
+        prefs.edit().remove(KEY_GAME).commit();
+        stateFile.delete();
+        textFile.delete();
+    }
+
+    private void writeText(String text) {
+        if (text == null) {
+            textFile.delete();
+            return;
+        }
+        File temp = new File(textFile.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            out.write(text.getBytes("UTF-8"));
+            out.close();
+            out = null;
+            if (!temp.renameTo(textFile)) {
+                Log.i(TAG, "Failed to save checkpoint text");
+            }
+        } catch (IOException e) {
+            Log.i(TAG, "Failed to save checkpoint text: " + e.getMessage());
+        } finally {
+            try {
+                if (out != null) out.close();
+            } catch (IOException e) {}
+        }
+    }
+}
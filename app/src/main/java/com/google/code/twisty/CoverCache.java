@@ -0,0 +1,330 @@
+// Copyright 2009 Google Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.google.code.twisty;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.brickshadow.roboglk.BlorbResource;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+
+/**
+ * Thumbnails of the cover art (the frontispiece picture) of Blorb
+ * stories.
+ * <p>
+ * The picture is decoded straight from its offset in the story file,
+ * at the smallest power-of-two reduction that is still at least the
+ * thumbnail size, so neither the whole file nor the full-size image
+ * is ever held in memory. Thumbnails are kept in a memory cache
+ * bounded by size in bytes, and saved as PNG files in a cache
+ * directory, named after the story's IFID (or its path, if it has
+ * none) and modification time.
+ */
+class CoverCache {
+    private static final String TAG = "Twisty";
+
+    /** Receives a thumbnail on the handler given to the request. */
+    interface Listener {
+        void onCover(String path, Bitmap thumbnail);
+    }
+
+    private static final class Request {
+        final String path;
+        final StoryMetadata metadata;
+        final Handler handler;
+        final Listener listener;
+        final int generation;
+
+        Request(String path, StoryMetadata metadata, Handler handler,
+                Listener listener, int generation) {
+            this.path = path;
+            this.metadata = metadata;
+            this.handler = handler;
+            this.listener = listener;
+            this.generation = generation;
+        }
+    }
+
+    private final File dir;
+    private final int size;
+    private final LruCache<String, Bitmap> memory;
+    private final LinkedBlockingQueue<Request> queue =
+        new LinkedBlockingQueue<Request>();
+
+    private volatile int generation;
+
+    /**
+     * @param dir the directory for saved thumbnails
+     * @param size the largest width or height of a thumbnail, in pixels
+     * @param maxBytes the most memory the in-memory thumbnails may use
+     */
+    CoverCache(File dir, int size, int maxBytes) {
+        this.dir = dir;
+        this.size = size;
+        memory = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                work();
+            }
+        }, "twisty-covers");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Returns the thumbnail for a story if it is in memory, or null.
+     */
+    Bitmap peek(String path, StoryMetadata metadata) {
+        if (metadata.cover == null) {
+            return null;
+        }
+        return memory.get(key(path, metadata));
+    }
+
+    /**
+     * Asks for the thumbnail of a story. Nothing is reported for a
+     * story without cover art.
+     */
+    void request(String path, StoryMetadata metadata, Handler handler,
+            Listener listener) {
+        if (metadata.cover != null) {
+            queue.add(new Request(path, metadata, handler, listener,
+                    generation));
+        }
+    }
+
+    /** Drops all the requests that haven't been answered yet. */
+    void cancelPending() {
+        generation++;
+        queue.clear();
+    }
+
+    private void work() {
+        while (true) {
+            final Request r;
+            try {
+                r = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (r.generation != generation) {
+                continue;
+            }
+            final Bitmap thumbnail = load(r.path, r.metadata);
+            if (thumbnail == null) {
+                continue;
+            }
+            r.handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (r.generation == generation) {
+                        r.listener.onCover(r.path, thumbnail);
+                    }
+                }
+            });
+        }
+    }
+
+    private String key(String path, StoryMetadata metadata) {
+        String id = (metadata.ifid != null ? metadata.ifid : path);
+        return id + "@" + new File(path).lastModified();
+    }
+
+    private Bitmap load(String path, StoryMetadata metadata) {
+        String key = key(path, metadata);
+        Bitmap thumbnail = memory.get(key);
+        if (thumbnail != null) {
+            return thumbnail;
+        }
+
+        File saved = new File(dir, fileName(key));
+        if (saved.exists()) {
+            thumbnail = BitmapFactory.decodeFile(saved.getPath());
+        }
+        if (thumbnail == null) {
+            try {
+                thumbnail = decode(path, metadata.cover);
+            } catch (IOException e) {
+                Log.i(TAG, "Could not read cover art of " + path);
+            }
+            if (thumbnail == null) {
+                return null;
+            }
+            save(thumbnail, saved);
+        }
+        memory.put(key, thumbnail);
+        return thumbnail;
+    }
+
+    private Bitmap decode(String path, BlorbResource res) throws IOException {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        decodeRange(path, res, opts);
+        if (opts.outWidth <= 0 || opts.outHeight <= 0) {
+            return null;
+        }
+
+        int sample = 1;
+        while (opts.outWidth / (sample * 2) >= size
+                && opts.outHeight / (sample * 2) >= size) {
+            sample *= 2;
+        }
+        opts.inJustDecodeBounds = false;
+        opts.inSampleSize = sample;
+        Bitmap bitmap = decodeRange(path, res, opts);
+        if (bitmap == null) {
+            return null;
+        }
+
+        int w = bitmap.getWidth();
+        int h = bitmap.getHeight();
+        if (w <= size && h <= size) {
+            return bitmap;
+        }
+        float scale = Math.min((float) size / w, (float) size / h);
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                Math.max(1, Math.round(w * scale)),
+                Math.max(1, Math.round(h * scale)), true);
+        if (scaled != bitmap) {
+            bitmap.recycle();
+        }
+        return scaled;
+    }
+
+    private static Bitmap decodeRange(String path, BlorbResource res,
+            BitmapFactory.Options opts) throws IOException {
+        FileInputStream in = new FileInputStream(path);
+        try {
+            in.getChannel().position(res.start & 0xffffffffL);
+            return BitmapFactory.decodeStream(new BufferedInputStream(
+                    new RangeInputStream(in, res.len)), null, opts);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void save(Bitmap thumbnail, File file) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            return;
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            thumbnail.compress(Bitmap.CompressFormat.PNG, 100, out);
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                Log.i(TAG, "Failed to save cover thumbnail");
+            }
+        } catch (IOException e) {
+            Log.i(TAG, "Failed to save cover thumbnail: " + e.getMessage());
+        } finally {
+            try {
+                if (out != null) out.close();
+            } catch (IOException e) {}
+        }
+    }
+
+    /* IFIDs and paths can contain characters that aren't safe in file
+     * names, so the file is named after a hash of the key, with a
+     * sanitized prefix to keep collisions harmless and names readable.
+     */
+    private static String fileName(String key) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < key.length() && sb.length() < 48; i++) {
+            char c = key.charAt(i);
+            sb.append(Character.isLetterOrDigit(c) || c == '-' ? c : '_');
+        }
+        sb.append('-').append(Integer.toHexString(key.hashCode()));
+        return sb.append(".png").toString();
+    }
+
+    /** Reads at most a given number of bytes from another stream. */
+    private static final class RangeInputStream extends FilterInputStream {
+        private long remaining;
+
+        RangeInputStream(InputStream in, long length) {
+            super(in);
+            remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = super.read(buf, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            // The caller closes the underlying file.
+        }
+    }
+}
@@ -0,0 +1,386 @@
+// Copyright 2009 Google Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.google.code.twisty;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import android.os.FileObserver;
+import android.util.Log;
+
+/**
+ * A persistent index of the games under the Twisty directory.
+ * <p>
+ * The index records every directory with its modification time, and
+ * every game file in it with its size and modification time. A
+ * refresh only lists the directories whose modification time has
+ * changed, or which a {@link FileObserver} has seen change since
+ * they were indexed; the rest are taken from the index. Directories
+ * are scanned in parallel, a level of the tree at a time, which makes
+ * the first indexing of a large collection much quicker.
+ * <p>
+ * The index is saved to a file after each refresh that changed it, so
+ * that the game chooser can be opened from it straight away, even in
+ * a new process.
+ */
+class GameLibrary {
+    private static final String TAG = "Twisty";
+
+    private static final int INDEX_VERSION = 1;
+
+    private static final Pattern EXTENSIONS =
+        Pattern.compile(Twisty.EXTENSIONS);
+
+    private static final int OBSERVED_EVENTS =
+        FileObserver.CREATE | FileObserver.DELETE | FileObserver.MOVED_FROM
+        | FileObserver.MOVED_TO | FileObserver.CLOSE_WRITE
+        | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    /** A game file, as it was when it was indexed. */
+    static final class Game {
+        final String path;
+        final long size;
+        final long modified;
+
+        Game(String path, long size, long modified) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    /** A directory, as it was when it was last listed. */
+    private static final class Dir {
+        final String path;
+        final long modified;
+        final Game[] games;
+        final String[] subdirs;
+
+        Dir(String path, long modified, Game[] games, String[] subdirs) {
+            this.path = path;
+            this.modified = modified;
+            this.games = games;
+            this.subdirs = subdirs;
+        }
+    }
+
+    /** Marks its directory for relisting when anything in it changes. */
+    private class DirObserver extends FileObserver {
+        private final String path;
+
+        DirObserver(String path) {
+            super(path, OBSERVED_EVENTS);
+            this.path = path;
+        }
+
+        @Override
+        public void onEvent(int event, String name) {
+            dirty.add(path);
+        }
+    }
+
+    private final File indexFile;
+    private final ExecutorService pool;
+
+    /* Only touched by refresh(), which is synchronized. */
+    private String root;
+    private Map<String, Dir> dirs = new HashMap<String, Dir>();
+    private final Map<String, DirObserver> observers =
+        new HashMap<String, DirObserver>();
+    private boolean loaded;
+
+    private final Set<String> dirty =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private volatile String[] games;
+
+    GameLibrary(File indexFile) {
+        this.indexFile = indexFile;
+        int threads = Math.max(2, Math.min(4,
+                Runtime.getRuntime().availableProcessors()));
+        pool = Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Returns true if there is an index to show (in memory or on disk),
+     * so that the chooser can be opened before a refresh.
+     */
+    boolean hasIndex() {
+        return games != null || indexFile.exists();
+    }
+
+    /**
+     * Returns the sorted paths of the games found by the last refresh,
+     * or read from the saved index. Loads the saved index if necessary,
+     * so this should not be called on the UI thread the first time.
+     *
+     * @return the paths, or null if there is no index yet
+     */
+    String[] getGames() {
+        if (games == null) {
+            synchronized (this) {
+                if (!loaded) {
+                    load();
+                }
+            }
+        }
+        return games;
+    }
+
+    /**
+     * Returns the paths of the indexed games whose size, when they were
+     * indexed, was {@code size}. The files may have changed since.
+     */
+    synchronized List<String> findBySize(long size) {
+        if (!loaded) {
+            load();
+        }
+        List<String> found = new ArrayList<String>();
+        for (Dir dir : dirs.values()) {
+            for (Game game : dir.games) {
+                if (game.size == size) {
+                    found.add(game.path);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Brings the index up to date with the directory tree under
+     * {@code rootPath}, listing only the directories that have changed.
+     *
+     * @return true if the list of games changed
+     */
+    synchronized boolean refresh(String rootPath) {
+        if (!loaded) {
+            load();
+        }
+        if (!rootPath.equals(root)) {
+            root = rootPath;
+            dirs.clear();
+        }
+
+        Map<String, Dir> scanned = new HashMap<String, Dir>();
+        boolean changed = false;
+        List<String> level = Collections.singletonList(root);
+        while (!level.isEmpty()) {
+            List<Callable<Dir>> tasks = new ArrayList<Callable<Dir>>();
+            for (final String path : level) {
+                final Dir old = dirs.get(path);
+                // Clear the mark before listing, so that a change made
+                // during the listing leaves it dirty for next time.
+                final boolean marked = dirty.remove(path);
+                tasks.add(new Callable<Dir>() {
+                    @Override
+                    public Dir call() {
+                        return scanDir(path, old, marked);
+                    }
+                });
+            }
+
+            List<String> next = new ArrayList<String>();
+            try {
+                for (Future<Dir> f : pool.invokeAll(tasks)) {
+                    Dir dir = f.get();
+                    if (dir == null) {
+                        changed = true;
+                        continue;
+                    }
+                    if (dir != dirs.get(dir.path)) {
+                        changed = true;
+                    }
+                    scanned.put(dir.path, dir);
+                    for (String sub : dir.subdirs) {
+                        next.add(dir.path + "/" + sub);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Failed to scan for games", e.getCause());
+                return false;
+            }
+            level = next;
+        }
+
+        if (scanned.size() != dirs.size()) {
+            changed = true;
+        }
+        dirs = scanned;
+        updateObservers();
+
+        if (changed || games == null) {
+            games = listGames();
+            save();
+        }
+        return changed;
+    }
+
+    /* Lists one directory, or reuses its old entry if it hasn't changed.
+     * Returns null if the directory has gone.
+     */
+    private static Dir scanDir(String path, Dir old, boolean marked) {
+        File dir = new File(path);
+        long modified = dir.lastModified();
+        if (old != null && !marked && modified == old.modified) {
+            return old;
+        }
+
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return null;
+        }
+        List<Game> games = new ArrayList<Game>();
+        List<String> subdirs = new ArrayList<String>();
+        for (File child : children) {
+            if (child.isDirectory()) {
+                subdirs.add(child.getName());
+            } else if (EXTENSIONS.matcher(child.getName()).matches()) {
+                games.add(new Game(child.getPath(), child.length(),
+                        child.lastModified()));
+            }
+        }
+        return new Dir(path, modified, games.toArray(new Game[games.size()]),
+                subdirs.toArray(new String[subdirs.size()]));
+    }
+
+    private String[] listGames() {
+        List<String> paths = new ArrayList<String>();
+        for (Dir dir : dirs.values()) {
+            for (Game game : dir.games) {
+                paths.add(game.path);
+            }
+        }
+        String[] sorted = paths.toArray(new String[paths.size()]);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private void updateObservers() {
+        for (String path : new ArrayList<String>(observers.keySet())) {
+            if (!dirs.containsKey(path)) {
+                observers.remove(path).stopWatching();
+            }
+        }
+        for (String path : dirs.keySet()) {
+            if (!observers.containsKey(path)) {
+                DirObserver observer = new DirObserver(path);
+                observer.startWatching();
+                observers.put(path, observer);
+            }
+        }
+    }
+
+    private void load() {
+        loaded = true;
+        if (!indexFile.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(indexFile)));
+            if (in.readInt() != INDEX_VERSION) {
+                return;
+            }
+            String indexRoot = in.readUTF();
+            int count = in.readInt();
+            Map<String, Dir> read = new HashMap<String, Dir>(count * 2);
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long modified = in.readLong();
+                Game[] dirGames = new Game[in.readInt()];
+                for (int j = 0; j < dirGames.length; j++) {
+                    dirGames[j] = new Game(path + "/" + in.readUTF(),
+                            in.readLong(), in.readLong());
+                }
+                String[] subdirs = new String[in.readInt()];
+                for (int j = 0; j < subdirs.length; j++) {
+                    subdirs[j] = in.readUTF();
+                }
+                read.put(path, new Dir(path, modified, dirGames, subdirs));
+            }
+            root = indexRoot;
+            dirs = read;
+            games = listGames();
+        } catch (IOException e) {
+            Log.i(TAG, "Ignoring unreadable game index: " + e.getMessage());
+        } finally {
+            try {
+                if (in != null) in.close();
+            } catch (IOException e) {}
+        }
+    }
+
+    private void save() {
+        File temp = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temp)));
+            out.writeInt(INDEX_VERSION);
+            out.writeUTF(root);
+            out.writeInt(dirs.size());
+            for (Dir dir : dirs.values()) {
+                out.writeUTF(dir.path);
+                out.writeLong(dir.modified);
+                out.writeInt(dir.games.length);
+                for (Game game : dir.games) {
+                    out.writeUTF(new File(game.path).getName());
+                    out.writeLong(game.size);
+                    out.writeLong(game.modified);
+                }
+                out.writeInt(dir.subdirs.length);
+                for (String sub : dir.subdirs) {
+                    out.writeUTF(sub);
+                }
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(indexFile)) {
+                Log.i(TAG, "Failed to save game index");
+            }
+        } catch (IOException e) {
+            Log.i(TAG, "Failed to save game index: " + e.getMessage());
+        } finally {
+            try {
+                if (out != null) out.close();
+            } catch (IOException e) {}
+        }
+    }
+}
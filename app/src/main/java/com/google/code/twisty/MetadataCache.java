@@ -0,0 +1,272 @@
+// Copyright 2009 Google Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.google.code.twisty;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import android.os.Handler;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Reads {@link StoryMetadata} on a background thread and keeps it in
+ * a persistent cache, keyed by path and checked against the file's
+ * size and modification time.
+ * <p>
+ * Nothing is read until it is asked for. Requests are handled one at
+ * a time on a low-priority thread, with a pause after each file that
+ * has to be opened, so that a long list of games being filled in
+ * doesn't compete with scrolling it. {@link #cancelPending()} drops
+ * the requests that haven't been handled yet, for example when the
+ * list is closed.
+ */
+class MetadataCache {
+    private static final String TAG = "Twisty";
+
+    private static final int CACHE_VERSION = 3;
+
+    /* The pause after each story file read, in milliseconds. */
+    private static final long READ_INTERVAL = 20;
+
+    /** Receives metadata on the handler given to the request. */
+    interface Listener {
+        void onMetadata(String path, StoryMetadata metadata);
+    }
+
+    private static final class Entry {
+        final long size;
+        final long modified;
+        final StoryMetadata metadata;
+
+        Entry(long size, long modified, StoryMetadata metadata) {
+            this.size = size;
+            this.modified = modified;
+            this.metadata = metadata;
+        }
+    }
+
+    private static final class Request {
+        final String path;
+        final Handler handler;
+        final Listener listener;
+        final int generation;
+
+        Request(String path, Handler handler, Listener listener,
+                int generation) {
+            this.path = path;
+            this.handler = handler;
+            this.listener = listener;
+            this.generation = generation;
+        }
+    }
+
+    private final File cacheFile;
+    private final LinkedBlockingQueue<Request> queue =
+        new LinkedBlockingQueue<Request>();
+
+    /* Guarded by this. */
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private boolean loaded;
+    private boolean unsaved;
+
+    private volatile int generation;
+
+    MetadataCache(File cacheFile) {
+        this.cacheFile = cacheFile;
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                work();
+            }
+        }, "twisty-metadata");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Loads the saved cache, if that hasn't been done yet. This reads
+     * a file, so call it off the UI thread before using {@link #peek}.
+     */
+    synchronized void preload() {
+        if (!loaded) {
+            load();
+        }
+    }
+
+    /**
+     * Returns the cached metadata of a story, if it has been read and
+     * the cache has been loaded, without touching the file. The entry
+     * may be out of date; {@link #request} checks it.
+     */
+    synchronized StoryMetadata peek(String path) {
+        Entry e = entries.get(path);
+        return (e != null ? e.metadata : null);
+    }
+
+    /**
+     * Asks for the metadata of a story. The listener is called on
+     * {@code handler} once it is known, unless the request is cancelled
+     * first. Stories that can't be read are not reported.
+     */
+    void request(String path, Handler handler, Listener listener) {
+        queue.add(new Request(path, handler, listener, generation));
+    }
+
+    /** Drops all the requests that haven't been answered yet. */
+    void cancelPending() {
+        generation++;
+        queue.clear();
+    }
+
+    private void work() {
+        while (true) {
+            Request r;
+            try {
+                r = queue.poll();
+                if (r == null) {
+                    save();
+                    r = queue.take();
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (r.generation != generation) {
+                continue;
+            }
+            final StoryMetadata metadata = lookup(r.path);
+            if (metadata == null || r.generation != generation) {
+                continue;
+            }
+            final Request req = r;
+            r.handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (req.generation == generation) {
+                        req.listener.onMetadata(req.path, metadata);
+                    }
+                }
+            });
+        }
+    }
+
+    private StoryMetadata lookup(String path) {
+        preload();
+        File file = new File(path);
+        long size = file.length();
+        long modified = file.lastModified();
+        synchronized (this) {
+            Entry e = entries.get(path);
+            if (e != null && e.size == size && e.modified == modified) {
+                return e.metadata;
+            }
+        }
+
+        StoryMetadata metadata;
+        try {
+            metadata = StoryMetadata.read(file);
+        } catch (IOException e) {
+            Log.i(TAG, "Could not read story header of " + path);
+            return null;
+        }
+        synchronized (this) {
+            entries.put(path, new Entry(size, modified, metadata));
+            unsaved = true;
+        }
+        try {
+            Thread.sleep(READ_INTERVAL);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return metadata;
+    }
+
+    private synchronized void load() {
+        loaded = true;
+        if (!cacheFile.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(cacheFile)));
+            if (in.readInt() != CACHE_VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long modified = in.readLong();
+                entries.put(path, new Entry(size, modified,
+                        StoryMetadata.readFrom(in)));
+            }
+        } catch (IOException e) {
+            Log.i(TAG, "Ignoring unreadable metadata cache: " + e.getMessage());
+        } finally {
+            try {
+                if (in != null) in.close();
+            } catch (IOException e) {}
+        }
+    }
+
+    private void save() {
+        // Write a copy, so that peek() isn't held up by the disk
+        Map<String, Entry> snapshot;
+        synchronized (this) {
+            if (!unsaved) {
+                return;
+            }
+            unsaved = false;
+            snapshot = new HashMap<String, Entry>(entries);
+        }
+        File temp = new File(cacheFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temp)));
+            out.writeInt(CACHE_VERSION);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, Entry> e : snapshot.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue().size);
+                out.writeLong(e.getValue().modified);
+                e.getValue().metadata.write(out);
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(cacheFile)) {
+                Log.i(TAG, "Failed to save metadata cache");
+            }
+        } catch (IOException e) {
+            Log.i(TAG, "Failed to save metadata cache: " + e.getMessage());
+        } finally {
+            try {
+                if (out != null) out.close();
+            } catch (IOException e) {}
+        }
+    }
+}
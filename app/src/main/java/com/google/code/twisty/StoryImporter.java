@@ -0,0 +1,389 @@
+// Copyright 2009 Google Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.google.code.twisty;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Copies a story from a URI (usually http:// or content://) into the
+ * Twisty directory, on its own thread.
+ * <p>
+ * The first bytes are checked before anything is written, so a page
+ * of HTML or some other file is turned away without being downloaded.
+ * The rest is streamed into a temporary file while its SHA-1 hash is
+ * worked out. Once the whole file has arrived and its headers have
+ * been read back, it is either recognized as a copy of a story that
+ * is already there, or renamed into place, so a story file in the
+ * directory is never half written.
+ */
+class StoryImporter {
+    private static final String TAG = "Twisty";
+
+    /** Told on the handler given to the importer how the import goes. */
+    interface Listener {
+        /** @param total the expected size in bytes, or -1 if unknown */
+        void onProgress(long bytes, long total);
+
+        /** @param path the imported story, or an identical older copy */
+        void onImported(String path);
+
+        /** @param reason a message that can be shown to the player */
+        void onFailed(String reason);
+    }
+
+    /** Turns the import down with a message for the player. */
+    private static final class RejectedException extends IOException {
+        RejectedException(String message) {
+            super(message);
+        }
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /* Enough for any of the headers checked by looksLikeStory. */
+    private static final int HEAD_SIZE = 64;
+
+    /* The least time between progress reports, in milliseconds. */
+    private static final long PROGRESS_INTERVAL = 100;
+
+    private static final int CONNECT_TIMEOUT = 15 * 1000;
+    private static final int READ_TIMEOUT = 30 * 1000;
+
+    private final ContentResolver resolver;
+    private final Uri uri;
+    private final File dir;
+    private final GameLibrary library;
+    private final Handler handler;
+    private final Listener listener;
+    private final Thread thread;
+
+    private volatile boolean cancelled;
+
+    /**
+     * @param dir the directory to import the story into
+     * @param library the index to look for copies of the story in, or
+     *        null to look only in {@code dir}
+     */
+    StoryImporter(ContentResolver resolver, Uri uri, File dir,
+            GameLibrary library, Handler handler, Listener listener) {
+        this.resolver = resolver;
+        this.uri = uri;
+        this.dir = dir;
+        this.library = library;
+        this.handler = handler;
+        this.listener = listener;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runImport();
+            }
+        }, "twisty-import");
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Stops the import and throws away what has been downloaded. The
+     * listener is not called again.
+     */
+    void cancel() {
+        cancelled = true;
+        thread.interrupt();
+    }
+
+    private void runImport() {
+        String path = null;
+        String reason = null;
+        try {
+            path = importStory();
+        } catch (RejectedException e) {
+            reason = e.getMessage();
+        } catch (IOException e) {
+            Log.i(TAG, "Failed to import " + uri + ": " + e.getMessage());
+            reason = "The story could not be downloaded.";
+        }
+        if (cancelled) {
+            Log.i(TAG, "Import cancelled: " + uri);
+            return;
+        }
+        final String imported = path;
+        final String failure = reason;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (cancelled) {
+                    return;
+                }
+                if (imported != null) {
+                    listener.onImported(imported);
+                } else {
+                    listener.onFailed(failure);
+                }
+            }
+        });
+    }
+
+    private String importStory() throws IOException {
+        // A story that is already in our directory is run where it is
+        if ("file".equals(uri.getScheme())) {
+            File source = new File(uri.getPath());
+            File parent = source.getCanonicalFile().getParentFile();
+            if (parent != null && parent.equals(dir.getCanonicalFile())) {
+                Log.i(TAG, "Input and output file are the same: " + source);
+                return source.getCanonicalPath();
+            }
+        }
+
+        long total = -1;
+        InputStream in;
+        if ("content".equals(uri.getScheme())) {
+            in = resolver.openInputStream(uri);
+        } else if ("file".equals(uri.getScheme())) {
+            File source = new File(uri.getPath());
+            total = source.length();
+            in = new FileInputStream(source);
+        } else {
+            URLConnection connection = new URL(uri.toString()).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            connection.connect();
+            total = connection.getContentLength();
+            in = connection.getInputStream();
+        }
+        if (in == null) {
+            throw new IOException("No data at " + uri);
+        }
+
+        File temp = null;
+        try {
+            MessageDigest sha1 = newDigest();
+            byte[] buffer = new byte[BUFFER_SIZE];
+
+            // Check the header before committing to the download
+            int head = readFully(in, buffer, HEAD_SIZE);
+            if (!StoryMetadata.looksLikeStory(buffer, head)) {
+                throw new RejectedException(
+                        "This file is not a story that Twisty can play.");
+            }
+
+            temp = File.createTempFile("import", ".tmp", dir);
+            long written = copy(in, buffer, head, temp, sha1, total);
+            if (total >= 0 && written != total) {
+                throw new IOException("Expected " + total + " bytes, got "
+                        + written);
+            }
+
+            StoryMetadata metadata = StoryMetadata.read(temp);
+            String extension =
+                metadata.getExtension(StoryMetadata.isBlorb(temp));
+            if (extension == null) {
+                throw new RejectedException(
+                        "This file is not a story that Twisty can play.");
+            }
+
+            String hash = toHex(sha1.digest());
+            String existing = findCopy(written, hash);
+            if (existing != null) {
+                Log.i(TAG, "Already have " + uri + " as " + existing);
+                return existing;
+            }
+
+            File story = chooseFile(extension);
+            if (!temp.renameTo(story)) {
+                throw new IOException("Could not rename to " + story);
+            }
+            temp = null;
+            Log.i(TAG, "Imported " + uri + " as " + story);
+            return story.getPath();
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {}
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    /* Writes the header already in buffer, then the rest of the stream,
+     * to file. The file is synced before it is closed, so that renaming
+     * it can't expose a story whose data isn't on disk yet.
+     */
+    private long copy(InputStream in, byte[] buffer, int head, File file,
+            MessageDigest digest, long total) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(buffer, 0, head);
+            digest.update(buffer, 0, head);
+            long written = head;
+            long reported = 0;
+            int got;
+            while ((got = in.read(buffer)) != -1) {
+                checkCancelled();
+                out.write(buffer, 0, got);
+                digest.update(buffer, 0, got);
+                written += got;
+                long now = SystemClock.uptimeMillis();
+                if (now - reported >= PROGRESS_INTERVAL) {
+                    reported = now;
+                    reportProgress(written, total);
+                }
+            }
+            reportProgress(written, total);
+            out.getFD().sync();
+            return written;
+        } finally {
+            out.close();
+        }
+    }
+
+    private void reportProgress(final long bytes, final long total) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!cancelled) {
+                    listener.onProgress(bytes, total);
+                }
+            }
+        });
+    }
+
+    /* Looks for a story with the same contents among the indexed games
+     * and the files already in the import directory. Only files of the
+     * right size are hashed.
+     */
+    private String findCopy(long size, String hash) throws IOException {
+        Set<String> candidates = new LinkedHashSet<String>();
+        if (library != null) {
+            candidates.addAll(library.findBySize(size));
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.length() == size
+                        && f.getName().matches(Twisty.EXTENSIONS)) {
+                    candidates.add(f.getPath());
+                }
+            }
+        }
+        for (String path : candidates) {
+            checkCancelled();
+            File f = new File(path);
+            if (f.length() == size && hash.equals(hashFile(f))) {
+                return path;
+            }
+        }
+        return null;
+    }
+
+    /* Names the story after the last part of its URI, giving it an
+     * extension for its format if it doesn't already have one that
+     * leads to the right interpreter, and numbering it if that name
+     * is taken by a different story.
+     */
+    private File chooseFile(String extension) {
+        String name = uri.getLastPathSegment();
+        if (name == null || name.length() == 0) {
+            name = "story";
+        }
+        name = name.replaceAll("[^A-Za-z0-9._-]", "_");
+
+        String interpreter = (extension.startsWith("z")
+                ? Twisty.NITFOL_EXTENSIONS : Twisty.GIT_EXTENSIONS);
+        String base;
+        if (name.matches(interpreter)) {
+            base = name.substring(0, name.lastIndexOf('.'));
+            extension = name.substring(name.lastIndexOf('.') + 1);
+        } else {
+            base = name;
+        }
+
+        File file = new File(dir, base + "." + extension);
+        for (int i = 1; file.exists(); i++) {
+            file = new File(dir, base + "-" + i + "." + extension);
+        }
+        return file;
+    }
+
+    private String hashFile(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int got;
+            while ((got = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, got);
+            }
+        } finally {
+            in.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    private void checkCancelled() throws IOException {
+        if (cancelled) {
+            throw new IOException("Cancelled");
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] buffer, int len)
+            throws IOException {
+        int n = 0;
+        while (n < len) {
+            int got = in.read(buffer, n, len - n);
+            if (got == -1) {
+                break;
+            }
+            n += got;
+        }
+        return n;
+    }
+
+    private static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-1 is not available");
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,383 @@
+// Copyright 2009 Google Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.google.code.twisty;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.brickshadow.roboglk.BlorbResource;
+
+/**
+ * What can be learned about a story file from its headers, without
+ * loading it: the story format, the release, serial number and checksum
+ * from the Z-machine or Glulx header, and the title, author and IFID from
+ * a Blorb file's iFiction metadata chunk. For a Blorb file with a
+ * frontispiece, it also records where the cover image is.
+ * <p>
+ * {@link #read(File)} only reads the fixed-size headers and the chunk
+ * headers of a Blorb file, seeking past everything else.
+ */
+final class StoryMetadata {
+    static final String FORMAT_ZCODE = "Z-code";
+    static final String FORMAT_GLULX = "Glulx";
+    static final String FORMAT_UNKNOWN = "Unknown";
+
+    // Four-character codes, as big-endian ints
+    private static final int FORM = 0x464f524d;
+    private static final int IFRS = 0x49465253;
+    private static final int RIDX = 0x52496478;
+    private static final int IFMD = 0x49466d64;
+    private static final int EXEC = 0x45786563;
+    private static final int PICT = 0x50696374;
+    private static final int FSPC = 0x46737063;
+    private static final int PNG = 0x504e4720;   // 'PNG '
+    private static final int JPEG = 0x4a504547;
+    private static final int ZCOD = 0x5a434f44;
+    private static final int GLUL = 0x474c554c;
+    private static final int GLUL_MAGIC = 0x476c756c;  // 'Glul'
+    private static final int INFO = 0x496e666f;        // 'Info'
+
+    /* iFiction records are small; anything bigger is not worth reading
+     * just to show a title.
+     */
+    private static final int MAX_IFMD = 64 * 1024;
+
+    private static final Pattern TITLE = tagPattern("title");
+    private static final Pattern AUTHOR = tagPattern("author");
+    private static final Pattern IFID = tagPattern("ifid");
+
+    final String format;
+    final int version;
+    final int release;
+    final String serial;
+    /**
+     * The header checksum: 16 bits for Z-code, 32 for Glulx. Together
+     * with the release and serial it tells apart builds of one story.
+     */
+    final int checksum;
+    final String title;
+    final String author;
+    final String ifid;
+    /** The frontispiece image, or null; start is the data's offset. */
+    final BlorbResource cover;
+
+    StoryMetadata(String format, int version, int release, String serial,
+            int checksum, String title, String author, String ifid,
+            BlorbResource cover) {
+        this.format = format;
+        this.version = version;
+        this.release = release;
+        this.serial = serial;
+        this.checksum = checksum;
+        this.title = title;
+        this.author = author;
+        this.ifid = ifid;
+        this.cover = cover;
+    }
+
+    /**
+     * Returns a one-line description for a list of games, falling back
+     * on the file name when the story has no title.
+     */
+    String getLabel(String fileName) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(title != null ? title : fileName);
+        if (author != null) {
+            sb.append(" by ").append(author);
+        }
+        if (!FORMAT_UNKNOWN.equals(format)) {
+            sb.append(" (").append(format);
+            if (release != 0) {
+                sb.append(", release ").append(release);
+            }
+            sb.append(')');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Reads the metadata of a story file.
+     *
+     * @throws IOException if the file can't be read; a file that can be
+     *         read but isn't a recognized story gives FORMAT_UNKNOWN
+     */
+    static StoryMetadata read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() >= 12 && raf.readInt() == FORM) {
+                raf.readInt();
+                if (raf.readInt() == IFRS) {
+                    return readBlorb(raf);
+                }
+            }
+            return readExec(raf, 0, null, null, null, null);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Checks the first bytes of a file for the signature of a story
+     * this app can run: a Blorb file, a Glulx header, or a Z-machine
+     * header whose version and table addresses are plausible.
+     *
+     * @param head the start of the file
+     * @param n the number of valid bytes in head
+     */
+    static boolean looksLikeStory(byte[] head, int n) {
+        if (n >= 12 && getInt(head, 0) == FORM) {
+            return getInt(head, 8) == IFRS;
+        }
+        if (n >= 4 && getInt(head, 0) == GLUL_MAGIC) {
+            return true;
+        }
+        if (n < 0x40) {
+            return false;
+        }
+        int zversion = head[0] & 0xff;
+        if (zversion < 1 || zversion > 8) {
+            return false;
+        }
+        // The dictionary, object table, globals and static memory all
+        // lie after the 64-byte header.
+        for (int i = 0x08; i <= 0x0e; i += 2) {
+            if (getShort(head, i) < 0x40) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a file extension that the interpreters will recognize for
+     * a story of this format, or null for an unknown format.
+     */
+    String getExtension(boolean blorb) {
+        if (FORMAT_ZCODE.equals(format)) {
+            return blorb ? "zblorb" : "z" + version;
+        } else if (FORMAT_GLULX.equals(format)) {
+            return blorb ? "gblorb" : "ulx";
+        }
+        return null;
+    }
+
+    /** Returns true if the file starts with a Blorb header. */
+    static boolean isBlorb(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() < 12 || raf.readInt() != FORM) {
+                return false;
+            }
+            raf.readInt();
+            return raf.readInt() == IFRS;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static StoryMetadata readBlorb(RandomAccessFile raf)
+            throws IOException {
+        long execPos = -1;
+        String title = null, author = null, ifid = null;
+        int coverNum = -1;
+        int[] pictNums = new int[0];
+        long[] pictPos = new long[0];
+        int picts = 0;
+
+        long pos = 12;
+        long end = raf.length();
+        while (pos + 8 <= end) {
+            raf.seek(pos);
+            int type = raf.readInt();
+            long len = raf.readInt() & 0xffffffffL;
+            if (type == RIDX) {
+                int count = raf.readInt();
+                // Each entry is 12 bytes; don't trust a count that
+                // the chunk can't hold.
+                if (len < 4 || count < 0 || count > (len - 4) / 12) {
+                    throw new IOException("Bad resource index count "
+                            + count);
+                }
+                pictNums = new int[count];
+                pictPos = new long[count];
+                picts = 0;
+                for (int i = 0; i < count; i++) {
+                    int usage = raf.readInt();
+                    int number = raf.readInt();
+                    int start = raf.readInt();
+                    if (usage == EXEC && number == 0) {
+                        execPos = start & 0xffffffffL;
+                    } else if (usage == PICT) {
+                        pictNums[picts] = number;
+                        pictPos[picts++] = start & 0xffffffffL;
+                    }
+                }
+            } else if (type == IFMD && len <= MAX_IFMD) {
+                byte[] xml = new byte[(int) len];
+                raf.readFully(xml);
+                String text = new String(xml, "UTF-8");
+                title = findTag(TITLE, text);
+                author = findTag(AUTHOR, text);
+                ifid = findTag(IFID, text);
+            } else if (type == FSPC && len >= 4) {
+                coverNum = raf.readInt();
+            }
+            // Chunks are padded to an even length
+            pos += 8 + len + (len & 1);
+        }
+
+        BlorbResource cover = null;
+        for (int i = 0; i < picts && coverNum >= 0; i++) {
+            if (pictNums[i] == coverNum && pictPos[i] + 8 <= end) {
+                raf.seek(pictPos[i]);
+                int type = raf.readInt();
+                int len = raf.readInt();
+                if ((type == PNG || type == JPEG) && len > 0) {
+                    cover = new BlorbResource(coverNum,
+                            (int) pictPos[i] + 8, len, type);
+                }
+                break;
+            }
+        }
+
+        if (execPos < 0 || execPos + 8 > end) {
+            return new StoryMetadata(FORMAT_UNKNOWN, 0, 0, null, 0,
+                    title, author, ifid, cover);
+        }
+        raf.seek(execPos);
+        int type = raf.readInt();
+        if (type != ZCOD && type != GLUL) {
+            return new StoryMetadata(FORMAT_UNKNOWN, 0, 0, null, 0,
+                    title, author, ifid, cover);
+        }
+        return readExec(raf, execPos + 8, title, author, ifid, cover);
+    }
+
+    private static StoryMetadata readExec(RandomAccessFile raf, long base,
+            String title, String author, String ifid, BlorbResource cover)
+            throws IOException {
+        byte[] header = new byte[60];
+        raf.seek(base);
+        int n = raf.read(header);
+        if (n >= 36 && getInt(header, 0) == GLUL_MAGIC) {
+            int version = getInt(header, 4);
+            int checksum = getInt(header, 32);
+            int release = 0;
+            String serial = null;
+            // Inform adds its own block after the Glulx header
+            if (n >= 60 && getInt(header, 36) == INFO) {
+                release = getShort(header, 52);
+                serial = getAscii(header, 54, 6);
+            }
+            return new StoryMetadata(FORMAT_GLULX, version, release,
+                    serial, checksum, title, author, ifid, cover);
+        }
+        int zversion = (n > 0 ? header[0] & 0xff : 0);
+        if (n >= 0x1e && zversion >= 1 && zversion <= 8) {
+            return new StoryMetadata(FORMAT_ZCODE, zversion,
+                    getShort(header, 2), getAscii(header, 0x12, 6),
+                    getShort(header, 0x1c), title, author, ifid, cover);
+        }
+        return new StoryMetadata(FORMAT_UNKNOWN, 0, 0, null, 0,
+                title, author, ifid, cover);
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeUTF(format);
+        out.writeInt(version);
+        out.writeInt(release);
+        writeString(out, serial);
+        out.writeInt(checksum);
+        writeString(out, title);
+        writeString(out, author);
+        writeString(out, ifid);
+        out.writeBoolean(cover != null);
+        if (cover != null) {
+            out.writeInt(cover.num);
+            out.writeInt(cover.start);
+            out.writeInt(cover.len);
+            out.writeInt(cover.type);
+        }
+    }
+
+    static StoryMetadata readFrom(DataInput in) throws IOException {
+        String format = in.readUTF();
+        int version = in.readInt();
+        int release = in.readInt();
+        String serial = readString(in);
+        int checksum = in.readInt();
+        String title = readString(in);
+        String author = readString(in);
+        String ifid = readString(in);
+        BlorbResource cover = null;
+        if (in.readBoolean()) {
+            cover = new BlorbResource(in.readInt(), in.readInt(),
+                    in.readInt(), in.readInt());
+        }
+        return new StoryMetadata(format, version, release, serial,
+                checksum, title, author, ifid, cover);
+    }
+
+    private static void writeString(DataOutput out, String s)
+            throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static Pattern tagPattern(String tag) {
+        return Pattern.compile("<" + tag + ">\\s*(.*?)\\s*</" + tag + ">",
+                Pattern.DOTALL);
+    }
+
+    private static String findTag(Pattern p, String text) {
+        Matcher m = p.matcher(text);
+        if (!m.find()) {
+            return null;
+        }
+        return m.group(1).replace("&lt;", "<").replace("&gt;", ">")
+                .replace("&quot;", "\"").replace("&apos;", "'")
+                .replace("&amp;", "&");
+    }
+
+    private static int getInt(byte[] b, int i) {
+        return ((b[i] & 0xff) << 24) | ((b[i + 1] & 0xff) << 16)
+            | ((b[i + 2] & 0xff) << 8) | (b[i + 3] & 0xff);
+    }
+
+    private static int getShort(byte[] b, int i) {
+        return ((b[i] & 0xff) << 8) | (b[i + 1] & 0xff);
+    }
+
+    private static String getAscii(byte[] b, int i, int len) {
+        StringBuilder sb = new StringBuilder(len);
+        for (int j = i; j < i + len; j++) {
+            int c = b[j] & 0xff;
+            sb.append(c >= 0x20 && c < 0x7f ? (char) c : '?');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,205 @@
+// Copyright 2009 Google Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.google.code.twisty;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.brickshadow.roboglk.GlkFactory;
+
+import android.content.res.AssetFileDescriptor;
+import android.util.Log;
+
+/**
+ * One run of an interpreter, on its own thread.
+ * <p>
+ * A session can be started before the player has committed to its
+ * story. The thread loads the native library and calls
+ * {@link GlkFactory#startup}, which opens the story and (for Glulx
+ * games) reads, checks and loads it into memory, and then waits.
+ * {@link #go()} lets it continue straight into {@link GlkFactory#run()};
+ * {@link #cancel()} shuts it down without running anything.
+ * <p>
+ * The interpreters keep their state in native globals, so only one
+ * session at a time may be between startup and shutdown. A session
+ * waits for the previous one to shut down before it starts.
+ */
+class TerpSession {
+    private static final String TAG = "Twisty";
+
+    /** Told when a session that was let go has finished. */
+    interface Listener {
+        /**
+         * Called on the session's thread after shutdown.
+         *
+         * @param result the value returned by {@link GlkFactory#run()},
+         *        or -1 if the interpreter did not start
+         */
+        void onFinished(TerpSession session, int result);
+    }
+
+    private static final Object nativeLock = new Object();
+
+    private static final int WAITING = 0;
+    private static final int GO = 1;
+    private static final int CANCELLED = 2;
+
+    final String path;
+    final TwistyGlk glk;
+
+    /* Where the interpreter may keep scratch files, or null. */
+    private final File cacheDir;
+
+    /* The story, if it is not read from path. */
+    private AssetFileDescriptor story;
+
+    /* Set before go(); awaitGo() makes them visible to the thread. */
+    private String checkpointPath;
+    private boolean resume;
+
+    private final Listener listener;
+    private final Thread thread;
+
+    /* Guarded by this. */
+    private int state = WAITING;
+
+    TerpSession(String path, File cacheDir, TwistyGlk glk,
+            Listener listener) {
+        this(path, null, cacheDir, glk, listener);
+    }
+
+    /**
+     * Creates a session that reads the story from part of a file, such
+     * as an uncompressed raw resource. {@code path} then only names it.
+     * The session closes the descriptor.
+     */
+    TerpSession(String path, AssetFileDescriptor story, File cacheDir,
+            TwistyGlk glk, Listener listener) {
+        this.path = path;
+        this.story = story;
+        this.cacheDir = cacheDir;
+        this.glk = glk;
+        this.listener = listener;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runSession();
+            }
+        }, "twistyterp");
+    }
+
+    /** Starts the thread, which prepares the story and then waits. */
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Sets the file the interpreter writes checkpoints to, and whether
+     * it should resume from the one already there. Call this before
+     * {@link #go()}.
+     */
+    synchronized void setCheckpoint(String path, boolean resume) {
+        this.checkpointPath = path;
+        this.resume = resume;
+    }
+
+    /** Lets the interpreter run once it has started up. */
+    synchronized void go() {
+        if (state == WAITING) {
+            state = GO;
+            notifyAll();
+        }
+    }
+
+    /** Shuts the session down if it has not been let go. */
+    synchronized void cancel() {
+        if (state == WAITING) {
+            state = CANCELLED;
+            notifyAll();
+        }
+    }
+
+    /** Stops the session, whether or not it is running yet. */
+    void interrupt() {
+        cancel();
+        thread.interrupt();
+    }
+
+    private synchronized boolean awaitGo() {
+        try {
+            while (state == WAITING) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            state = CANCELLED;
+        }
+        return state == GO;
+    }
+
+    private void runSession() {
+        String interpreter = "";
+        if (path.matches(Twisty.NITFOL_EXTENSIONS))
+            interpreter = "nitfol";
+        else if (path.matches(Twisty.GIT_EXTENSIONS))
+            interpreter = "git";
+        String[] args;
+        if (interpreter.equals("git") && cacheDir != null) {
+            // Git spills old undo states to a file there
+            args = new String[] {interpreter, "-undodir",
+                    cacheDir.getPath(), path};
+        } else {
+            args = new String[] {interpreter, path};
+        }
+
+        int res = -1;
+        boolean ran;
+        synchronized (nativeLock) {
+            boolean ok;
+            if (story != null) {
+                ok = GlkFactory.startup(glk, args,
+                        story.getParcelFileDescriptor().getFd(),
+                        story.getStartOffset(), story.getLength());
+                // The story has been mapped, so the file isn't needed
+                closeStory();
+            } else {
+                ok = GlkFactory.startup(glk, args);
+            }
+            ran = awaitGo();
+            if (ok && ran) {
+                GlkFactory.setCheckpoint(checkpointPath, resume);
+                res = GlkFactory.run();
+            } else if (!ok) {
+                Log.i(TAG, "Could not start up " + path);
+            }
+            // shutdown() resets the interpreter's native state, so
+            // the next session can run in this same process.
+            GlkFactory.shutdown();
+            glk.cancelTimer();
+        }
+        if (ran) {
+            listener.onFinished(this, res);
+        }
+    }
+
+    private void closeStory() {
+        try {
+            story.close();
+        } catch (IOException e) {
+            Log.i(TAG, "Failed to close story of " + path);
+        }
+        story = null;
+    }
+}
@@ -24,17 +24,12 @@ package com.google.code.twisty;
 // explanation of how to build both the C and java code in this project.
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.ref.WeakReference;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLConnection;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashMap;
 
 import org.brickshadow.roboglk.Glk;
 import org.brickshadow.roboglk.GlkFactory;
@@ -44,6 +39,7 @@ import org.brickshadow.roboglk.GlkStyleHint;
 import org.brickshadow.roboglk.GlkWinType;
 import org.brickshadow.roboglk.io.StyleManager;
 import org.brickshadow.roboglk.io.TextBufferIO;
+import org.brickshadow.roboglk.util.OutputBatcher;
 import org.brickshadow.roboglk.util.UISync;
 import org.brickshadow.roboglk.view.TextBufferView;
 
@@ -58,8 +54,11 @@ import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
+import android.graphics.Bitmap;
 import android.graphics.Color;
+import android.graphics.drawable.BitmapDrawable;
 import android.net.Uri;
 import android.os.BatteryManager;
 import android.os.Bundle;
@@ -86,9 +85,9 @@ import android.widget.LinearLayout;
 import android.widget.RadioGroup;
 import android.widget.RadioButton;
 import android.widget.TextView;
+import android.widget.Toast;
 import android.widget.RadioGroup.OnCheckedChangeListener;
 
-import com.jakewharton.processphoenix.ProcessPhoenix;
 
 public class Twisty extends Activity {
     private static String TAG = "Twisty";
@@ -98,6 +97,7 @@ public class Twisty extends Activity {
     private static final int FILE_PICKED = 104;
     private static final int MENU_SHOW_HELP = 107;
     private static final int MENU_PICK_SETTINGS = 108;
+    private static final int MENU_GO_BACK = 109;
 
     private static final int MENUGROUP_SELECT = 101;
     private static final int MENUGROUP_RUNNING = 102;
@@ -116,6 +116,10 @@ public class Twisty extends Activity {
     public static final int PROMPT_FOR_WRITEFILE = 1;
     public static final int PROMPT_FOR_READFILE = 2;
     public static final int PROMPT_FOR_GAME = 3;
+    public static final int GAMES_UPDATED = 4;
+    public static final int CHECKPOINT_WRITTEN = 5;
+    public static final int CHECKPOINT_RESTORED = 6;
+    public static final int REWOUND = 7;
 
     // Permission request identifiers
     private final int MY_PERMISSIONS_REQUEST_WRITE_EXTERNAL_STORAGE = 1;
@@ -134,7 +138,9 @@ public class Twisty extends Activity {
     ImageView iv;
     TextBufferView tv;
     LinearLayout ll;
-    Thread terpThread = null;
+    TerpSession terpSession = null;
+    // A session started speculatively for the game highlighted in the chooser
+    TerpSession prewarmed = null;
     String gamePath;
     Boolean gameIsRunning = false;
 
@@ -147,9 +153,24 @@ public class Twisty extends Activity {
     private Dialog choosegamedialog;
     // All z-games discovered when we last scanned the sdcard
     private String[] discovered_games;
+    // The persistent index of games on the sdcard, shared by all instances
+    private static GameLibrary library;
+    // Cached titles, authors etc. of the games, read as they are listed
+    private static MetadataCache metadata;
+    // Thumbnails of the games' cover art
+    private static CoverCache covers;
+    // The chooser's radio button for each game path
+    private HashMap<String, RadioButton> game_buttons = new HashMap<String, RadioButton>();
     // A persistent map of button-ids to games found on the sdcard (absolute paths)
     private SparseArray<String> game_paths = new SparseArray<String>();
     private SparseArray<String> builtinGames = new SparseArray<String>();
+    // The game to carry on with if Twisty is stopped while it runs
+    private Checkpoint checkpoint;
+    // Waiting for the terp to write a checkpoint, and stop once it has
+    private boolean checkpointPending = false;
+    private boolean stopAfterCheckpoint = false;
+    // The next game started resumes from the checkpoint
+    private boolean resumeNext = false;
 
 
     static class DialogHandler extends Handler {
@@ -173,6 +194,18 @@ public class Twisty extends Activity {
             else if (m.what == PROMPT_FOR_GAME) {
                 twisty.get().showDialog(DIALOG_CHOOSE_GAME);
             }
+            else if (m.what == GAMES_UPDATED) {
+                twisty.get().updateGameList();
+            }
+            else if (m.what == CHECKPOINT_WRITTEN) {
+                twisty.get().checkpointWritten(m.obj, m.arg1 != 0);
+            }
+            else if (m.what == CHECKPOINT_RESTORED) {
+                twisty.get().checkpointRestored(m.obj, m.arg1 != 0);
+            }
+            else if (m.what == REWOUND) {
+                twisty.get().rewound(m.obj, m.arg1, m.arg2 != 0);
+            }
         }
     }
 
@@ -184,15 +217,22 @@ public class Twisty extends Activity {
         }
 
         public void handleMessage(Message m) {
+            if (m.obj != twisty.get().terpSession) {
+                // A game that was stopped to make way for the current one
+                return;
+            }
             switch (m.arg1) {
             case -1:
                Log.i("twistyterp", "The interpreter did not start");
+               twisty.get().checkpoint.discard();
                break;
             case 0:
                Log.i("twistyterp", "The interpreter exited normally");
+               twisty.get().checkpoint.discard();
                break;
             case 1:
                Log.i("twistyterp", "The interpreter exited abnormally");
+               twisty.get().checkpoint.discard();
                break;
             case 2:
                Log.i("twistyterp", "The interpreter was interrupted");
@@ -230,6 +270,7 @@ public class Twisty extends Activity {
         // The main 'welcome screen' window from which games are launched.
         tv = new TextBufferView(this);
         mainWin = new TextBufferIO(tv, new StyleManager());
+        mainWin.attachView();
         //final GlkEventQueue eventQueue = null;
         tv.setFocusableInTouchMode(true);
 
@@ -248,6 +289,7 @@ public class Twisty extends Activity {
 
         dialog_handler = new DialogHandler(this);
         terp_handler = new TerpHandler(this);
+        checkpoint = new Checkpoint(this);
 
         // Ensure we can write story files and save games to external storage
         checkWritePermission();
@@ -255,11 +297,10 @@ public class Twisty extends Activity {
         Uri dataSource = this.getIntent().getData();
         if (dataSource != null) {
             /* Suck down the URI we received to sdcard, launch terp on it. */
-            try {
-                startTerp(dataSource);
-            } catch (Exception e) {
-                Log.e(TAG, e.getMessage(), e);
-            }
+            startTerp(dataSource);
+        }
+        else if (checkpoint.exists()) {
+            resumeGame();
         }
         else {
             printWelcomeMessage();
@@ -271,6 +312,127 @@ public class Twisty extends Activity {
     public void onStart() {
         super.onStart();
         getSettings();  // make sure user prefs are applied
+        glkLayout.setTimerPaused(false);
+    }
+
+    /** Called whenever activity leaves the foreground. */
+    @Override
+    public void onStop() {
+        // Real-time games shouldn't keep ticking while nobody can see them.
+        glkLayout.setTimerPaused(true);
+        // The process may be killed from now on, so save the game where it is.
+        if (gameIsRunning && terpSession != null && !checkpointPending) {
+            terpSession.glk.requestCheckpoint();
+            checkpointPending = true;
+        }
+        super.onStop();
+    }
+
+    @Override
+    public void onDestroy() {
+        // Let the game finish its checkpoint before stopping it
+        if (gameIsRunning) {
+            if (checkpointPending)
+                stopAfterCheckpoint = true;
+            else
+                stopTerp();
+        }
+        super.onDestroy();
+    }
+
+    /** Called when the terp has tried to write the checkpoint asked for in onStop(). */
+    void checkpointWritten(Object from, boolean ok) {
+        if (terpSession == null || from != terpSession.glk || !checkpointPending)
+            return;
+        checkpointPending = false;
+        if (ok) {
+            checkpoint.commit(gamePath, glkLayout.getStoryText(Checkpoint.MAX_TEXT));
+            Log.i(TAG, "Checkpoint written for " + gamePath);
+        } else {
+            Log.i(TAG, "The game could not be checkpointed");
+        }
+        if (stopAfterCheckpoint) {
+            stopAfterCheckpoint = false;
+            stopTerp();
+        }
+    }
+
+    /** Called when a resumed game has tried to restore its checkpoint. */
+    void checkpointRestored(Object from, boolean ok) {
+        if (terpSession == null || from != terpSession.glk)
+            return;
+        if (ok) {
+            Log.i(TAG, "Resumed " + gamePath + " from its checkpoint");
+        } else {
+            // The game has started from the beginning instead
+            Log.i(TAG, "Could not resume " + gamePath);
+            checkpoint.discard();
+        }
+    }
+
+    /** Lets the player pick an earlier turn to go back to. */
+    private void chooseTurn() {
+        if (terpSession == null)
+            return;
+        final TwistyGlk.Turns turns = terpSession.glk.getTurns();
+        if (turns.commands.length == 0) {
+            Toast.makeText(this, "There are no turns to go back to",
+                    Toast.LENGTH_SHORT).show();
+            return;
+        }
+        // Newest first, since the player most often wants a recent one
+        final int count = turns.commands.length;
+        String[] labels = new String[count];
+        for (int i = 0; i < count; i++) {
+            int n = count - 1 - i;
+            labels[i] = (turns.first + n) + ". " + turns.commands[n];
+        }
+        final TerpSession session = terpSession;
+        new AlertDialog.Builder(this)
+            .setTitle("Go back to before...")
+            .setItems(labels, new DialogInterface.OnClickListener() {
+                public void onClick(DialogInterface dialog, int which) {
+                    if (session == terpSession)
+                        session.glk.requestRewind(turns.first + count - 1 - which);
+                }
+            })
+            .setNegativeButton("Cancel", null)
+            .show();
+    }
+
+    /** Called when the terp has tried to go back to the turn asked for in chooseTurn(). */
+    void rewound(Object from, int turn, boolean ok) {
+        if (terpSession == null || from != terpSession.glk)
+            return;
+        if (ok) {
+            Log.i(TAG, "Went back to turn " + turn);
+        } else {
+            Toast.makeText(this, "Couldn't go back to that turn",
+                    Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    /** Starts the game that was running when Twisty was last stopped. */
+    private void resumeGame() {
+        String game = checkpoint.getGame();
+        resumeNext = true;
+        if (new File(game).isAbsolute()) {
+            if (new File(game).exists()) {
+                startTerp(game);
+                return;
+            }
+        } else {
+            // A built-in game that was run from the APK
+            for (int i = 0; i < builtinGames.size(); i++) {
+                if (game.equals(builtinGames.valueAt(i))) {
+                    startTerp(builtinGames.keyAt(i));
+                    return;
+                }
+            }
+        }
+        resumeNext = false;
+        checkpoint.discard();
+        printWelcomeMessage();
     }
 
     private void printWelcomeMessage() {
@@ -441,6 +603,15 @@ public class Twisty extends Activity {
      * @param path Path to the gamefile to execute
      */
     void startTerp(String path) {
+        startTerp(path, null);
+    }
+
+    /**
+     * Start a terp thread, reading the program from part of an open file
+     * @param path Name of the game; if story is null, the gamefile's path
+     * @param story The gamefile's contents, or null to read them from path
+     */
+    void startTerp(String path, AssetFileDescriptor story) {
 
         // Notice user preferences
         //Context context = getApplicationContext();
@@ -452,45 +623,83 @@ public class Twisty extends Activity {
         showGlk();
 
         gamePath = path;
+        setTranscriptFile(path);
+
+        // Use the session prepared while the game chooser was open, if
+        // it is for this game; otherwise start one now.
+        TerpSession session = prewarmed;
+        prewarmed = null;
+        if (session == null || !session.path.equals(path) || story != null) {
+            if (session != null)
+                session.cancel();
+            session = newSession(path, story);
+        }
 
-        // Make a GLK object which encapsulates I/O between Android UI and our C library
-        glk = new TwistyGlk(this, glkLayout, dialog_handler);
+        // Hand the GLK object, which encapsulates I/O between Android UI and
+        // our C library, the layout
+        TwistyGlk twistyGlk = session.glk;
+        twistyGlk.attachLayout();
+
+        // Only one game at a time has a checkpoint
+        boolean resume = resumeNext;
+        resumeNext = false;
+        checkpointPending = false;
+        if (!resume)
+            checkpoint.discard();
+        twistyGlk.setResumeText(resume ? checkpoint.readText() : null);
+        session.setCheckpoint(checkpoint.getStateFile().getPath(), resume);
+
+        glk = twistyGlk;
         glk.setStyleHint(GlkWinType.AllTypes, GlkStyle.Normal, GlkStyleHint.Size, -2);
-        terpThread = new Thread(new Runnable() {
-               @Override
-                public void run() {
-                   String interpreter = "";
-                   if (gamePath.matches(NITFOL_EXTENSIONS))
-                       interpreter = "nitfol";
-                   else if (gamePath.matches(GIT_EXTENSIONS))
-                       interpreter = "git";
-
-                   String[] args = new String[] {interpreter, gamePath};
-                   int res = -1;
-                   if (GlkFactory.startup(glk, args)) {
-                       res = GlkFactory.run();
-                   }
-                   GlkFactory.shutdown();
-                   Message m = terp_handler.obtainMessage();
-                   m.arg1 = res;
-                   terp_handler.sendMessage(m);
-
-                   // Restarts the app. This ensures the interpreter libraries are reloaded. If we
-                   // don't do this, GlkFactory.shutdown needs to assure for every library we
-                   // integrate that its internal state is reset so that it behaves exactly the
-                   // same as if it were started fresh, preferable without leaking memory. Since
-                   // Glk doesn't specify this functionality, this means we'd need to modify each
-                   // library to accommodate this. Reloading the library avoids this issue.
-                   ProcessPhoenix.triggerRebirth(Twisty.this);
-                }
-            });
-        terpThread.start();
+        terpSession = session;
+        session.go();
         gameIsRunning = true;
     }
 
+    /** Starts a session that opens and checks the game, then waits for go(). */
+    private TerpSession newSession(String path, AssetFileDescriptor story) {
+        TwistyGlk twistyGlk = new TwistyGlk(this, glkLayout, dialog_handler);
+        TerpSession session = new TerpSession(path, story, getCacheDir(),
+                twistyGlk,
+                new TerpSession.Listener() {
+                    @Override
+                    public void onFinished(TerpSession finished, int result) {
+                        Message m = terp_handler.obtainMessage();
+                        m.arg1 = result;
+                        m.obj = finished;
+                        terp_handler.sendMessage(m);
+                    }
+                });
+        session.start();
+        return session;
+    }
+
+    /**
+     * Speculatively prepares the given game while the player is still
+     * choosing, so that starting it doesn't have to wait for the story
+     * file to be read and checked.
+     */
+    void prewarm(String path) {
+        if (prewarmed != null) {
+            if (prewarmed.path.equals(path))
+                return;
+            prewarmed.cancel();
+        }
+        prewarmed = newSession(path, null);
+    }
+
+    /** Drops the speculatively prepared game, if any. */
+    void cancelPrewarm() {
+        if (prewarmed != null) {
+            prewarmed.cancel();
+            prewarmed = null;
+        }
+    }
+
 
     /* Starts one of the 'built in' games from an android raw resource.
-       It does this by dumping the resource into /sdcard/Twisty/ (if not already there.) */
+       The interpreter reads the resource where it is in the APK; only if it
+       has been compressed is it dumped into /sdcard/Twisty/ (if not already there.) */
     void startTerp(int resource) {
 
         String gameName = builtinGames.get(resource);  // go-go-autoboxing
@@ -500,6 +709,20 @@ public class Twisty extends Activity {
         }
         Log.i(TAG, "Loading game resource: " + gameName);
 
+        // Story extensions are listed in aaptOptions.noCompress, so the
+        // resource can normally be opened as a range of the APK file.
+        AssetFileDescriptor story = null;
+        try {
+            story = getResources().openRawResourceFd(resource);
+        } catch (Resources.NotFoundException e) {
+            // Compressed after all
+        }
+        if (story != null) {
+            Log.i(TAG, "Starting game resource in place");
+            startTerp(gameName, story);
+            return;
+        }
+
         String savedGamesDir = getSavedGamesDir(true);
         if (savedGamesDir == null) {
             showDialog(DIALOG_CANT_SAVE);
@@ -540,8 +763,9 @@ public class Twisty extends Activity {
     
     /* Starts a game located at a URI (usually http:// or content://) by downloading the game to sdcard first.
        This is the method invoked by our IntentFilter to handle story files coming from the web browser
-       and other applications. */
-    void startTerp(Uri gameURI) throws IOException, MalformedURLException {
+       and other applications.  The download runs in the background; the game starts once it is
+       complete and checked. */
+    void startTerp(Uri gameURI) {
 
         /* Set up output file in same directory as saved-games. */
         String dir = getSavedGamesDir(true);
@@ -549,69 +773,51 @@ public class Twisty extends Activity {
             showDialog(DIALOG_CANT_SAVE);
             return;
         }
+        initLibrary();
+
+        final ProgressDialog pd = new ProgressDialog(Twisty.this);
+        pd.setTitle("Importing Story");
+        pd.setMessage(gameURI.getLastPathSegment());
+        pd.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        pd.setIndeterminate(true);
+        pd.setCancelable(true);
+
+        final StoryImporter importer = new StoryImporter(getContentResolver(), gameURI,
+                new File(dir), library, dialog_handler, new StoryImporter.Listener() {
+                    public void onProgress(long bytes, long total) {
+                        if (total > 0) {
+                            pd.setIndeterminate(false);
+                            pd.setMax((int) (total / 1024));
+                            pd.setProgress((int) (bytes / 1024));
+                        }
+                    }
 
-        String uriString = gameURI.toString();
-        String gameFilename = uriString.substring(uriString.lastIndexOf("/") + 1);
-        File outputFile = new File(dir, gameFilename);
-
-        // Copy the input file into our story directory, unless the input and output file
-        // would be the same. This check currently doesn't support uri's that don't contain
-        // the file path. In that case the file will be corrupted.
-        if (!((gameURI.getScheme().equals("content") || gameURI.getScheme().equals("file"))
-                && gameURI.toString().contains(outputFile.getCanonicalPath()))) {
-            FileOutputStream gameOutputStream = null;
-            try {
-                outputFile.createNewFile();
-                gameOutputStream = new FileOutputStream(outputFile);
-            } catch (IOException e) {
-                Log.i(TAG, "Failed to create file called " + gameFilename);
-                return;
-            }
-
-
-            /* Set up input from URI */
-            InputStream gameInputStream = null;
-
-            if(gameURI.getScheme().equals("content")) {
-                try {
-                    gameInputStream = getContentResolver().openInputStream(gameURI);
-                } catch (FileNotFoundException e) {
-                    Log.i(TAG, "Failed to open file: " + uriString);
-                    gameOutputStream.close();
-                    return;
-                }
-            }
-            else {
-                try {
-                    URL gameURL = new URL(uriString);
-                    URLConnection connection = gameURL.openConnection();
-                    connection.connect();
-                    gameInputStream = connection.getInputStream();
-                } catch (MalformedURLException e) {
-                    Log.i(TAG, "Received malformed URI: "+ uriString);
-                    gameOutputStream.close();
-                    return;
-                } catch (IOException e) {
-                    Log.i(TAG, "Failed to open connection to URI: " + uriString);
-                    gameOutputStream.close();
-                    return;
-                }
-            }
+                    public void onImported(String path) {
+                        pd.dismiss();
+                        Log.i(TAG, "Starting gamefile located at " + path);
+                        startTerp(path);
+                    }
 
-            try {
-                Log.i(TAG, "About to spew raw data to disk...");
-                suckstream(gameInputStream, gameOutputStream);
-            } catch (IOException e) {
-                Log.i(TAG, "Failed to copy URL contents to local file: " + uriString);
-                return;
+                    public void onFailed(String reason) {
+                        pd.dismiss();
+                        Toast.makeText(Twisty.this, reason, Toast.LENGTH_LONG).show();
+                        printWelcomeMessage();
+                    }
+                });
+        pd.setButton(DialogInterface.BUTTON_NEGATIVE, "Cancel",
+                new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        pd.cancel();
+                    }
+                });
+        pd.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            public void onCancel(DialogInterface dialog) {
+                importer.cancel();
+                printWelcomeMessage();
             }
-            Log.i(TAG, "Completed dump of raw data to disk.");
-        }
-        else
-            Log.i(TAG, "Input and output file are the same: " + outputFile.getCanonicalPath());
-
-        Log.i(TAG, "Starting gamefile located at " + outputFile.getCanonicalPath());
-        startTerp(outputFile.getCanonicalPath());
+        });
+        pd.show();
+        importer.start();
     }
 
     
@@ -642,9 +848,9 @@ public class Twisty extends Activity {
 
     /** Stops the currently running interpreter. */
     public void stopTerp() {
-        if (terpThread != null) {
-            terpThread.interrupt();
-            Log.i(TAG, "Interrupted terpThread.");
+        if (terpSession != null) {
+            terpSession.interrupt();
+            Log.i(TAG, "Interrupted terp session.");
         }
     }
 
@@ -660,6 +866,7 @@ public class Twisty extends Activity {
         menu.add(MENUGROUP_SELECT, MENU_PICK_SETTINGS, 5, "Settings").setShortcut('5', 's');
 
         //menu.add(MENUGROUP_RUNNING, MENU_RESTART, 0, "Restart").setShortcut('7', 'r');
+        menu.add(MENUGROUP_RUNNING, MENU_GO_BACK, 0, "Go Back...").setShortcut('8', 'g');
         menu.add(MENUGROUP_RUNNING, MENU_STOP, 1, "Stop").setShortcut('9', 's');
         menu.add(MENUGROUP_RUNNING, MENU_PICK_SETTINGS, 2, "Settings").setShortcut('4', 's');
 
@@ -682,10 +889,16 @@ public class Twisty extends Activity {
             // TODO:  zm.restart();
             break;
         case MENU_STOP:
+            // A stopped game isn't resumed
+            checkpointPending = false;
+            checkpoint.discard();
             stopTerp();
             // After the zmachine exits, the welcome message should show
             // again.
             break;
+        case MENU_GO_BACK:
+            chooseTurn();
+            break;
         case MENU_PICK_FILE:
             pickFile();
             break;
@@ -720,6 +933,42 @@ public class Twisty extends Activity {
          String textSizePreference = prefs.getString("PREF_TEXT_SIZE", "14");
          float textsize = Float.valueOf(textSizePreference).floatValue();
          tv.setTextSize(textsize);
+         String scrollbackPreference = prefs.getString("PREF_SCROLLBACK", "2000");
+         glkLayout.setScrollbackLimit(Integer.parseInt(scrollbackPreference));
+         glkLayout.setUseParagraphView(prefs.getBoolean("PREF_PARAGRAPH_VIEW", false));
+         glkLayout.setOutputTimingListener(
+                 prefs.getBoolean("PREF_LOG_OUTPUT_TIMING", false) ? outputTimer : null);
+    }
+
+    /** Logs the UI-thread time spent on each turn's output, so that the
+     *  story window settings can be compared. */
+    private final OutputBatcher.TimingListener outputTimer =
+        new OutputBatcher.TimingListener() {
+            private long totalNanos;
+            private int turns;
+
+            public void onTurnApplied(OutputBatcher batcher, long uiNanos, int ops) {
+                totalNanos += uiNanos;
+                turns += 1;
+                Log.i(TAG, String.format(
+                        "Output: %.2f ms of UI time for %d ops (mean %.2f ms over %d turns)",
+                        uiNanos / 1e6, ops, totalNanos / 1e6 / turns, turns));
+            }
+        };
+
+    /** Directs scrollback evicted from the story window to a transcript
+     *  file next to the game's saves, if the user asked for one.
+     */
+    private void setTranscriptFile(String gamePath) {
+        SharedPreferences prefs =
+            PreferenceManager.getDefaultSharedPreferences(getBaseContext());
+        String dir = getSavedGamesDir(true);
+        if (dir == null || !prefs.getBoolean("PREF_TRANSCRIPT", false)) {
+            glkLayout.setTranscriptFile(null);
+            return;
+        }
+        String gameName = new File(gamePath).getName();
+        glkLayout.setTranscriptFile(new File(dir, gameName + ".transcript.txt"));
     }
 
     /** Launch UI to pick a file to load and execute */
@@ -727,16 +976,37 @@ public class Twisty extends Activity {
         String storagestate = Environment.getExternalStorageState();
         if (storagestate.equals(Environment.MEDIA_MOUNTED)
                 || storagestate.equals(Environment.MEDIA_MOUNTED_READ_ONLY)) {
-            final ProgressDialog pd = ProgressDialog.show(Twisty.this,
-                    "Scanning Media", "Searching for Games...", true);
+            final String gamesDirPath = getSavedGamesDir(false);
+            if (gamesDirPath == null) {
+                showDialog(DIALOG_CANT_SAVE);
+                return;
+            }
+            initLibrary();
+            // Only make the user wait for the very first scan; after that
+            // the chooser opens from the index while it is brought up to date.
+            final ProgressDialog pd = library.hasIndex() ? null
+                    : ProgressDialog.show(Twisty.this,
+                            "Scanning Media", "Searching for Games...", true);
             Thread t = new Thread() {
                 public void run() {
-                    // populate our list of games:
-                    discovered_games = scanForGames();
-                    pd.dismiss();
-                    Message msg = new Message();
-                    msg.what = PROMPT_FOR_GAME;
-                    dialog_handler.sendMessage(msg);
+                    metadata.preload();
+                    String[] indexed = library.getGames();
+                    if (indexed != null) {
+                        discovered_games = indexed;
+                        dialog_handler.sendEmptyMessage(PROMPT_FOR_GAME);
+                    }
+                    // Load the interpreters while the player chooses
+                    GlkFactory.loadLibrary();
+                    boolean changed = library.refresh(gamesDirPath);
+                    if (pd != null) {
+                        pd.dismiss();
+                    }
+                    if (indexed == null) {
+                        discovered_games = library.getGames();
+                        dialog_handler.sendEmptyMessage(PROMPT_FOR_GAME);
+                    } else if (changed) {
+                        dialog_handler.sendEmptyMessage(GAMES_UPDATED);
+                    }
                 }
             };
             t.start();
@@ -745,6 +1015,27 @@ public class Twisty extends Activity {
             showDialog(DIALOG_NO_SDCARD); // no sdcard to scan
     }
 
+    // Creates the game index and caches shared by all instances, the first time.
+    private void initLibrary() {
+        if (library == null) {
+            File filesDir = getApplicationContext().getFilesDir();
+            library = new GameLibrary(new File(filesDir, "games.idx"));
+            metadata = new MetadataCache(new File(filesDir, "metadata.idx"));
+            int thumbSize = (int) (48 * getResources().getDisplayMetrics().density);
+            covers = new CoverCache(new File(getCacheDir(), "covers"), thumbSize,
+                    (int) (Runtime.getRuntime().maxMemory() / 16));
+        }
+    }
+
+    // Called when a rescan has found changes while the chooser may be open.
+    void updateGameList() {
+        discovered_games = library.getGames();
+        if (choosegamedialog != null && choosegamedialog.isShowing()) {
+            RadioGroup zrg = (RadioGroup) choosegamedialog.findViewById(R.id.game_radiomenu);
+            updateGameRadioButtons(zrg);
+        }
+    }
+
 
     // Return the path to the saved-games directory (typically "/sdcard/Twisty/")
     // If sdcard not present, or if /sdcard/Twisty is a file, return null.
@@ -765,37 +1056,6 @@ public class Twisty extends Activity {
         return savedir.getPath();
     }
 
-    // Helper for scanForGames():
-    // Walk DIR recursively, adding any file matching the expression in EXTENSIONS to LIST.
-    private void scanDir(File dir, ArrayList<String> list) {
-        File[] children = dir.listFiles();
-        if (children == null)
-            return;
-        for (int count = 0; count < children.length; count++) {
-            File child = children[count];
-            if (child.isFile() && child.getName().matches(EXTENSIONS))
-                list.add(child.getPath());
-            else
-                scanDir(child, list);
-        }
-    }
-
-    // Search the twisty directory (on sdcard) for any games.
-    // Return an array of absolute paths, or null on failure.
-    private String[] scanForGames() {
-        String gamesDirPath = getSavedGamesDir(false);
-        if (gamesDirPath == null) {
-            showDialog(DIALOG_CANT_SAVE);
-            return null;
-        }
-        File gameDirRoot = new File(gamesDirPath);
-        ArrayList<String> gamelist = new ArrayList<String>();
-        scanDir(gameDirRoot, gamelist);
-        String[] files = gamelist.toArray(new String[gamelist.size()]);
-        Arrays.sort(files);
-        return files;
-    }
-
     public void promptForWritefile() {
         String dir = getSavedGamesDir(true);
         if (dir == null) {
@@ -836,16 +1096,59 @@ public class Twisty extends Activity {
     private void updateGameRadioButtons(RadioGroup rg) {
         rg.removeAllViews();
         game_paths.clear();
+        game_buttons.clear();
+        metadata.cancelPending();
+        covers.cancelPending();
         int id = 0;
+        if (discovered_games == null)
+            return;
         for (String path : discovered_games) {
             RadioButton rb = new RadioButton(Twisty.this);
-            rb.setText(new File(path).getName());
+            String name = new File(path).getName();
+            StoryMetadata meta = metadata.peek(path);
+            rb.setText(meta != null ? meta.getLabel(name) : name);
+            Bitmap cover = (meta != null ? covers.peek(path, meta) : null);
+            if (cover != null)
+                setCover(rb, cover);
             rg.addView(rb);
             id = rb.getId();
             game_paths.put(id, path);
+            game_buttons.put(path, rb);
+            // Fill in (or check) the title etc. in the background
+            metadata.request(path, dialog_handler, gameMetadataListener);
+            // Keep the highlight on a game that is being prepared
+            if (prewarmed != null && prewarmed.path.equals(path))
+                rg.check(id);
         }
     }
 
+    // Updates the chooser's label for a game once its metadata has been read.
+    private final MetadataCache.Listener gameMetadataListener =
+        new MetadataCache.Listener() {
+            public void onMetadata(String path, StoryMetadata meta) {
+                RadioButton rb = game_buttons.get(path);
+                if (rb != null) {
+                    rb.setText(meta.getLabel(new File(path).getName()));
+                    covers.request(path, meta, dialog_handler, gameCoverListener);
+                }
+            }
+        };
+
+    // Shows a game's cover art in the chooser once its thumbnail is ready.
+    private final CoverCache.Listener gameCoverListener =
+        new CoverCache.Listener() {
+            public void onCover(String path, Bitmap thumbnail) {
+                RadioButton rb = game_buttons.get(path);
+                if (rb != null)
+                    setCover(rb, thumbnail);
+            }
+        };
+
+    private void setCover(RadioButton rb, Bitmap thumbnail) {
+        rb.setCompoundDrawablesWithIntrinsicBounds(
+                new BitmapDrawable(getResources(), thumbnail), null, null, null);
+    }
+
     /** Have our activity manage and persist dialogs, showing and hiding them */
     @Override
     protected Dialog onCreateDialog(int id) {
@@ -930,14 +1233,45 @@ public class Twisty extends Activity {
             updateGameRadioButtons(zrg);
             zrg.setOnCheckedChangeListener(new OnCheckedChangeListener() {
                 public void onCheckedChanged(RadioGroup group, int checkedId) {
-                    dismissDialog(DIALOG_CHOOSE_GAME);
+                    // Get the highlighted game ready in case it is chosen
                     String path = (String) game_paths.get(checkedId);
+                    if (path != null) {
+                        prewarm(path);
+                    }
+                }
+            });
+            android.widget.Button chooseok = (Button) choosegamedialog.findViewById(R.id.chooseokbutton);
+            chooseok.setOnClickListener(new View.OnClickListener() {
+                public void onClick(View v) {
+                    android.widget.RadioGroup zrg = (RadioGroup) choosegamedialog.findViewById(R.id.game_radiomenu);
+                    dismissDialog(DIALOG_CHOOSE_GAME);
+                    String path = (String) game_paths.get(zrg.getCheckedRadioButtonId());
                     if (path != null) {
                         stopTerp();
                         startTerp(path);
+                    } else {
+                        cancelPrewarm();
                     }
                 }
             });
+            android.widget.Button choosecancel = (Button) choosegamedialog.findViewById(R.id.choosecancelbutton);
+            choosecancel.setOnClickListener(new View.OnClickListener() {
+                public void onClick(View v) {
+                    dismissDialog(DIALOG_CHOOSE_GAME);
+                    cancelPrewarm();
+                }
+            });
+            choosegamedialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+                public void onCancel(DialogInterface dialog) {
+                    cancelPrewarm();
+                }
+            });
+            choosegamedialog.setOnDismissListener(new DialogInterface.OnDismissListener() {
+                public void onDismiss(DialogInterface dialog) {
+                    metadata.cancelPending();
+                    covers.cancelPending();
+                }
+            });
             return choosegamedialog;
 
         case DIALOG_CANT_SAVE:
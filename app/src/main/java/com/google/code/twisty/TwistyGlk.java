@@ -16,13 +16,17 @@
 package com.google.code.twisty;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.brickshadow.roboglk.BlorbResource;
 import org.brickshadow.roboglk.Glk;
+import org.brickshadow.roboglk.GlkEventType;
 import org.brickshadow.roboglk.GlkFileMode;
 import org.brickshadow.roboglk.GlkGestalt;
 import org.brickshadow.roboglk.GlkLayout;
 import org.brickshadow.roboglk.GlkSChannel;
+import org.brickshadow.roboglk.GlkStyle;
 import org.brickshadow.roboglk.GlkWinType;
 import org.brickshadow.roboglk.GlkWindow;
 import org.brickshadow.roboglk.util.GlkEventQueue;
@@ -40,15 +44,140 @@ public class TwistyGlk implements Glk {
     private final Handler twistyHandler;
     
     private final GlkLayout glkLayout;
+
+    // Shown in the story window if the game resumes from a checkpoint
+    private volatile String resumeText;
+
+    // The commands of the turns the game can go back to, by turn number
+    // less one; guarded by itself
+    private final List<String> turns = new ArrayList<String>();
+    private int firstTurn = 1;
     
     public TwistyGlk(Activity activity, GlkLayout glkLayout, Handler msgHandler) {
         //this.activity = activity;
         this.twistyHandler = msgHandler;
         eventQueue = new GlkEventQueue();
         this.glkLayout = glkLayout;
+    }
+
+    /**
+     * Hands the layout over to this object's windows and events,
+     * closing any windows left by an earlier game. Call this on the
+     * UI thread before the interpreter opens any windows; it need not
+     * have been called before {@code GlkFactory.startup()}.
+     */
+    public void attachLayout() {
         glkLayout.initialize(eventQueue);
     }
     
+    /**
+     * Sets the text to show in place of whatever the game prints while
+     * it starts up, if it resumes from its checkpoint.
+     */
+    public void setResumeText(String text) {
+        resumeText = text;
+    }
+
+    /**
+     * Asks the interpreter to write a checkpoint the next time it waits
+     * for input. Call this on the UI thread; the result is sent to
+     * Twisty as a CHECKPOINT_WRITTEN message.
+     */
+    public void requestCheckpoint() {
+        eventQueue.putEvent(GlkEventType.Checkpoint, null, 0, 0);
+    }
+
+    @Override
+    public void checkpointWritten(boolean ok) {
+        Message.obtain(twistyHandler, Twisty.CHECKPOINT_WRITTEN,
+                ok ? 1 : 0, 0, this).sendToTarget();
+    }
+
+    @Override
+    public void checkpointRestored(boolean ok) {
+        String text = resumeText;
+        resumeText = null;
+        if (ok && text != null && mainWin != null) {
+            mainWin.clear();
+            mainWin.setStyle(GlkStyle.Normal);
+            mainWin.print(text);
+        }
+        Message.obtain(twistyHandler, Twisty.CHECKPOINT_RESTORED,
+                ok ? 1 : 0, 0, this).sendToTarget();
+    }
+
+    /**
+     * A snapshot of the turns the game can go back to.
+     */
+    public static class Turns {
+        /** The number of the first turn in {@link #commands}. */
+        public final int first;
+        /** The command entered in each turn, oldest first. */
+        public final String[] commands;
+
+        Turns(int first, String[] commands) {
+            this.first = first;
+            this.commands = commands;
+        }
+    }
+
+    /**
+     * Returns the turns entered so far that the game can still go back
+     * to. Safe to call from any thread.
+     */
+    public Turns getTurns() {
+        synchronized (turns) {
+            int first = Math.max(firstTurn, 1);
+            String[] commands;
+            if (first > turns.size()) {
+                commands = new String[0];
+            } else {
+                List<String> reachable = turns.subList(first - 1, turns.size());
+                commands = reachable.toArray(new String[reachable.size()]);
+            }
+            return new Turns(first, commands);
+        }
+    }
+
+    /**
+     * Asks the interpreter to go back to the given turn, taking back
+     * its command and all the ones after it, the next time it waits for
+     * input. Call this on the UI thread; the result is sent to Twisty
+     * as a REWOUND message.
+     */
+    public void requestRewind(int turn) {
+        eventQueue.putEvent(GlkEventType.Rewind, null, turn, 0);
+    }
+
+    @Override
+    public void turnEntered(int turn, int firstTurn, String command) {
+        synchronized (turns) {
+            forgetTurns(turn);
+            turns.add(command);
+            this.firstTurn = firstTurn;
+        }
+    }
+
+    @Override
+    public void rewound(int turn, boolean ok) {
+        if (ok) {
+            synchronized (turns) {
+                forgetTurns(turn);
+            }
+        }
+        Message.obtain(twistyHandler, Twisty.REWOUND,
+                turn, ok ? 1 : 0, this).sendToTarget();
+    }
+
+    // Drops the given turn and all the ones after it. Call with the
+    // turns lock held.
+    private void forgetTurns(int turn) {
+        int keep = Math.max(turn - 1, 0);
+        while (turns.size() > keep) {
+            turns.remove(turns.size() - 1);
+        }
+    }
+
     @Override
     public void cancelTimer() {
         eventQueue.cancelTimer();
@@ -96,8 +225,7 @@ public class TwistyGlk implements Glk {
 
     @Override
     public void poll(int[] event) {
-        Message msg = eventQueue.poll();
-        GlkEventQueue.translateEvent(msg, event);
+        eventQueue.poll(event);
     }
 
     @Override
@@ -148,8 +276,7 @@ public class TwistyGlk implements Glk {
 
     @Override
     public void select(int[] event) {
-        Message msg = eventQueue.select();
-        GlkEventQueue.translateEvent(msg, event);
+        eventQueue.select(event);
     }
 
     @Override
@@ -162,6 +289,9 @@ public class TwistyGlk implements Glk {
 
     @Override
     public void windowClose(GlkWindow win) {
+        if (win == mainWin) {
+            mainWin = null;
+        }
         glkLayout.removeGlkWindow(win);
     }
     
@@ -180,6 +310,11 @@ public class TwistyGlk implements Glk {
         wins[0] = newWins[0];
         // Pair window
         wins[1] = newWins[1];
+
+        // The first text buffer is the story window
+        if (mainWin == null && wintype == GlkWinType.TextBuffer) {
+            mainWin = newWins[0];
+        }
     }
 
 }
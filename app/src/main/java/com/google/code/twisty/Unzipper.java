@@ -1,164 +1,301 @@
-// Copyright 2010 Google Inc.
-//
-// This program is free software: you can redistribute it and/or modify
-// it under the terms of the GNU General Public License as published by
-// the Free Software Foundation, either version 3 of the License, or
-// (at your option) any later version.
-//
-// This program is distributed in the hope that it will be useful,
-// but WITHOUT ANY WARRANTY; without even the implied warranty of
-// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
-// GNU General Public License for more details.
-//
-// You should have received a copy of the GNU General Public License
-// along with this program.  If not, see <http://www.gnu.org/licenses/>.
-
-package com.google.code.twisty;
-
-import android.app.Activity;
-import android.content.Intent;
-import android.os.Bundle;
-import android.os.Environment;
-import android.net.Uri;
-import android.util.Log;
-import android.widget.ProgressBar;
-import android.widget.Toast;
-
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.Enumeration;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
-import java.util.zip.ZipInputStream;
-
-/**
- * Unzips .z* files to /sdcard/Twisty/ and then starts Twisty.
- * 
- * @author clchen@google.com (Charles L. Chen)
- */
-public class Unzipper extends Activity {
-    private static String TAG = "Twisty Unzipper";
-
-    private Uri dataSource;
-
-    private Unzipper self;
-
-    @Override
-    public void onCreate(Bundle icicle) {
-        super.onCreate(icicle);
-        dataSource = this.getIntent().getData();
-        self = this;
-        setContentView(new ProgressBar(this));
-        (new Thread(new UnzipThread())).start();
-    }
-
-    public class UnzipThread implements Runnable {
-        public void run() {
-            final boolean unzipOk = unzip(dataSource);
-            Runnable showMessage = new Runnable() {
-                public void run() {
-                    if (unzipOk) {
-                        Toast.makeText(self, R.string.unzip_success, Toast.LENGTH_LONG).show();
-                    } else {
-                        Toast.makeText(self, R.string.unzip_fail, Toast.LENGTH_LONG).show();
-                    }
-                }
-            };
-            self.runOnUiThread(showMessage);
-            Intent intent = new Intent(self, Twisty.class);
-            startActivity(intent);
-            finish();
-        }
-    }
-
-    public boolean unzip(Uri zipUri) {
-        boolean wasValid = false;
-
-        if(zipUri.getScheme().equals("content")) {
-            ZipInputStream zipStream = null;
-            try {
-                zipStream = new ZipInputStream(getContentResolver().openInputStream(zipUri));
-                while (zipStream.available() > 0) {
-                    ZipEntry entry = zipStream.getNextEntry();
-                    String name = entry.getName();
-                    wasValid |= unzip(zipStream, name);
-                }
-            }
-            catch (FileNotFoundException e) {
-                Log.i(TAG, "Failed to open zip file: " + zipUri.toString());
-            }
-            catch (IOException e) {
-                Log.i(TAG, "Error reading zip file: " + zipUri.toString());
-            }
-            finally {
-                try {
-                    if (zipStream != null)
-                        zipStream.close();
-                } catch (IOException e) {}
-
-            }
-        }
-        else {
-            ZipFile zip = null;
-            try {
-                String filename = zipUri.toString().replaceFirst("file://", "");
-                zip = new ZipFile(filename);
-                Enumeration<? extends ZipEntry> zippedFiles = zip.entries();
-                while (zippedFiles.hasMoreElements()) {
-                    ZipEntry entry = zippedFiles.nextElement();
-                    InputStream is = zip.getInputStream(entry);
-                    String name = entry.getName();
-                    wasValid |= unzip(is, name);
-                }
-            } catch (IOException e) {
-                Log.i(TAG, "Failed to read zip file: " + zipUri.toString());
-            } finally {
-                try {
-                    if (zip != null)
-                        zip.close();
-                } catch (IOException e) {}
-            }
-        }
-
-        return wasValid;
-    }
-
-    private boolean unzip(InputStream is, String name) {
-        try {
-            if(name.matches(Twisty.EXTENSIONS)) {
-                File outputFile = new File(Environment.getExternalStorageDirectory()
-                        + "/Twisty/" + name);
-                String outputPath = outputFile.getCanonicalPath();
-                name = outputPath.substring(outputPath.lastIndexOf("/") + 1);
-                outputPath = outputPath.substring(0, outputPath.lastIndexOf("/"));
-                File outputDir = new File(outputPath);
-                outputDir.mkdirs();
-                outputFile = new File(outputPath, name);
-                outputFile.createNewFile();
-                FileOutputStream out = new FileOutputStream(outputFile);
-
-                byte buf[] = new byte[16384];
-                do {
-                    int numread = is.read(buf);
-                    if (numread <= 0) {
-                        break;
-                    } else {
-                        out.write(buf, 0, numread);
-                    }
-                } while (true);
-
-                out.close();
-            }
-        }
-        catch(IOException e) {
-            Log.i(TAG, "Failed to unzip file: " + name);
-            return false;
-        }
-
-        return true;
-    }
-
-}
+// Copyright 2010 Google Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.google.code.twisty;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.net.Uri;
+import android.util.Log;
+import android.widget.LinearLayout;
+import android.widget.ProgressBar;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Unzips .z* files to /sdcard/Twisty/ and then starts Twisty.
+ * <p>
+ * Only the entries with story extensions are extracted. A zip that
+ * arrives as a content stream is read straight through; a zip file on
+ * disk is opened for random access, and its stories are inflated on
+ * several threads at once. Each entry is written to a temporary file
+ * and renamed into place when it is complete.
+ *
+ * @author clchen@google.com (Charles L. Chen)
+ */
+public class Unzipper extends Activity {
+    private static String TAG = "Twisty Unzipper";
+
+    private static final Pattern STORY = Pattern.compile(Twisty.EXTENSIONS);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /* The least time between progress updates, in milliseconds. */
+    private static final long PROGRESS_INTERVAL = 250;
+
+    // Each extracting thread reuses one buffer for all its entries
+    private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    private Uri dataSource;
+
+    private Unzipper self;
+
+    private TextView status;
+
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private long startTime;
+    private volatile long lastReport;
+
+    @Override
+    public void onCreate(Bundle icicle) {
+        super.onCreate(icicle);
+        dataSource = this.getIntent().getData();
+        self = this;
+        LinearLayout ll = new LinearLayout(this);
+        ll.setOrientation(LinearLayout.VERTICAL);
+        ll.addView(new ProgressBar(this));
+        status = new TextView(this);
+        ll.addView(status);
+        setContentView(ll);
+        (new Thread(new UnzipThread())).start();
+    }
+
+    public class UnzipThread implements Runnable {
+        public void run() {
+            final boolean unzipOk = unzip(dataSource) > 0;
+            Runnable showMessage = new Runnable() {
+                public void run() {
+                    if (unzipOk) {
+                        Toast.makeText(self, R.string.unzip_success, Toast.LENGTH_LONG).show();
+                    } else {
+                        Toast.makeText(self, R.string.unzip_fail, Toast.LENGTH_LONG).show();
+                    }
+                }
+            };
+            self.runOnUiThread(showMessage);
+            Intent intent = new Intent(self, Twisty.class);
+            startActivity(intent);
+            finish();
+        }
+    }
+
+    /**
+     * Extracts the stories in a zip file into the Twisty directory.
+     *
+     * @return the number of stories extracted
+     */
+    public int unzip(Uri zipUri) {
+        String dir = Twisty.getSavedGamesDir(true);
+        if (dir == null) {
+            Log.i(TAG, "No directory to unzip into");
+            return 0;
+        }
+        File root;
+        try {
+            root = new File(dir).getCanonicalFile();
+        } catch (IOException e) {
+            Log.i(TAG, "Cannot resolve " + dir);
+            return 0;
+        }
+
+        startTime = SystemClock.elapsedRealtime();
+        bytesWritten.set(0);
+        int found = 0;
+        if (zipUri.getScheme().equals("file")) {
+            found = unzipFile(new File(zipUri.getPath()), root);
+        } else {
+            try {
+                found = unzipStream(getContentResolver().openInputStream(zipUri), root);
+            } catch (FileNotFoundException e) {
+                Log.i(TAG, "Failed to open zip file: " + zipUri.toString());
+            }
+        }
+
+        long elapsed = Math.max(1, SystemClock.elapsedRealtime() - startTime);
+        long bytes = bytesWritten.get();
+        Log.i(TAG, "Extracted " + found + " stories, " + bytes / 1024 + " KB in "
+                + elapsed + " ms (" + bytes * 1000 / 1024 / elapsed + " KB/s)");
+        return found;
+    }
+
+    /* Reads a zip from start to end; the entries can only be reached in order. */
+    private int unzipStream(InputStream in, File root) {
+        int found = 0;
+        ZipInputStream zipStream = null;
+        try {
+            zipStream = new ZipInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+            ZipEntry entry;
+            while ((entry = zipStream.getNextEntry()) != null) {
+                if (isStory(entry) && extract(zipStream, entry.getName(), root)) {
+                    found++;
+                }
+            }
+        } catch (IOException e) {
+            Log.i(TAG, "Error reading zip file: " + e.getMessage());
+        } finally {
+            try {
+                if (zipStream != null)
+                    zipStream.close();
+                else
+                    in.close();
+            } catch (IOException e) {}
+        }
+        return found;
+    }
+
+    /* Extracts the stories from a zip on disk, several at a time. */
+    private int unzipFile(File file, final File root) {
+        final ZipFile zip;
+        try {
+            zip = new ZipFile(file);
+        } catch (IOException e) {
+            Log.i(TAG, "Failed to read zip file: " + file);
+            return 0;
+        }
+
+        ExecutorService pool = null;
+        try {
+            List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+            Enumeration<? extends ZipEntry> zippedFiles = zip.entries();
+            while (zippedFiles.hasMoreElements()) {
+                final ZipEntry entry = zippedFiles.nextElement();
+                if (!isStory(entry))
+                    continue;
+                tasks.add(new Callable<Boolean>() {
+                    public Boolean call() throws IOException {
+                        InputStream is = zip.getInputStream(entry);
+                        try {
+                            return extract(is, entry.getName(), root);
+                        } finally {
+                            is.close();
+                        }
+                    }
+                });
+            }
+            if (tasks.isEmpty())
+                return 0;
+
+            int threads = Math.min(tasks.size(), Math.max(2, Math.min(4,
+                    Runtime.getRuntime().availableProcessors())));
+            pool = Executors.newFixedThreadPool(threads);
+            int found = 0;
+            for (Future<Boolean> f : pool.invokeAll(tasks)) {
+                try {
+                    if (f.get())
+                        found++;
+                } catch (ExecutionException e) {
+                    Log.i(TAG, "Failed to unzip entry: " + e.getCause().getMessage());
+                }
+            }
+            return found;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        } finally {
+            if (pool != null)
+                pool.shutdownNow();
+            try {
+                zip.close();
+            } catch (IOException e) {}
+        }
+    }
+
+    private static boolean isStory(ZipEntry entry) {
+        return !entry.isDirectory() && STORY.matcher(entry.getName()).matches();
+    }
+
+    /* Copies one entry to its place under root. Doesn't close the stream. */
+    private boolean extract(InputStream is, String name, File root) {
+        File temp = null;
+        try {
+            File outputFile = new File(root, name).getCanonicalFile();
+            if (!outputFile.getPath().startsWith(root.getPath() + File.separator)) {
+                Log.i(TAG, "Skipping entry outside the games folder: " + name);
+                return false;
+            }
+            outputFile.getParentFile().mkdirs();
+            temp = new File(outputFile.getPath() + ".part");
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                byte buf[] = buffers.get();
+                int numread;
+                while ((numread = is.read(buf)) != -1) {
+                    out.write(buf, 0, numread);
+                    addProgress(numread);
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(outputFile)) {
+                Log.i(TAG, "Failed to move unzipped file into place: " + name);
+                return false;
+            }
+            temp = null;
+        }
+        catch(IOException e) {
+            Log.i(TAG, "Failed to unzip file: " + name);
+            return false;
+        }
+        finally {
+            if (temp != null)
+                temp.delete();
+        }
+
+        return true;
+    }
+
+    private void addProgress(int bytes) {
+        final long total = bytesWritten.addAndGet(bytes);
+        long now = SystemClock.elapsedRealtime();
+        if (now - lastReport < PROGRESS_INTERVAL)
+            return;
+        lastReport = now;
+        final long elapsed = Math.max(1, now - startTime);
+        runOnUiThread(new Runnable() {
+            public void run() {
+                status.setText(total / 1024 + " KB unzipped ("
+                        + total * 1000 / 1024 / elapsed + " KB/s)");
+            }
+        });
+    }
+
+}
@@ -55,8 +55,7 @@ public interface Glk {
      * as:
      * <pre>
      *   public void select(int[] event) {
-     *       Message msg = eventQueue.select();
-     *       GlkEventQueue.translateEvent(msg, event);
+     *       eventQueue.select(event);
      *   }
      * </pre>
      * 
@@ -78,8 +77,7 @@ public interface Glk {
      * as:
      * <pre>
      *   public void poll(int[] event) {
-     *       Message msg = eventQueue.poll();
-     *       GlkEventQueue.translateEvent(msg, event);
+     *       eventQueue.poll(event);
      *   }
      * </pre>
      * 
@@ -254,4 +252,59 @@ public interface Glk {
     *           True if the image information could be determined.
     */
    boolean getImageInfo(BlorbResource bres, int[] dim);
+   
+   /**
+    * Reports a checkpoint requested by a
+    * {@link GlkEventType#Checkpoint} event. A checkpoint can't be
+    * written if the game was not waiting for input at a point the
+    * interpreter can resume from.
+    * 
+    * @param ok
+    *           True if the checkpoint file was replaced.
+    */
+   void checkpointWritten(boolean ok);
+   
+   /**
+    * Reports whether the game resumed from its checkpoint (see
+    * {@link GlkFactory#setCheckpoint(String, boolean)}). If it did,
+    * the game is waiting for input where the checkpoint was taken, and
+    * anything it printed while starting up has been flushed to its
+    * windows. Otherwise the story carries on from its beginning.
+    * 
+    * @param ok
+    *           True if the game resumed from the checkpoint.
+    */
+   void checkpointRestored(boolean ok);
+   
+   /**
+    * Reports a line of input entered by the player, which makes a new
+    * turn. Turns are numbered from 1; a turn that has been taken back
+    * (by the game's own undo, or by a {@link GlkEventType#Rewind}
+    * event) is forgotten, and its number is given to the next line
+    * entered. So any turns numbered {@code turn} or more that were
+    * reported before are gone.
+    * <p>
+    * Only interpreters that can go back to earlier turns report them.
+    * 
+    * @param turn
+    *           The number of the new turn.
+    * @param firstTurn
+    *           The earliest turn that can still be gone back to; the
+    *           interpreter forgets the oldest ones as its undo memory
+    *           fills up.
+    * @param command
+    *           The line that was entered.
+    */
+   void turnEntered(int turn, int firstTurn, String command);
+   
+   /**
+    * Reports the outcome of a {@link GlkEventType#Rewind} event. If
+    * the game went back, the turn and all the ones after it are gone.
+    * 
+    * @param turn
+    *           The turn that was asked for.
+    * @param ok
+    *           True if the game went back to the turn.
+    */
+   void rewound(int turn, boolean ok);
 }
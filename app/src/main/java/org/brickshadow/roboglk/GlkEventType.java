@@ -137,4 +137,33 @@ public interface GlkEventType {
      * </ul>
      */
     int HyperLink = 8;
+    
+    /**
+     * Not a Glk event: asks the interpreter to write a checkpoint
+     * (see {@link GlkFactory#setCheckpoint(String, boolean)}). GlkJNI
+     * handles it inside {@code glk_select} and goes on waiting, so the
+     * game never sees it. Only {@code select} returns it.
+     * <ul>
+     * <li>{@code event[1]}: 0</li>
+     * <li>{@code event[2]}: 0</li>
+     * <li>{@code event[3]}: 0</li>
+     * </ul>
+     */
+    int Checkpoint = 0x100;
+    
+    /**
+     * Not a Glk event: asks the interpreter to go back to a turn, as
+     * numbered by {@link Glk#turnEntered(int, int, String)}, taking
+     * back its command and all the ones after it in one step. GlkJNI
+     * handles it inside {@code glk_select}. If the interpreter can go
+     * back, the game sees an event of type {@link #None} and carries
+     * on from that turn; otherwise it goes on waiting. Either way the
+     * result is reported to {@link Glk#rewound(int, boolean)}.
+     * <ul>
+     * <li>{@code event[1]}: the turn to go back to</li>
+     * <li>{@code event[2]}: 0</li>
+     * <li>{@code event[3]}: 0</li>
+     * </ul>
+     */
+    int Rewind = 0x101;
 }
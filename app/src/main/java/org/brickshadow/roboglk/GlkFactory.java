@@ -53,6 +53,13 @@ public class GlkFactory {
         System.loadLibrary("twistyterps");
     }
 
+    /**
+     * Does nothing except make sure that the native library has been
+     * loaded. Calling this on a background thread ahead of time saves
+     * the first {@link #startup(Glk, String[])} from loading it.
+     */
+    public static void loadLibrary() {}
+
     /**
      * Call this method to initialize the interpreter. It is an error
      * to pass null arguments.
@@ -71,6 +78,21 @@ public class GlkFactory {
      *         initialized.
      */
     public static native boolean startup(Glk glk, String[] args);
+
+    /**
+     * Like {@link #startup(Glk, String[])}, but the story is read from
+     * part of an open file rather than from the file named by the last
+     * element of {@code args}, which only identifies it. The range is
+     * mapped into memory and used in place, so it can be, for example,
+     * an uncompressed resource inside the application package. The
+     * descriptor may be closed once this method returns.
+     *
+     * @param fd a descriptor of the file that holds the story
+     * @param offset the offset of the story in the file
+     * @param length the length of the story
+     */
+    public static native boolean startup(Glk glk, String[] args, int fd,
+            long offset, long length);
     
     /**
      * Call this method to start the interpreter. All Glk bridge methods
@@ -81,11 +103,35 @@ public class GlkFactory {
      */
     public static native int run();
     
+    /**
+     * Sets the file that checkpoints of the game are written to. Call
+     * this after {@link #startup(Glk, String[])} and before
+     * {@link #run()}; the setting lasts until {@link #shutdown()}.
+     * <p>
+     * A checkpoint is written whenever a {@link GlkEventType#Checkpoint}
+     * event is selected while the game is waiting for input, and the
+     * result is reported to {@link Glk#checkpointWritten(boolean)}. The
+     * file is replaced atomically, so an interrupted checkpoint leaves
+     * the previous one in place.
+     * <p>
+     * If {@code resume} is true, the interpreter tries to carry on from
+     * the checkpoint already in the file instead of starting the story
+     * afresh, and reports the outcome to
+     * {@link Glk#checkpointRestored(boolean)}.
+     *
+     * @param path the checkpoint file, or {@code null} for none
+     * @param resume true to resume from the checkpoint in the file
+     */
+    public static native void setCheckpoint(String path, boolean resume);
+
 
     /**
      * Call this method to cleanly shutdown the interpreter. Don't
      * forget to call it if {@link #startup(Glk, String[])} returns
      * false.
+     * <p>
+     * After shutdown the interpreter's state has been reset, and
+     * another game may be started with {@link #startup(Glk, String[])}.
      */
     public static native void shutdown();
 }
@@ -70,6 +70,9 @@ public abstract class GlkGraphicsWindow implements GlkWindow {
     @Override
     public final void print(String str) {}
 
+    @Override
+    public final void printCommands(ByteBuffer cmds, int len) {}
+
     @Override
     public final void requestCharEvent(boolean unicode) {}
 
@@ -42,6 +42,10 @@ abstract class GlkInvisibleWindow implements GlkWindow {
     /** Does nothing. */
     public final void print(String str) {}
     
+    @Override
+    /** Does nothing. */
+    public final void printCommands(ByteBuffer cmds, int len) {}
+    
     @Override
     /** Does nothing. */
     public final void requestCharEvent(boolean unicode) {}
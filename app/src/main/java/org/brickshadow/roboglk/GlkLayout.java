@@ -1,42 +1,74 @@
 package org.brickshadow.roboglk;
 
 
+import org.brickshadow.roboglk.io.ParagraphFormatter;
 import org.brickshadow.roboglk.io.StyleManager;
 import org.brickshadow.roboglk.io.TextBufferIO;
 import org.brickshadow.roboglk.io.TextGridIO;
+import org.brickshadow.roboglk.io.TextIO;
 import org.brickshadow.roboglk.util.GlkEventQueue;
+import org.brickshadow.roboglk.util.OutputBatcher;
 import org.brickshadow.roboglk.util.UISync;
+import org.brickshadow.roboglk.view.ParagraphBufferView;
 import org.brickshadow.roboglk.view.TextBufferView;
 import org.brickshadow.roboglk.view.TextGridView;
 
 import android.app.Activity;
 import android.graphics.Canvas;
 import android.graphics.drawable.Drawable;
+import android.os.Handler;
 import android.util.TypedValue;
 import android.view.View;
 import android.view.ViewGroup;
 
 import com.google.code.twisty.R;
 
+import java.io.File;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class GlkLayout extends ViewGroup {
     private WindowNode root;
     private HashMap<GlkWindow, WindowNode> windows;
     private volatile UISync uiWait;
-    private volatile Window tempWindow;
+    private volatile View tempView;
     private GlkEventQueue queue;
     private Activity activity;
 
+    /* Window operations are queued to the UI thread without waiting;
+     * sync() waits for the ones still pending.
+     */
+    private final Handler uiHandler;
+    private final AtomicInteger pendingOps = new AtomicInteger();
+    private volatile boolean layoutPending;
+
+    /* Views made ahead of time on the UI thread, so that the
+     * interpreter can open a window without waiting for one.
+     */
+    private final AtomicReference<TextBufferView> spareBufferView =
+        new AtomicReference<TextBufferView>();
+    private final AtomicReference<TextGridView> spareGridView =
+        new AtomicReference<TextGridView>();
+
     private StyleManager.Style[] bufferStyles;
     private StyleManager.Style[] gridStyles;
 
+    private volatile boolean useParagraphView;
+    private volatile OutputBatcher.TimingListener outputTimingListener;
+    private volatile int scrollbackParagraphs;
+    private File transcriptFile;
+    private TextBufferIO transcriptOwner;
+    private TextBufferIO storyIO;
+    private boolean timerPaused;
+
     public GlkLayout(Activity activity) {
         super(activity);
         this.activity = activity;
         this.root = null;
         this.uiWait = UISync.getInstance();
         this.windows = new HashMap<>();
+        this.uiHandler = new Handler(activity.getMainLooper());
 
         // Enables onDraw override
         this.setWillNotDraw(false);
@@ -44,84 +76,185 @@ public class GlkLayout extends ViewGroup {
 
     public void initialize(GlkEventQueue queue) {
         this.queue = queue;
+        queue.setTimerPaused(timerPaused);
         this.bufferStyles = StyleManager.newDefaultStyles();
         this.gridStyles = StyleManager.newDefaultStyles();
         if (root != null) {
             root.close();
             root = null;
         }
+        queue.setLayoutBarrier(new Runnable() {
+            @Override
+            public void run() {
+                sync();
+            }
+        });
+        fillSpareViews();
+    }
+
+    /**
+     * Chooses whether text buffer windows opened from now on use a
+     * {@link ParagraphBufferView}, which only lays out the paragraphs on
+     * screen, instead of a plain {@link TextBufferView}.
+     */
+    public void setUseParagraphView(boolean use) {
+        useParagraphView = use;
+    }
+
+    /**
+     * Sets a listener for the UI-thread time that text buffer windows
+     * opened from now on spend on each turn's output, or {@code null}
+     * to stop measuring it.
+     */
+    public void setOutputTimingListener(OutputBatcher.TimingListener listener) {
+        outputTimingListener = listener;
+    }
+
+    /**
+     * Limits the number of paragraphs kept by text buffer windows,
+     * including those that are already open.
+     *
+     * @param paragraphs the maximum number of paragraphs, or 0 for no limit
+     */
+    public void setScrollbackLimit(int paragraphs) {
+        scrollbackParagraphs = paragraphs;
+        for (WindowNode node : windows.values()) {
+            if (node instanceof Window) {
+                TextIO io = ((Window) node).getIO();
+                if (io instanceof TextBufferIO) {
+                    ((TextBufferIO) io).setScrollbackLimit(paragraphs, 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the file that receives text evicted from the scrollback. Only
+     * one text buffer window (normally the story window, since it is
+     * opened first) writes to the file at a time.
+     *
+     * @param file the transcript file, or {@code null} to discard evicted
+     *             text
+     */
+    public void setTranscriptFile(File file) {
+        transcriptFile = file;
+        if (transcriptOwner != null) {
+            transcriptOwner.setTranscriptFile(file);
+        }
+    }
+
+    /**
+     * Returns the end of the story window's text, or {@code null} if
+     * there is no text buffer window. The story window is the first one
+     * opened. Call this on the UI thread.
+     *
+     * @param maxChars the most characters to return
+     */
+    public String getStoryText(int maxChars) {
+        return (storyIO == null ? null : storyIO.getTextTail(maxChars));
+    }
+
+    /**
+     * Suspends or resumes Glk timer events. The activity should pause
+     * them while it is stopped, so that a real-time game does not keep
+     * running in the background.
+     */
+    public void setTimerPaused(boolean paused) {
+        timerPaused = paused;
+        if (queue != null) {
+            queue.setTimerPaused(paused);
+        }
     }
 
+    /**
+     * Opens a window. The window objects are created right away, on the
+     * calling thread, but the window is added to the layout later on the
+     * UI thread; see {@link #sync()}.
+     */
     public GlkWindow[] addGlkWindow(final GlkWindow splitwin, final int method, final int size, final int wintype, final int id) {
-        uiWait.waitFor(new Runnable() {
+        final Window newWindow = createWindow(wintype, id);
+        if (newWindow == null)
+            return new GlkWindow[] { null, null };
+
+        final PairWindow newPairWindow =
+            (splitwin == null ? null : new PairWindow(method, size));
+        postOp(new Runnable() {
             public void run() {
-                tempWindow = addGlkWindowInternal(splitwin, method, size, wintype, id);
-                uiWait.stopWaiting(null);
+                attachWindow(splitwin, newWindow, newPairWindow);
             }
         });
 
-        if (tempWindow == null)
-            return new GlkWindow[] { null, null };
-
-        return new GlkWindow[] { tempWindow.window, tempWindow.parent };
+        return new GlkWindow[] { newWindow.window, newPairWindow };
     }
 
-    private Window addGlkWindowInternal(GlkWindow splitwin, int method, int size, final int wintype, final int id) {
+    private void attachWindow(GlkWindow splitwin, Window newWindow, PairWindow newPairWindow) {
+        WindowNode splitNode = (splitwin == null ? null : windows.get(splitwin));
+
         // Not specifying a split window when windows exist is not allowed
-        if (splitwin == null && root != null)
-            return null;
+        if ((splitwin == null && root != null) || (splitwin != null && splitNode == null)) {
+            newWindow.close();
+            return;
+        }
 
-        Window newWindow = createWindow(wintype, id);
-        if (newWindow == null)
-            return null;
+        TextIO io = newWindow.getIO();
+        io.attachView();
+        if (io instanceof TextBufferIO) {
+            ((TextBufferIO) io).setScrollbackLimit(scrollbackParagraphs, 0);
+        }
+        addView(newWindow.getView());
+        windows.put(newWindow.getGlkWindow(), newWindow);
+        if (io instanceof TextBufferIO && storyIO == null) {
+            storyIO = (TextBufferIO) io;
+        }
+        if (io instanceof TextBufferIO && transcriptFile != null && transcriptOwner == null) {
+            transcriptOwner = (TextBufferIO) io;
+            transcriptOwner.setTranscriptFile(transcriptFile);
+        }
 
-        if (splitwin == null) {
+        if (splitNode == null) {
             root = newWindow;
         }
         else {
-            WindowNode splitNode = windows.get(splitwin);
-            if (splitNode == root) {
-                PairWindow newPairWindow = createPairWindow(splitNode, newWindow, method, size);
+            //	Replace the specified window with a new pair window containing the old and new window
+            PairWindow oldParent = splitNode.getParent();
+            newPairWindow.attach(splitNode, newWindow);
+            windows.put(newPairWindow, newPairWindow);
+            if (splitNode == root)
                 root = newPairWindow;
-            }
-            else {
-                //	Replace the specified window with a new pair window containing the old and new window
-                PairWindow oldParent = splitNode.getParent();
-                PairWindow newPairWindow = createPairWindow(splitNode, newWindow, method, size);
+            else
                 oldParent.replaceWindow(splitNode, newPairWindow);
-            }
         }
-
-        return newWindow;
+        layoutPending = true;
     }
 
+    /*
+     * Called on the interpreter thread. Nothing here touches a view: the
+     * IO objects are only built, and attachWindow() installs them on
+     * their views on the UI thread. Until then the interpreter reads the
+     * window size from the view's WindowMetrics snapshot.
+     */
     private Window createWindow(int wintype, int id) {
         Window newWindow = null;
         switch (wintype) {
             case GlkWinType.TextBuffer:
-                TextBufferView tbview = new TextBufferView(getContext());
+                TextBufferView tbview = takeBufferView();
+                TextBufferIO tbio =
+                        new TextBufferIO(tbview, new StyleManager(bufferStyles));
                 GlkTextBufferWindow tbwin = new GlkTextBufferWindow(
-                        activity, queue,
-                        new TextBufferIO(tbview, new StyleManager(bufferStyles)),
-                        id);
-                newWindow = new Window(tbwin, tbview);
-                addView(tbview);
-                windows.put(tbwin, newWindow);
+                        activity, queue, tbio, id);
+                OutputBatcher batcher = tbwin.getOutputBatcher();
+                if (tbview instanceof ParagraphBufferView) {
+                    batcher.setPreparer(new ParagraphFormatter(tbio,
+                            (ParagraphBufferView) tbview));
+                }
+                batcher.setTimingListener(outputTimingListener);
+                newWindow = new Window(tbwin, tbview, tbio);
                 break;
             case GlkWinType.TextGrid:
-                TextGridView tgview = new TextGridView(getContext());
+                TextGridView tgview = takeGridView();
                 TextGridIO tgio = new TextGridIO(tgview, new StyleManager(gridStyles));
-
-                // TextIO classes currently have a strong dependency on their corresponding TextView
-                // classes. When the layout manager decides TextGridView needs to resize, TextGridIO
-                // needs to update the contents of the grid by padding or removing values as defined
-                // in the Glk spec. Hence this circular dependency.
-                tgview.setIO(tgio);
-
                 GlkTextGridWindow tgwin = new GlkTextGridWindow(activity, queue, tgio, id);
-                newWindow = new Window(tgwin, tgview);
-                addView(tgview);
-                windows.put(tgwin, newWindow);
+                newWindow = new Window(tgwin, tgview, tgio);
                 break;
             default:
                 // TODO: change when other window types added
@@ -131,15 +264,120 @@ public class GlkLayout extends ViewGroup {
         return newWindow;
     }
 
-    private PairWindow createPairWindow(WindowNode splitNode, Window newWindow, int method, int size) {
-        PairWindow newPairWindow = new PairWindow(splitNode, newWindow, method, size);
-        windows.put(newPairWindow, newPairWindow);
-        return newPairWindow;
+    private TextBufferView takeBufferView() {
+        TextBufferView view = spareBufferView.getAndSet(null);
+        if (view != null && (view instanceof ParagraphBufferView) != useParagraphView) {
+            view = null;
+        }
+        if (view == null) {
+            uiWait.waitFor(new Runnable() {
+                public void run() {
+                    tempView = newBufferView();
+                    uiWait.stopWaiting(null);
+                }
+            });
+            view = (TextBufferView) tempView;
+            tempView = null;
+        }
+        postFillSpareViews();
+        return view;
+    }
+
+    private TextGridView takeGridView() {
+        TextGridView view = spareGridView.getAndSet(null);
+        if (view == null) {
+            uiWait.waitFor(new Runnable() {
+                public void run() {
+                    tempView = new TextGridView(getContext());
+                    uiWait.stopWaiting(null);
+                }
+            });
+            view = (TextGridView) tempView;
+            tempView = null;
+        }
+        postFillSpareViews();
+        return view;
+    }
+
+    private TextBufferView newBufferView() {
+        return (useParagraphView
+                ? new ParagraphBufferView(getContext())
+                : new TextBufferView(getContext()));
+    }
+
+    private void fillSpareViews() {
+        TextBufferView spare = spareBufferView.get();
+        if (spare == null || (spare instanceof ParagraphBufferView) != useParagraphView) {
+            spareBufferView.set(newBufferView());
+        }
+        if (spareGridView.get() == null) {
+            spareGridView.set(new TextGridView(getContext()));
+        }
+    }
+
+    private void postFillSpareViews() {
+        uiHandler.post(new Runnable() {
+            public void run() {
+                fillSpareViews();
+            }
+        });
+    }
+
+    /*
+     * Runs a window operation on the UI thread, after any that were
+     * posted before it.
+     */
+    private void postOp(final Runnable op) {
+        pendingOps.incrementAndGet();
+        uiHandler.post(new Runnable() {
+            public void run() {
+                try {
+                    op.run();
+                } finally {
+                    pendingOps.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits until all window operations posted so far have been carried
+     * out and the resulting layout has been done, so that window sizes
+     * are up to date. Called from the interpreter thread by the event
+     * queue before {@code select()} and before a size query; it returns
+     * at once if nothing is pending.
+     */
+    public void sync() {
+        if (pendingOps.get() == 0 && !layoutPending) {
+            return;
+        }
+        uiWait.waitFor(new Runnable() {
+            public void run() {
+                settleLayout();
+                uiWait.stopWaiting(null);
+            }
+        });
+    }
+
+    private void settleLayout() {
+        layoutPending = false;
+        if (isLayoutRequested() && getWidth() > 0 && getHeight() > 0) {
+            measure(MeasureSpec.makeMeasureSpec(getWidth(), MeasureSpec.EXACTLY),
+                    MeasureSpec.makeMeasureSpec(getHeight(), MeasureSpec.EXACTLY));
+            layout(getLeft(), getTop(), getRight(), getBottom());
+        }
     }
 
     private void removeWindow(Window window) {
         windows.remove(window.getGlkWindow());
         removeView(window.getView());
+        if (window.getIO() == transcriptOwner) {
+            transcriptOwner.closeTranscript();
+            transcriptOwner = null;
+        }
+        if (window.getIO() == storyIO) {
+            storyIO = null;
+        }
     }
 
     private void removeWindow(PairWindow window) {
@@ -147,9 +385,13 @@ public class GlkLayout extends ViewGroup {
     }
 
     public final void removeGlkWindow(final GlkWindow win) {
-        uiWait.waitFor(new Runnable() {
+        queue.flushOutput();
+        postOp(new Runnable() {
             public void run() {
                 WindowNode window = windows.get(win);
+                if (window == null) {
+                    return;
+                }
                 PairWindow parent = window.getParent();
                 window.close();
 
@@ -167,8 +409,7 @@ public class GlkLayout extends ViewGroup {
                     else
                         parent.getParent().replaceWindow(parent, otherWindow);
                 }
-
-                uiWait.stopWaiting(null);
+                layoutPending = true;
             }
         });
     }
@@ -218,6 +459,7 @@ public class GlkLayout extends ViewGroup {
 
     @Override
     protected void onLayout(boolean changed, int l, int t, int r, int b) {
+        layoutPending = false;
         int count = getChildCount();
 
         for (int i = 0; i < count; i++) {
@@ -295,13 +537,15 @@ public class GlkLayout extends ViewGroup {
     private class Window implements WindowNode {
         private GlkWindow window;
         private View view;
+        private TextIO io;
         private PairWindow parent;
         // If we're a pair window's key window, keyParent refers to that pair window
         private PairWindow keyParent;
 
-        Window(GlkWindow window, View view) {
+        Window(GlkWindow window, View view, TextIO io) {
             this.window = window;
             this.view = view;
+            this.io = io;
             this.parent = null;
             this.keyParent = null;
         }
@@ -314,6 +558,10 @@ public class GlkLayout extends ViewGroup {
             return view;
         }
 
+        TextIO getIO() {
+            return io;
+        }
+
         @Override
         public PairWindow getParent() {
             return this.parent;
@@ -337,6 +585,9 @@ public class GlkLayout extends ViewGroup {
         @Override
         public void close() {
             GlkLayout.this.removeWindow(this);
+            if (window instanceof GlkTextWindow) {
+                ((GlkTextWindow) window).detach();
+            }
 
             if(keyParent != null)
                 keyParent.removeKeyWindow();
@@ -358,15 +609,7 @@ public class GlkLayout extends ViewGroup {
         private Drawable divider;
         private final int DIVIDER_SIZE;
 
-        PairWindow(WindowNode splitWindow, Window keyWindow, int method, int size) {
-            this.firstWindow = splitWindow;
-            this.secondWindow = keyWindow;
-            this.keyWindow = keyWindow;
-            this.keyWindow.setKeyParent(this);
-
-            this.firstWindow.setParent(this);
-            this.secondWindow.setParent(this);
-
+        PairWindow(int method, int size) {
             this.parent = null;
 
             this.method = method;
@@ -377,6 +620,20 @@ public class GlkLayout extends ViewGroup {
             this.DIVIDER_SIZE = Math.round(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 1, getResources().getDisplayMetrics()));
         }
 
+        /*
+         * Links the pair into the window tree; called on the UI thread
+         * once the pair's new window has been created.
+         */
+        void attach(WindowNode splitWindow, Window keyWindow) {
+            this.firstWindow = splitWindow;
+            this.secondWindow = keyWindow;
+            this.keyWindow = keyWindow;
+            this.keyWindow.setKeyParent(this);
+
+            this.firstWindow.setParent(this);
+            this.secondWindow.setParent(this);
+        }
+
         void replaceWindow(WindowNode oldWindow, WindowNode newWindow) {
             if (firstWindow == oldWindow) {
                 firstWindow = newWindow;
@@ -422,7 +679,7 @@ public class GlkLayout extends ViewGroup {
 
         @Override
         public void setArrangement(final int method, final int size, final GlkWindow key) {
-            uiWait.waitFor(new Runnable() {
+            postOp(new Runnable() {
                 public void run() {
                     PairWindow.this.method = method;
                     PairWindow.this.size = size;
@@ -432,8 +689,7 @@ public class GlkLayout extends ViewGroup {
                     PairWindow.this.setKeyWindow(keyWindow);
 
                     GlkLayout.this.requestLayout();
-
-                    uiWait.stopWaiting(null);
+                    layoutPending = true;
                 }
             });
         }
@@ -0,0 +1,57 @@
+/* This file is a part of roboglk.
+ * Copyright (c) 2009 Edward McCardell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.brickshadow.roboglk;
+
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * The commands in the output stream passed to
+ * {@link GlkWindow#printCommands(ByteBuffer, int)}.
+ * <p>
+ * The stream is a sequence of 16-bit units in native byte order. Each
+ * command starts with one of the values below; 32-bit arguments are
+ * stored as two units, low half first.
+ */
+public interface GlkOutputCommand {
+
+    /**
+     * A run of text.
+     * <ul>
+     * <li>one unit: the number of characters in the run</li>
+     * <li>the characters, as UTF-16 code units</li>
+     * </ul>
+     */
+    int Text = 1;
+
+    /**
+     * A style change.
+     * <ul>
+     * <li>two units: one of the {@link GlkStyle} constants</li>
+     * </ul>
+     */
+    int Style = 2;
+
+    /**
+     * A hyperlink change.
+     * <ul>
+     * <li>two units: the new link value, or 0 for no link</li>
+     * </ul>
+     */
+    int Link = 3;
+}
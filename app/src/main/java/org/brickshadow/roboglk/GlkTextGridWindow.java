@@ -24,13 +24,11 @@ import android.app.Activity;
 
 
 public class GlkTextGridWindow extends GlkTextWindow {
-    private Activity activity;
     private TextGridIO io;
     
     public GlkTextGridWindow(Activity activity, GlkEventQueue queue, TextGridIO io,
             int id) {
         super(activity, queue, io, id);
-        this.activity = activity;
         this.io = io;
     }
 
@@ -53,7 +51,7 @@ public class GlkTextGridWindow extends GlkTextWindow {
 
     @Override
     public void moveCursor(final int xpos, final int ypos) {
-        this.activity.runOnUiThread(new Runnable() {
+        postInOrder(new Runnable() {
             @Override
             public void run() {
                 GlkTextGridWindow.this.io.moveCursor(xpos, ypos);
@@ -19,10 +19,13 @@ package org.brickshadow.roboglk;
 
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
 import java.nio.IntBuffer;
 
 import org.brickshadow.roboglk.io.TextIO;
 import org.brickshadow.roboglk.util.GlkEventQueue;
+import org.brickshadow.roboglk.util.OutputBatcher;
 import org.brickshadow.roboglk.util.UISync;
 
 import android.app.Activity;
@@ -33,7 +36,7 @@ public abstract class GlkTextWindow extends AbstractGlkTextWindow {
 
     private final TextIO io;
     private final GlkEventQueue queue;
-    private final Activity activity;
+    private final OutputBatcher batcher;
 
     // Whether glk is expecting Unicode or Latin-1 input.
     private boolean inputIsUnicode;
@@ -48,6 +51,10 @@ public abstract class GlkTextWindow extends AbstractGlkTextWindow {
     private final UISync uiWait;
     private volatile int currInputLength;
 
+    // The command buffer last passed to printCommands(), and a view of it.
+    private ByteBuffer cmdBuffer;
+    private CharBuffer cmdChars;
+
     private final int id;
     
     public GlkTextWindow(Activity activity, GlkEventQueue queue, TextIO io,
@@ -55,10 +62,36 @@ public abstract class GlkTextWindow extends AbstractGlkTextWindow {
 
         this.io = io;
         this.queue = queue;
-        this.activity = activity;
         this.id = id;
         uiWait = UISync.getInstance();
         io.setWindow(this);
+        batcher = new OutputBatcher(activity, io);
+        queue.addOutputBatcher(batcher);
+    }
+
+    /**
+     * Returns the batcher that collects this window's output. Its
+     * counters can be used to see how well output is being coalesced.
+     */
+    public OutputBatcher getOutputBatcher() {
+        return batcher;
+    }
+
+    /**
+     * Runs an action on the UI thread after any output that has already
+     * been sent to this window.
+     */
+    protected void postInOrder(Runnable r) {
+        batcher.post(r);
+    }
+
+    /**
+     * Flushes pending output and stops this window from being flushed by
+     * the event queue. Called when the window is closed.
+     */
+    void detach() {
+        batcher.flush();
+        queue.removeOutputBatcher(batcher);
     }
 
     @Override
@@ -137,7 +170,7 @@ public abstract class GlkTextWindow extends AbstractGlkTextWindow {
     }
 
     private void processKey(int c) {
-        queue.putEvent(GlkEventQueue.newCharInputEvent(this, c));
+        queue.putEvent(GlkEventType.CharInput, this, c, 0);
     }
 
     @Override
@@ -155,13 +188,13 @@ public abstract class GlkTextWindow extends AbstractGlkTextWindow {
             }
         }
         if (isEvent) {
-            queue.putEvent(GlkEventQueue.newLineInputEvent(this, inputLen));
+            queue.putEvent(GlkEventType.LineInput, this, inputLen, 0);
         }
     }
 
     @Override
     public void cancelCharEvent() {
-        activity.runOnUiThread(new Runnable() {
+        batcher.post(new Runnable() {
             @Override
             public void run() {
                 io.stopCharInput();
@@ -171,6 +204,7 @@ public abstract class GlkTextWindow extends AbstractGlkTextWindow {
 
     @Override
     public int cancelLineEvent() {
+        batcher.flush();
         uiWait.waitFor(new Runnable() {
             @Override
             public void run() {
@@ -194,7 +228,7 @@ public abstract class GlkTextWindow extends AbstractGlkTextWindow {
 
     @Override
     public void clear() {
-        activity.runOnUiThread(new Runnable() {
+        batcher.post(new Runnable() {
             @Override
             public void run() {
                 io.doClear();
@@ -224,6 +258,8 @@ public abstract class GlkTextWindow extends AbstractGlkTextWindow {
 
     @Override
     public void getSize(int[] dim) {
+        batcher.flush();
+        queue.syncLayout();
         int[] size = io.getWindowSize();
         dim[0] = size[0];
         dim[1] = size[1];
@@ -246,18 +282,24 @@ public abstract class GlkTextWindow extends AbstractGlkTextWindow {
     }
 
     @Override
-    public void print(final String str) {
-        activity.runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                io.doPrint(str);
-            }
-        });
+    public void print(String str) {
+        batcher.print(str);
+    }
+
+    @Override
+    public void printCommands(ByteBuffer cmds, int len) {
+        /* GlkJNI hands us the same buffer every time. */
+        if (cmds != cmdBuffer) {
+            cmds.order(ByteOrder.nativeOrder());
+            cmdBuffer = cmds;
+            cmdChars = cmds.asCharBuffer();
+        }
+        batcher.appendCommands(cmdChars, len);
     }
 
     @Override
     public void requestCharEvent(final boolean unicode) {
-        activity.runOnUiThread(new Runnable() {
+        batcher.post(new Runnable() {
             @Override
             public void run() {
                 inputIsUnicode = unicode;
@@ -282,7 +324,7 @@ public abstract class GlkTextWindow extends AbstractGlkTextWindow {
         final char[] iChars =
             getInitialChars(lbuf, ubuf, maxlen, initlen);
 
-        activity.runOnUiThread(new Runnable() {
+        batcher.post(new Runnable() {
             @Override
             public void run() {
                 latinBuffer = lbuf;
@@ -352,23 +394,13 @@ public abstract class GlkTextWindow extends AbstractGlkTextWindow {
     }
 
     @Override
-    public void setLinkValue(final int linkval) {
-        activity.runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                io.doHyperlink(linkval);
-            }
-        });
+    public void setLinkValue(int linkval) {
+        batcher.setHyperlink(linkval);
     }
 
     @Override
-    public void setStyle(final int val) {
-        activity.runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                io.doStyle(val);
-            }
-        });
+    public void setStyle(int val) {
+        batcher.setStyle(val);
     }
 
 }
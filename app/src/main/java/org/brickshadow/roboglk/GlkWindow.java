@@ -125,6 +125,26 @@ public interface GlkWindow {
      */
     void print(String str);
 
+    /**
+     * Applies a buffer of output commands to the window. This is the
+     * equivalent of a sequence of calls to {@link #print(String)},
+     * {@link #setStyle(int)} and {@link #setLinkValue(int)}, encoded as
+     * described in {@link GlkOutputCommand}; GlkJNI uses it in place of
+     * those methods whenever it can create a direct buffer.
+     * <p>
+     * The buffer belongs to the window and is reused by GlkJNI after
+     * this method returns, so its contents must be consumed (or copied)
+     * before then.
+     * <p>
+     * Applies to: text
+     * 
+     * @param cmds
+     *           A direct buffer holding the commands.<p>
+     * @param len
+     *           The length of the commands, in 16-bit units.<p>
+     */
+    void printCommands(ByteBuffer cmds, int len);
+
     /**
      * Requests character input in the window. This method will not be
      * called when there is a pending request for character or line input.
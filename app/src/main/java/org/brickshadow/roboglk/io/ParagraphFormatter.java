@@ -0,0 +1,118 @@
+/* This file is a part of roboglk.
+ * Copyright (c) 2009 Edward McCardell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.brickshadow.roboglk.io;
+
+
+import java.util.ArrayList;
+
+import org.brickshadow.roboglk.util.OutputBatcher;
+import org.brickshadow.roboglk.view.ParagraphBufferView;
+
+import android.text.SpannableString;
+import android.text.SpannableStringBuilder;
+
+
+/**
+ * Styles a text buffer window's output and lays out its finished
+ * paragraphs away from the UI thread.
+ * <p>
+ * Output is styled into a private buffer, using the window's
+ * {@link StyleManager}, exactly as {@link TextBufferIO} would style the
+ * view's own text. Each finished paragraph is copied out and laid out with
+ * the view's current {@link ParagraphBufferView.LayoutSpec}; the UI thread
+ * only has to add the paragraphs to the view, and append the unfinished
+ * last paragraph to its {@code Editable}.
+ * <p>
+ * While a formatter is in use, styles must not be applied to the view
+ * directly.
+ */
+public class ParagraphFormatter implements OutputBatcher.Preparer {
+
+    private final TextBufferIO io;
+    private final ParagraphBufferView view;
+    private final StyleManager styleMan;
+    private final SpannableStringBuilder staged = new SpannableStringBuilder();
+
+    public ParagraphFormatter(TextBufferIO io, ParagraphBufferView view) {
+        this.io = io;
+        this.view = view;
+        this.styleMan = io.styleMan;
+    }
+
+    @Override
+    public void print(char[] text, int start, int len) {
+        staged.append(new String(text, start, len));
+    }
+
+    @Override
+    public void setStyle(int style) {
+        synchronized(styleMan) {
+            styleMan.applyStyle(style, staged);
+        }
+    }
+
+    @Override
+    public void setHyperlink(int linkval) {
+        synchronized(styleMan) {
+            styleMan.applyHyperlink(linkval, staged);
+        }
+    }
+
+    @Override
+    public Runnable finish() {
+        int len = staged.length();
+        if (len == 0) {
+            return null;
+        }
+
+        synchronized(styleMan) {
+            styleMan.compactSpans(staged, 0);
+        }
+
+        ParagraphBufferView.LayoutSpec spec = view.getLayoutSpec();
+        final ArrayList<ParagraphBufferView.PreparedParagraph> paragraphs =
+            new ArrayList<ParagraphBufferView.PreparedParagraph>();
+        int start = 0;
+        for (int i = 0; i < len; i++) {
+            if (staged.charAt(i) == '\n') {
+                paragraphs.add(ParagraphBufferView.prepare(
+                        new SpannableString(staged.subSequence(start, i)),
+                        spec));
+                start = i + 1;
+            }
+        }
+        final CharSequence tail = staged.subSequence(start, len);
+
+        /*
+         * The open spans now belong to the text that was just copied, so
+         * the text that follows needs spans of its own.
+         */
+        synchronized(styleMan) {
+            staged.clearSpans();
+            staged.clear();
+            styleMan.restartSpans(staged);
+        }
+
+        return new Runnable() {
+            @Override
+            public void run() {
+                io.doPreparedPrint(paragraphs, tail);
+            }
+        };
+    }
+}
@@ -18,6 +18,10 @@
 package org.brickshadow.roboglk.io;
 
 
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+
 import org.brickshadow.roboglk.GlkJustification;
 import org.brickshadow.roboglk.GlkStyle;
 import org.brickshadow.roboglk.GlkStyleHint;
@@ -25,13 +29,16 @@ import org.brickshadow.roboglk.GlkStyleHint;
 import android.graphics.Typeface;
 import android.text.Layout;
 import android.text.Spannable;
+import android.text.TextPaint;
 import android.text.style.AlignmentSpan;
 import android.text.style.BackgroundColorSpan;
+import android.text.style.CharacterStyle;
 import android.text.style.ForegroundColorSpan;
 import android.text.style.LeadingMarginSpan;
 import android.text.style.RelativeSizeSpan;
 import android.text.style.TextAppearanceSpan;
 import android.text.style.URLSpan;
+import android.util.SparseArray;
 
 
 public class StyleManager {
@@ -49,6 +56,8 @@ public class StyleManager {
     private static final int JUSTIFY_TYPE = 5;
     private static final int NUM_SPAN_TYPES = 6;
 
+    private static final long NO_SPAN = -1;
+
     public static Style[] newDefaultStyles() {
         Style[] styles = new Style[NUM_STYLES];
         for (int s = 0; s < NUM_STYLES; s++) {
@@ -102,24 +111,49 @@ public class StyleManager {
                     && this.indentation == that.indentation);
         }
 
-        final boolean isDifferent(Style other, int type, boolean fakeReverse) {
-            boolean otherReverse = other.reverse || fakeReverse;
+        /*
+         * Returns a value that identifies the span of the given type that
+         * getSpan() would return, or NO_SPAN if it would return null. Runs
+         * with equal keys look the same.
+         */
+        final long getSpanKey(int type, boolean fakeReverse) {
             switch (type) {
             case TAP_TYPE:
-                return (this.face != other.face
-                        || this.proportional != other.proportional);
+                if (proportional && face == Typeface.NORMAL) {
+                    return NO_SPAN;
+                }
+                return (face << 1) | (proportional ? 1 : 0);
             case FGC_TYPE:
-                return (this.foreColor != other.foreColor
-                        || this.reverse != otherReverse);
+                if (reverse || fakeReverse) {
+                    return backColor & 0xFFFFFFFFL;
+                }
+                if (foreColor == BLACK) {
+                    return NO_SPAN;
+                }
+                return foreColor & 0xFFFFFFFFL;
             case BGC_TYPE:
-                return (this.backColor != other.backColor
-                        || this.reverse != otherReverse);
+                if (reverse || fakeReverse) {
+                    return foreColor & 0xFFFFFFFFL;
+                }
+                if (backColor == WHITE) {
+                    return NO_SPAN;
+                }
+                return backColor & 0xFFFFFFFFL;
             case RS_TYPE:
-                return (this.size != other.size);
+                if (size == 0) {
+                    return NO_SPAN;
+                }
+                return size & 0xFFFFFFFFL;
             case INDENT_TYPE:
-                return (this.indentation != other.indentation);
+                if (indentation == 0) {
+                    return NO_SPAN;
+                }
+                return indentation & 0xFFFFFFFFL;
             case JUSTIFY_TYPE:
-                return (this.align != other.align);
+                if (align == Layout.Alignment.ALIGN_NORMAL) {
+                    return NO_SPAN;
+                }
+                return align.ordinal();
             default:
                 throw new IllegalArgumentException();
             }
@@ -309,10 +343,39 @@ public class StyleManager {
     private boolean currentReverse = false;
     private Object[] oldSpans = new Object[NUM_SPAN_TYPES];
     private int[] oldStarts = new int[NUM_SPAN_TYPES];
+    private long[] oldKeys = newKeys();
+
+    /*
+     * The span of each type that was closed most recently, which is
+     * resumed if a run with the same key starts right where it ended.
+     */
+    private Object[] closedSpans = new Object[NUM_SPAN_TYPES];
+    private long[] closedKeys = newKeys();
+
+    /*
+     * Character spans are immutable, so a single instance is shared by
+     * all the runs with the same key, and attached to the text as it is.
+     * A span can only cover one range of a Spannable, though, so a run
+     * whose span is already in use elsewhere in the same text gets a
+     * wrapper around it instead. Paragraph spans can't be wrapped, and
+     * are made anew for each run.
+     */
+    @SuppressWarnings("unchecked")
+    private SparseArray<CharacterStyle>[] sharedSpans =
+        new SparseArray[NUM_SPAN_TYPES];
 
     private Object oldLinkSpan = null;
     private int oldLinkStart = 0;
     private int currentLinkVal = 0;
+    private Object closedLinkSpan = null;
+    private int closedLinkVal = 0;
+
+    private int sharedCount;
+    private int attachedCount;
+    private int wrappedCount;
+    private int resumedCount;
+    private int droppedCount;
+    private int foldedCount;
 
     public StyleManager() {
         this.styles = newDefaultStyles();
@@ -331,6 +394,79 @@ public class StyleManager {
         return style.measureStyle(hint);
     }
 
+    /**
+     * Sets up a paint for drawing text grid cells in a style. Every cell
+     * of a grid is the same size, so the size, indentation and
+     * justification hints are ignored.
+     *
+     * @return the background color of the style, or 0 if the window
+     *         background should show through
+     */
+    public int applyGridStyle(int styleNum, TextPaint paint) {
+        Style style = styles[styleNum];
+        paint.setTypeface(Typeface.create(Typeface.MONOSPACE, style.face));
+        if (style.reverse) {
+            paint.setColor(style.backColor);
+            return style.foreColor;
+        }
+        paint.setColor(style.foreColor);
+        return (style.backColor == WHITE ? 0 : style.backColor);
+    }
+
+    /**
+     * Returns the number of distinct character spans that have been
+     * created.
+     */
+    public int getSharedSpanCount() {
+        return sharedCount;
+    }
+
+    /**
+     * Returns the number of spans that have been attached to text,
+     * including wrappers around shared spans.
+     */
+    public int getAttachedSpanCount() {
+        return attachedCount;
+    }
+
+    /**
+     * Returns the number of runs that needed a wrapper because their
+     * shared span was already in use in the same text.
+     */
+    public int getWrappedSpanCount() {
+        return wrappedCount;
+    }
+
+    /**
+     * Returns the number of runs that extended the previous span with
+     * the same attributes instead of attaching a new one.
+     */
+    public int getResumedSpanCount() {
+        return resumedCount;
+    }
+
+    /**
+     * Returns the number of spans that were removed because no text
+     * was printed while they were open.
+     */
+    public int getDroppedSpanCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Returns the number of spans that {@link #compactSpans} has folded
+     * into their neighbors.
+     */
+    public int getFoldedSpanCount() {
+        return foldedCount;
+    }
+
+    private static long[] newKeys() {
+        long[] keys = new long[NUM_SPAN_TYPES];
+        Arrays.fill(keys, NO_SPAN);
+        return keys;
+    }
+
     // TODO(jmegq): Consider merging hyperlink handling into applyStyle; they
     // share a lot of structure. Merge the hyperlink fields into the
     // oldSpans[] and oldStarts[] arrays as well.
@@ -343,19 +479,75 @@ public class StyleManager {
         Object newSpan = null;
 
         if (oldLinkSpan != null) {
-            text.setSpan(oldLinkSpan, oldLinkStart, textLen,
-                    Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            if (oldLinkStart >= textLen) {
+                text.removeSpan(oldLinkSpan);
+                droppedCount += 1;
+            } else {
+                text.setSpan(oldLinkSpan, oldLinkStart, textLen,
+                        Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+                closedLinkSpan = oldLinkSpan;
+                closedLinkVal = currentLinkVal;
+            }
         }
+        oldLinkStart = textLen;
         if (newLinkVal != 0) {
-            newSpan = new URLSpan(Integer.toString(newLinkVal));
-            text.setSpan(newSpan, textLen, textLen,
+            if (closedLinkSpan != null && closedLinkVal == newLinkVal
+                    && text.getSpanEnd(closedLinkSpan) == textLen) {
+                newSpan = closedLinkSpan;
+                closedLinkSpan = null;
+                oldLinkStart = text.getSpanStart(newSpan);
+                resumedCount += 1;
+            } else {
+                newSpan = new URLSpan(Integer.toString(newLinkVal));
+                attachedCount += 1;
+            }
+            text.setSpan(newSpan, oldLinkStart, textLen,
                     Spannable.SPAN_INCLUSIVE_INCLUSIVE);
         }
         oldLinkSpan = newSpan;
-        oldLinkStart = textLen;
         currentLinkVal = newLinkVal;
     }
 
+    /**
+     * Must be called after {@code count} characters have been deleted
+     * from the start of the text, so that the spans still being
+     * extended start at the right place when they are closed.
+     */
+    public void headRemoved(int count) {
+        for (int s = 0; s < NUM_SPAN_TYPES; s++) {
+            oldStarts[s] = Math.max(0, oldStarts[s] - count);
+        }
+        oldLinkStart = Math.max(0, oldLinkStart - count);
+    }
+
+    /**
+     * Replaces the spans that are still open with new ones starting at
+     * the end of {@code text}. This is for when the text so far has been
+     * handed off to another {@code Spannable}, which keeps the old spans.
+     */
+    public void restartSpans(Spannable text) {
+        int textLen = text.length();
+        for (int s = 0; s < NUM_SPAN_TYPES; s++) {
+            closedSpans[s] = null;
+            if (oldSpans[s] != null) {
+                oldSpans[s] = newSpan(s, styles[currentStyleNum],
+                        currentReverse, oldKeys[s], text);
+                text.setSpan(oldSpans[s], textLen, textLen,
+                        Spannable.SPAN_INCLUSIVE_INCLUSIVE);
+                attachedCount += 1;
+            }
+            oldStarts[s] = textLen;
+        }
+        closedLinkSpan = null;
+        if (oldLinkSpan != null) {
+            oldLinkSpan = new URLSpan(Integer.toString(currentLinkVal));
+            text.setSpan(oldLinkSpan, textLen, textLen,
+                    Spannable.SPAN_INCLUSIVE_INCLUSIVE);
+            attachedCount += 1;
+        }
+        oldLinkStart = textLen;
+    }
+
     public void applyStyle(int newStyleNum, Spannable text) {
         applyStyle(newStyleNum, currentReverse, text);
     }
@@ -372,32 +564,123 @@ public class StyleManager {
         }
 
         int textLen = text.length();
-        Object newSpan = null;
-        boolean changeSpan = false;
-        Style currentStyle =
-            (currentStyleNum == -1 ? null : styles[currentStyleNum]);
         Style newStyle = styles[newStyleNum];
         for (int s = 0; s < NUM_SPAN_TYPES; s++) {
-            changeSpan = (currentStyle == null
-                    || currentStyle.isDifferent(newStyle, s, fakeReverse));
-            if (!changeSpan && (s == FGC_TYPE || s == BGC_TYPE)) {
-                changeSpan = fakeReverse != currentReverse;
+            long newKey = newStyle.getSpanKey(s, fakeReverse);
+            if (newKey == oldKeys[s]) {
+                continue;
             }
-            if (changeSpan) {
-                if (oldSpans[s] != null) {
-                    text.setSpan(oldSpans[s], oldStarts[s], textLen,
-                            Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                }
-                newSpan = newStyle.getSpan(s, fakeReverse);
-                if (newSpan != null) {
-                    text.setSpan(newSpan, textLen, textLen,
-                            Spannable.SPAN_INCLUSIVE_INCLUSIVE);
-                }
-                oldSpans[s] = newSpan;
-                oldStarts[s] = textLen;
+            if (oldSpans[s] != null) {
+                closeSpan(s, text, textLen);
             }
+            oldSpans[s] = (newKey == NO_SPAN ? null
+                    : openSpan(s, newStyle, fakeReverse, newKey, text));
+            oldKeys[s] = newKey;
         }
         currentStyleNum = newStyleNum;
         currentReverse = fakeReverse;
     }
+
+    private void closeSpan(int s, Spannable text, int textLen) {
+        if (oldStarts[s] >= textLen) {
+            // Nothing was printed in this style.
+            text.removeSpan(oldSpans[s]);
+            droppedCount += 1;
+        } else {
+            text.setSpan(oldSpans[s], oldStarts[s], textLen,
+                    Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            closedSpans[s] = oldSpans[s];
+            closedKeys[s] = oldKeys[s];
+        }
+    }
+
+    private Object openSpan(int s, Style style, boolean fakeReverse,
+            long key, Spannable text) {
+
+        int textLen = text.length();
+        Object span = closedSpans[s];
+        if (span != null && closedKeys[s] == key
+                && text.getSpanEnd(span) == textLen) {
+            // The same attributes resume where they left off.
+            closedSpans[s] = null;
+            oldStarts[s] = text.getSpanStart(span);
+            resumedCount += 1;
+        } else {
+            span = newSpan(s, style, fakeReverse, key, text);
+            oldStarts[s] = textLen;
+            attachedCount += 1;
+        }
+        text.setSpan(span, oldStarts[s], textLen,
+                Spannable.SPAN_INCLUSIVE_INCLUSIVE);
+        return span;
+    }
+
+    private Object newSpan(int s, Style style, boolean fakeReverse,
+            long key, Spannable text) {
+
+        if (s == INDENT_TYPE || s == JUSTIFY_TYPE) {
+            return style.getSpan(s, fakeReverse);
+        }
+        SparseArray<CharacterStyle> shared = sharedSpans[s];
+        if (shared == null) {
+            shared = new SparseArray<CharacterStyle>();
+            sharedSpans[s] = shared;
+        }
+        CharacterStyle span = shared.get((int) key);
+        if (span == null) {
+            span = (CharacterStyle) style.getSpan(s, fakeReverse);
+            shared.put((int) key, span);
+            sharedCount += 1;
+        }
+        if (text.getSpanStart(span) < 0) {
+            return span;
+        }
+        wrappedCount += 1;
+        return CharacterStyle.wrap(span);
+    }
+
+    /**
+     * Folds together adjacent runs of the same shared span that were
+     * closed separately, whether attached directly or wrapped, from
+     * {@code start} to the end of the text. Spans that are still open are
+     * left alone.
+     *
+     * @return the number of spans that were removed
+     */
+    public int compactSpans(final Spannable text, int start) {
+        CharacterStyle[] spans =
+            text.getSpans(start, text.length(), CharacterStyle.class);
+        if (spans.length < 2) {
+            return 0;
+        }
+        Arrays.sort(spans, new Comparator<CharacterStyle>() {
+            @Override
+            public int compare(CharacterStyle a, CharacterStyle b) {
+                return text.getSpanStart(a) - text.getSpanStart(b);
+            }
+        });
+
+        IdentityHashMap<CharacterStyle, CharacterStyle> lastRuns =
+            new IdentityHashMap<CharacterStyle, CharacterStyle>();
+        int folded = 0;
+        for (CharacterStyle span : spans) {
+            CharacterStyle shared = span.getUnderlying();
+            if (text.getSpanFlags(span) != Spannable.SPAN_EXCLUSIVE_EXCLUSIVE) {
+                continue;
+            }
+            CharacterStyle last = lastRuns.get(shared);
+            if (last != null
+                    && text.getSpanEnd(last) == text.getSpanStart(span)) {
+                text.setSpan(last, text.getSpanStart(last),
+                        text.getSpanEnd(span),
+                        Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+                text.removeSpan(span);
+                folded += 1;
+            } else {
+                lastRuns.put(shared, span);
+            }
+        }
+        foldedCount += folded;
+        return folded;
+    }
 }
@@ -18,10 +18,19 @@
 package org.brickshadow.roboglk.io;
 
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
 import org.brickshadow.roboglk.GlkTextBufferWindow;
+import org.brickshadow.roboglk.view.ParagraphBufferView;
 import org.brickshadow.roboglk.view.TextBufferView;
 
 import android.text.Editable;
+import android.text.Layout;
 import android.text.Selection;
 import android.text.Spannable;
 import android.view.KeyEvent;
@@ -43,12 +52,50 @@ public class TextBufferIO extends TextIO {
     private int historyStart;
     private int historyEnd;
     
+    /*
+     * Scrollback limits, in paragraphs and in characters; 0 means no
+     * limit. When a limit is exceeded, whole paragraphs are evicted from
+     * the start of the text until only three quarters of the limit is in
+     * use, so that eviction happens in chunks rather than every turn.
+     */
+    private int maxParagraphs;
+    private int maxChars;
+    private int numParagraphs;
+    
+    // Where the next span compaction starts.
+    private int compactStart;
+    
+    // Where evicted text is appended, if anywhere.
+    private File transcriptFile;
+    private Writer transcript;
+    
+    private final TextBufferView tbv;
+    
     public TextBufferIO(TextBufferView tv, StyleManager styleMan) {
         super(tv, styleMan);
+        tbv = tv;
 
         history = new char[HISTORYLEN][];
         historyPos = -1;
     }
+
+    @Override
+    public void attachView() {
+        super.attachView();
+        tbv.setHeadListener(new TextBufferView.HeadListener() {
+            @Override
+            public void onHeadRemoved(int chars, int paragraphs) {
+                TextBufferIO.this.styleMan.headRemoved(chars);
+                numParagraphs -= paragraphs;
+                compactStart = Math.max(0, compactStart - chars);
+            }
+
+            @Override
+            public void onTextEvicted(CharSequence text) {
+                writeTranscript(text, text.length());
+            }
+        });
+    }
     
     @Override
     public void doStyle(int style) {
@@ -74,7 +121,7 @@ public class TextBufferIO extends TextIO {
             moreLines -= scrollLines;
             
             if (moreLines == 0) {
-                morePrompt = false; // TODO: hide the prompt!
+                setMorePrompt(false); // TODO: hide the prompt!
 
                 textBufPrint("");
             }
@@ -88,16 +135,62 @@ public class TextBufferIO extends TextIO {
     protected boolean onViewTouch(View v, MotionEvent event) {
         if(event.getAction() == MotionEvent.ACTION_MOVE) {
             // Clear the more prompt when scrolling
-            morePrompt = false;
+            setMorePrompt(false);
         }
 
         return super.onViewTouch(v, event);
     }
     
+    /*
+     * The view must not evict text the player has not paged through yet.
+     */
+    private void setMorePrompt(boolean on) {
+        morePrompt = on;
+        tbv.setEvictionHeld(on);
+    }
+    
     public void setWindow(GlkTextBufferWindow win) {
         this.win = win;
     }
     
+    /**
+     * Limits the amount of text kept in the view. Text is only evicted
+     * when line input is requested, and never while the MORE prompt is
+     * showing.
+     * 
+     * @param paragraphs the maximum number of paragraphs, or 0
+     * @param chars the maximum number of characters, or 0
+     */
+    public void setScrollbackLimit(int paragraphs, int chars) {
+        maxParagraphs = paragraphs;
+        maxChars = chars;
+        tbv.setScrollbackLimit(paragraphs);
+    }
+    
+    /**
+     * Sets a file to which evicted text will be appended, or
+     * {@code null} to discard it.
+     */
+    public void setTranscriptFile(File file) {
+        closeTranscript();
+        transcriptFile = file;
+    }
+    
+    /**
+     * Closes the transcript file, if one is open. It will be reopened
+     * the next time text is evicted.
+     */
+    public void closeTranscript() {
+        if (transcript != null) {
+            try {
+                transcript.close();
+            } catch (IOException e) {
+                // Nothing useful can be done.
+            }
+            transcript = null;
+        }
+    }
+    
     protected void cursorOff() {
         Spannable text = (Spannable) tv.getText();
         Selection.removeSelection(text);
@@ -110,7 +203,7 @@ public class TextBufferIO extends TextIO {
     protected void cursorToEnd(int back) {
         Spannable text = (Spannable) tv.getText();
         int len = text.length();
-        Selection.setSelection(text, len + back);
+        Selection.setSelection(text, Math.max(0, len + back));
     }
     
     /* Prints text and decides if the MORE prompt is needed. */
@@ -123,10 +216,29 @@ public class TextBufferIO extends TextIO {
          */
         cursorToEnd(-1);
         
-        int oldLineCount = tv.getLineCount();
-        tv.append(str);
-        int linesAdded = tv.getLineCount() - oldLineCount;
+        numParagraphs += countNewlines(str);
+        printed(tbv.appendText(str));
+    }
+    
+    /**
+     * Prints text that a {@link ParagraphFormatter} has already styled
+     * and laid out. The view must be a {@link ParagraphBufferView}.
+     * 
+     * @param paragraphs finished paragraphs
+     * @param tail the start of the next paragraph
+     */
+    void doPreparedPrint(
+            List<ParagraphBufferView.PreparedParagraph> paragraphs,
+            CharSequence tail) {
+        
+        cursorToEnd(-1);
         
+        numParagraphs += paragraphs.size();
+        printed(((ParagraphBufferView) tbv).appendPrepared(paragraphs, tail));
+    }
+    
+    /* Scrolls to the end or shows the MORE prompt after printing. */
+    private void printed(int linesAdded) {
         if (morePrompt) {
             moreLines += linesAdded;
             return;
@@ -146,7 +258,7 @@ public class TextBufferIO extends TextIO {
         // TODO: maybe >= instead? or >= viewLines - 1 ?
         if (linesSinceInput > viewLines) {
             moreLines = linesSinceInput - viewLines;
-            morePrompt = true;
+            setMorePrompt(true);
             
             cursorOff();
             tv.scrollBy(0, inputLineStart * tv.getLineHeight());
@@ -166,10 +278,113 @@ public class TextBufferIO extends TextIO {
      * so we always advance the cursor to the end of the text.
      */
     private void textBufEcho(CharSequence str) {
-        tv.append(str);
+        numParagraphs += countNewlines(str);
+        tbv.appendText(str);
         cursorToEnd();
     }
     
+    private static int countNewlines(CharSequence str) {
+        int count = 0;
+        int len = str.length();
+        for (int i = 0; i < len; i++) {
+            if (str.charAt(i) == '\n') {
+                count += 1;
+            }
+        }
+        return count;
+    }
+    
+    /* Evicts old paragraphs if the text is over the scrollback limit. */
+    private void trimScrollback() {
+        if (morePrompt || (maxParagraphs == 0 && maxChars == 0)) {
+            return;
+        }
+        
+        Editable text = tv.getEditableText();
+        int len = text.length();
+        
+        // The paragraph holding the prompt is never evicted.
+        int limit = len;
+        while (limit > 0 && text.charAt(limit - 1) != '\n') {
+            limit -= 1;
+        }
+        
+        int cut = 0;
+        int cutParagraphs = 0;
+        if (maxParagraphs > 0 && numParagraphs > maxParagraphs) {
+            int drop = numParagraphs - (maxParagraphs * 3 / 4);
+            while (cut < limit && cutParagraphs < drop) {
+                if (text.charAt(cut++) == '\n') {
+                    cutParagraphs += 1;
+                }
+            }
+        }
+        if (maxChars > 0 && len > maxChars) {
+            int target = len - (maxChars * 3 / 4);
+            while (cut < limit && (cut < target
+                    || (cut > 0 && text.charAt(cut - 1) != '\n'))) {
+                if (text.charAt(cut++) == '\n') {
+                    cutParagraphs += 1;
+                }
+            }
+        }
+        
+        if (cut > 0) {
+            evictHead(text, cut, cutParagraphs);
+        }
+    }
+    
+    private void evictHead(Editable text, int cut, int paragraphs) {
+        writeTranscript(text, cut);
+        
+        Layout layout = tv.getLayout();
+        int removedHeight = 0;
+        if (layout != null) {
+            removedHeight = layout.getLineTop(layout.getLineForOffset(cut));
+        }
+        
+        /*
+         * Spans that lie entirely within the evicted text would otherwise
+         * be left behind as empty spans at the start of the text. The
+         * spans the StyleManager is still extending are kept, even if
+         * they are empty for now.
+         */
+        TextBufferView.removeClosedSpans(text, cut);
+        text.delete(0, cut);
+        tbv.headDeleted(cut, paragraphs);
+        styleMan.headRemoved(cut);
+        numParagraphs -= paragraphs;
+        compactStart = Math.max(0, compactStart - cut);
+        
+        /*
+         * Keep the same text on screen. The MORE prompt bookkeeping
+         * (inputLineStart, linesSinceInput) is relative to the screen,
+         * so it stays valid as long as the screen does not move.
+         */
+        if (removedHeight > 0) {
+            int scrollY = tv.getScrollY() - removedHeight;
+            tv.scrollTo(tv.getScrollX(), Math.max(0, scrollY));
+        }
+    }
+    
+    private void writeTranscript(CharSequence text, int end) {
+        if (transcriptFile == null) {
+            return;
+        }
+        try {
+            if (transcript == null) {
+                transcript = new BufferedWriter(
+                        new FileWriter(transcriptFile, true));
+            }
+            transcript.append(text, 0, end);
+            transcript.flush();
+        } catch (IOException e) {
+            // Give up on the transcript rather than on the game.
+            closeTranscript();
+            transcriptFile = null;
+        }
+    }
+    
     @Override
     protected final void textEcho(CharSequence str) {
         textBufEcho(str);
@@ -179,6 +394,15 @@ public class TextBufferIO extends TextIO {
     protected final void textEchoNewline() {
         textBufEcho("\n");
     }
+    
+    @Override
+    protected final void textUnecho() {
+        Editable text = tv.getEditableText();
+        int len = text.length();
+        if (len > 0) {
+            text.delete(len - 1, len);
+        }
+    }
 
     @Override
     public final void doLineInput(boolean unicode, int maxlen,
@@ -186,6 +410,8 @@ public class TextBufferIO extends TextIO {
         
         super.doLineInput(unicode, maxlen, initialChars);
         
+        trimScrollback();
+        compactSpans();
         linesSinceInput = 0;
         inputLineStart = computeInputLineStart();
         
@@ -194,6 +420,35 @@ public class TextBufferIO extends TextIO {
         }
     }
     
+    /* Folds the spans of the text printed since the last turn. */
+    private void compactSpans() {
+        Editable text = tv.getEditableText();
+        synchronized(styleMan) {
+            styleMan.compactSpans(text, compactStart);
+        }
+        compactStart = text.length();
+    }
+    
+    /**
+     * Returns the end of the text in the view, without any line input
+     * in progress. Call this on the UI thread.
+     * 
+     * @param maxChars the most characters to return
+     */
+    public String getTextTail(int maxChars) {
+        CharSequence text = tv.getText();
+        int end = text.length() - currInputLength;
+        int start = Math.max(0, end - maxChars);
+        return text.subSequence(start, end).toString();
+    }
+    
+    /**
+     * Returns the number of style spans held by the view, for debugging.
+     */
+    public int getSpanCount() {
+        return tbv.getSpanCount();
+    }
+    
     /* TODO: This will have to take clear() into account. */
     private int computeInputLineStart() {
         int lineCount = tv.getLineCount();
@@ -17,8 +17,11 @@
 
 package org.brickshadow.roboglk.io;
 
+import org.brickshadow.roboglk.GlkStyle;
 import org.brickshadow.roboglk.view.TextGridView;
 
+import android.text.TextPaint;
+
 
 public class TextGridIO extends TextIO {
     // Cursor location. Valid values are [0, width - 1] for cx and [0, height - 1] for cy. If the
@@ -29,16 +32,36 @@ public class TextGridIO extends TextIO {
     private int previousWidth;
     private int previousHeight;
 
-    // Contains the grid's contents as well as newlines to break the lines for the TextGridView
-    private StringBuilder text;
+    // The style of newly printed cells.
+    private int currentStyle;
+
+    // The number of cells echoed for the current line input.
+    private int echoed;
+
+    // The text size that the cell paints were made for.
+    private float paintTextSize;
+
+    private final TextGridView gv;
 
     public TextGridIO(TextGridView tv, StyleManager styleMan) {
         super(tv, styleMan);
+        this.gv = tv;
         this.cx = 0;
         this.cy = 0;
         this.previousWidth = 0;
         this.previousHeight = 0;
-        this.text = new StringBuilder();
+        this.currentStyle = GlkStyle.Normal;
+    }
+
+    @Override
+    public void attachView() {
+        super.attachView();
+
+        // TextIO classes currently have a strong dependency on their corresponding TextView
+        // classes. When the layout manager decides TextGridView needs to resize, TextGridIO
+        // needs to update the contents of the grid by padding or removing values as defined
+        // in the Glk spec. Hence this circular dependency.
+        gv.setIO(this);
     }
 
     public void moveCursor(int x, int y) {
@@ -75,22 +98,15 @@ public class TextGridIO extends TextIO {
         final int width = tv.getCharsPerLine();
         final int height = tv.getNumLines();
 
+        if (tv.getPaint().getTextSize() != paintTextSize) {
+            updatePaints();
+        }
+
         if (width == previousWidth && height == previousHeight)
             return;
 
-        StringBuilder newText = new StringBuilder();
-        for (int y = 0; y < height; ++y) {
-            for (int x = 0; x < width; ++x) {
-                if (y >= previousHeight || x >= previousWidth)
-                    newText.append(" ");
-                else
-                    newText.append(text.charAt(getIndex(x, y, previousWidth)));
-            }
-            newText.append("\n");
-        }
-
-        text = newText;
-        tv.setText(text);
+        // The cells that are still inside the grid keep their contents.
+        gv.setGridSize(width, height);
 
         previousWidth = width;
         previousHeight = height;
@@ -98,8 +114,23 @@ public class TextGridIO extends TextIO {
         cy = Math.min(cy, height - 1);
     }
 
-    // Advances cursor and returns the corresponding index into this.text
-    private int advanceCursor() {
+    /* Gives the view a paint and background color for each style. */
+    private void updatePaints() {
+        TextPaint base = tv.getPaint();
+        TextPaint[] paints = new TextPaint[StyleManager.NUM_STYLES];
+        int[] backColors = new int[StyleManager.NUM_STYLES];
+        synchronized(styleMan) {
+            for (int s = 0; s < StyleManager.NUM_STYLES; s++) {
+                paints[s] = new TextPaint(base);
+                backColors[s] = styleMan.applyGridStyle(s, paints[s]);
+            }
+        }
+        gv.setCellStyles(paints, backColors);
+        paintTextSize = base.getTextSize();
+    }
+
+    // Advances the cursor, wrapping at the end of a line.
+    private void advanceCursor() {
         final int width = tv.getCharsPerLine();
 
         if (cx < width - 1)
@@ -108,53 +139,18 @@ public class TextGridIO extends TextIO {
             cx = 0;
             cy += 1;
         }
-
-        return currentIndex();
     }
 
-    // Advances cursor to the next line and returns the corresponding index into this.text
-    private int advanceCursorToNextLine() {
+    // Advances the cursor to the start of the next line.
+    private void advanceCursorToNextLine() {
         cx = 0;
         cy += 1;
-
-        return currentIndex();
-    }
-
-    private int currentIndex() {
-        final int width = tv.getCharsPerLine();
-        return getIndex(cx, cy, width);
-    }
-
-    // The first index value past the last valid one. All indices greater than or equal to this
-    // are invalid.
-    private int endIndex() {
-        final int width = tv.getCharsPerLine();
-        final int height = tv.getNumLines();
-        return getIndex(0, height, width);
-    }
-
-    private int getIndex(int x, int y, int width) {
-        // Our internal representation of the text grid has newline characters added at the end
-        // of each line. The '+ y' accounts for this. We never want a Glk call to be able to touch
-        // the newlines.
-        return x + (y * width) + y;
     }
 
     @Override
     public void doClear() {
-        final int width = tv.getCharsPerLine();
-        final int height = tv.getNumLines();
-
-        StringBuilder newText = new StringBuilder();
-        for (int y = 0; y < height; ++y) {
-            for (int x = 0; x < width; ++x) {
-                newText.append(" ");
-            }
-            newText.append("\n");
-        }
-
-        text = newText;
-        tv.setText(text);
+        gv.clearGrid();
+        gv.invalidateDirtyRows();
 
         cx = 0;
         cy = 0;
@@ -162,42 +158,102 @@ public class TextGridIO extends TextIO {
 
     @Override
     public void doPrint(String str) {
-        int index = currentIndex();
-
-        // Don't print anything if the cursor position is outside the window
-        if (index >= endIndex())
-            return;
+        final int height = tv.getNumLines();
 
         // Print the text, but don't go outside the window
-        for (int i = 0; i < str.length() && index < endIndex(); ++i) {
+        for (int i = 0; i < str.length() && cy < height; ++i) {
             char c = str.charAt(i);
             if(c == '\n') {
                 // A newline in the Glk string causes the cursor to advance to the next line
-                index = advanceCursorToNextLine();
+                advanceCursorToNextLine();
             }
             else {
-                text.setCharAt(index, c);
-                index = advanceCursor();
+                gv.setCell(cx, cy, c, currentStyle);
+                advanceCursor();
             }
         }
-        tv.setText(text);
+        gv.invalidateDirtyRows();
+    }
+
+    @Override
+    public void doLineInput(boolean unicode, int maxlen,
+            char[] initialChars) {
+
+        super.doLineInput(unicode, maxlen, initialChars);
+        echoed = 0;
+        showCursor();
+        gv.invalidateDirtyRows();
+    }
+
+    @Override
+    public void stopLineInput() {
+        super.stopLineInput();
+        gv.setCursor(-1, -1);
+        gv.invalidateDirtyRows();
+    }
+
+    // Shows the input cursor where the next character will go, if that
+    // is inside the grid.
+    private void showCursor() {
+        if (cy < tv.getNumLines()) {
+            gv.setCursor(cx, cy);
+        } else {
+            gv.setCursor(-1, -1);
+        }
     }
 
+    /**
+     * Echoes input at the cursor, in the input style. Input that does
+     * not fit in the grid is not shown.
+     */
     @Override
     protected void textEcho(CharSequence str) {
-        // TODO Auto-generated method stub
+        final int height = tv.getNumLines();
 
+        for (int i = 0; i < str.length() && cy < height; ++i) {
+            gv.setCell(cx, cy, str.charAt(i), GlkStyle.Input);
+            advanceCursor();
+            echoed += 1;
+        }
+        showCursor();
+        gv.invalidateDirtyRows();
     }
 
     /**
-     * Does nothing. Newlines after input are not echoed into a text grid
-     * window.
+     * Blanks the last echoed cell and moves the cursor back onto it.
      */
     @Override
-    protected final void textEchoNewline() {}
+    protected void textUnecho() {
+        if (echoed == 0) {
+            return;
+        }
+        echoed -= 1;
 
+        if (cx > 0) {
+            cx -= 1;
+        } else {
+            cx = tv.getCharsPerLine() - 1;
+            cy -= 1;
+        }
+        gv.setCell(cx, cy, ' ', currentStyle);
+        showCursor();
+        gv.invalidateDirtyRows();
+    }
+
+    /**
+     * Hides the input cursor, since line input has ended. Newlines after
+     * input are not echoed into a text grid window.
+     */
     @Override
-    public void doStyle(int style) {}
+    protected final void textEchoNewline() {
+        gv.setCursor(-1, -1);
+        gv.invalidateDirtyRows();
+    }
+
+    @Override
+    public void doStyle(int style) {
+        currentStyle = style;
+    }
 
     @Override
     public void doHyperlink(int linkval) {}
@@ -20,10 +20,9 @@ package org.brickshadow.roboglk.io;
 
 import org.brickshadow.roboglk.GlkStyle;
 import org.brickshadow.roboglk.AbstractGlkTextWindow;
-import org.brickshadow.roboglk.util.UISync;
 import org.brickshadow.roboglk.view.TextWindowView;
+import org.brickshadow.roboglk.view.WindowMetrics;
 
-import android.text.Editable;
 import android.text.Selection;
 import android.text.SpannableStringBuilder;
 import android.text.method.TextKeyListener;
@@ -62,13 +61,6 @@ public abstract class TextIO {
      * The style manager.
      */
     protected final StyleManager styleMan;
-
-    /**
-     * Return values for UISync.waitFor call
-     */
-    private UISync uiWait = UISync.getInstance();
-    private volatile int width = 0;
-    private volatile int height = 0;
     
     TextIO(TextWindowView tv, StyleManager styleMan) {
         this.tv = tv;
@@ -78,7 +70,15 @@ public abstract class TextIO {
         listener = TextKeyListener.getInstance(false,
                 TextKeyListener.Capitalize.NONE);
         tb = new SpannableStringBuilder(" ");
-        
+    }
+
+    /**
+     * Installs this object's listeners on its view. The constructor
+     * leaves the view alone, so that it can run on the interpreter
+     * thread; this must be called on the UI thread before the view is
+     * shown.
+     */
+    public void attachView() {
         tv.setOnKeyListener(new View.OnKeyListener() {
             
             @Override
@@ -104,20 +104,16 @@ public abstract class TextIO {
      * be the number of "0" (zero) characters that would fit on a line;
      * the height should be the number of lines of text that fit in the view.
      * Both measurements should be in terms of the normal font of the view.
+     * <p>
+     * This reads the view's latest {@link WindowMetrics} snapshot, so it
+     * may be called from the interpreter thread without a round-trip to
+     * the UI thread.
      * 
      * @return a two-element array with the width and height of the window
      */
     public final int[] getWindowSize() {
-        uiWait.waitFor(new Runnable() {
-            @Override
-            public void run() {
-                width = tv.getCharsPerLine();
-                height = tv.getNumLines();
-                uiWait.stopWaiting(null);
-            }
-        });
-
-        return new int[] { width, height };
+        WindowMetrics m = tv.getMetrics();
+        return new int[] { m.charsPerLine, m.numLines };
     }
     
     public void setWindow(AbstractGlkTextWindow win) {
@@ -363,9 +359,7 @@ public abstract class TextIO {
             if (currInputLength == 0) {
                 return true;
             } else {
-                Editable text = tv.getEditableText();
-                int len = text.length();
-                text.delete(len - 1, len);
+                textUnecho();
                 currInputLength -=1;
                 return true;
             }
@@ -423,6 +417,20 @@ public abstract class TextIO {
     
     protected abstract void textEchoNewline();
 
+    /**
+     * Takes back the last character echoed by {@link #textEcho}, when
+     * the player deletes it.
+     */
+    protected abstract void textUnecho();
+
+    /**
+     * Returns the style manager. Outside of the UI thread, it must be
+     * synchronized on.
+     */
+    public final StyleManager getStyleManager() {
+        return styleMan;
+    }
+
     public final int measureStyle(int style, int hint) {
         synchronized(styleMan) {
             return styleMan.measureStyle(style, hint);
@@ -436,18 +444,10 @@ public abstract class TextIO {
     }
 
     public int getLinesSize(int numLines, int maxSize) {
-        int lineHeight = tv.getLineHeight();
-        while ((numLines * lineHeight) > maxSize) {
-            numLines -= 1;
-        }
-        return numLines * lineHeight;
+        return tv.getMetrics().getLinesSize(numLines, maxSize);
     }
 
     public int getCharsSize(int numChars, int maxSize) {
-        int charWidth = (int) Math.ceil(tv.getPaint().measureText("0", 0, 1));
-        while ((numChars * charWidth) > maxSize) {
-            numChars -= 1;
-        }
-        return numChars * charWidth;
+        return tv.getMetrics().getCharsSize(numChars, maxSize);
     }
 }
@@ -0,0 +1,98 @@
+/* This file is a part of roboglk.
+ * Copyright (c) 2009 Edward McCardell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.brickshadow.roboglk.util;
+
+
+/**
+ * A bounded single-producer/single-consumer ring of event records.
+ * Each record is four ints, laid out the same way as the array
+ * passed to {@link org.brickshadow.roboglk.Glk#select(int[])}.
+ * <p>
+ * Exactly one thread may call {@link #offer(int, int, int, int)} and
+ * exactly one (possibly different) thread may call
+ * {@link #take(int[])}. Records are written before the tail index is
+ * published and read before the head index is released, so the
+ * volatile indices are all the synchronization that is needed.
+ */
+final class EventRing {
+    static final int RECORD_INTS = 4;
+
+    private final int[] records;
+    private final int mask;
+
+    /* Only written by the consumer. */
+    private volatile int head;
+    /* Only written by the producer. */
+    private volatile int tail;
+
+    /**
+     * Creates a ring holding up to {@code capacity} records.
+     *
+     * @param capacity the number of records; must be a power of two
+     */
+    EventRing(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("capacity " + capacity);
+        }
+        records = new int[capacity * RECORD_INTS];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Appends a record. Called only from the producer thread.
+     *
+     * @return false if the ring is full and the record was not added
+     */
+    boolean offer(int type, int win, int arg1, int arg2) {
+        int t = tail;
+        if (t - head > mask) {
+            return false;
+        }
+        int i = (t & mask) * RECORD_INTS;
+        records[i] = type;
+        records[i + 1] = win;
+        records[i + 2] = arg1;
+        records[i + 3] = arg2;
+        tail = t + 1;
+        return true;
+    }
+
+    /**
+     * Removes the oldest record into {@code event}. Called only from
+     * the consumer thread.
+     *
+     * @return false if the ring was empty
+     */
+    boolean take(int[] event) {
+        int h = head;
+        if (h == tail) {
+            return false;
+        }
+        int i = (h & mask) * RECORD_INTS;
+        event[0] = records[i];
+        event[1] = records[i + 1];
+        event[2] = records[i + 2];
+        event[3] = records[i + 3];
+        head = h + 1;
+        return true;
+    }
+
+    boolean isEmpty() {
+        return head == tail;
+    }
+}
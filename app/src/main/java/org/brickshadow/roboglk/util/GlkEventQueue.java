@@ -18,9 +18,11 @@
 package org.brickshadow.roboglk.util;
 
 
-import java.util.LinkedList;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 import org.brickshadow.roboglk.Glk;
 import org.brickshadow.roboglk.GlkEventType;
@@ -32,27 +34,61 @@ import android.os.Message;
 
 /**
  * An event queue which follows the requirements of the Glk spec, It
- * assumes that {@link #select()} and {@link #poll()} will only be
- * called from the interpreter thread, and that {@link #putEvent(Message)}
- * will only be called from the UI thread.
+ * assumes that {@link #select(int[])} and {@link #poll(int[])} will
+ * only be called from the interpreter thread, and that
+ * {@link #putEvent(int, GlkWindow, int, int)} will only be called
+ * from the UI thread.
  * <p>
- * For efficiency, events are represented as {@code Message} objects;
- * if this is undesirable it can be easily changed, since clients
- * of this class should only be using the messages as opaque references.
+ * Events are stored as packed int records in two single-producer,
+ * single-consumer rings: one for events that only {@code select}
+ * returns and one for the events {@code poll} may also return. Neither
+ * side takes a lock; a waiting {@code select} parks the interpreter
+ * thread and the producer unparks it. The older {@code Message}
+ * factories are still accepted by {@link #putEvent(Message)}.
+ * <p>
+ * No event is ever discarded. If a ring is full, the event waits in
+ * an overflow list that the consumer drains after the ring.
  * <p>
  * See {@link GlkEventType}, {@link Glk#select(int[])} and
  * {@link Glk#poll(int[])} for more information.
  * <p>
  * This implementation coalesces multiple enqueued timer events into
- * a single event as per the Glk specification.
+ * a single event as per the Glk specification. The timer thread only
+ * sets a pending flag, so the rings keep a single producer.
+ * <p>
+ * Windows that batch their output register an {@link OutputBatcher}
+ * with the queue; all registered batchers are flushed before
+ * {@link #select()} blocks.
  */
 public class GlkEventQueue {
-    private LinkedList<Message> selectQueue = new LinkedList<Message>();
-    private LinkedList<Message> pollQueue = new LinkedList<Message>();
-    private Timer timer = new Timer();
-    private long timerMillisecs = 0;
-    private volatile boolean hasTimerEvent = false;
-    private UISync uiWait = UISync.getInstance();
+    private static final int SELECT_CAPACITY = 256;
+    private static final int POLL_CAPACITY = 64;
+    
+    private final EventRing selectRing = new EventRing(SELECT_CAPACITY);
+    private final EventRing pollRing = new EventRing(POLL_CAPACITY);
+    
+    /*
+     * Events that arrive while a ring is full. Once anything is waiting
+     * here, later events of the same class are added here too, so that
+     * they stay in order.
+     */
+    private final Queue<int[]> selectOverflow =
+        new ConcurrentLinkedQueue<int[]>();
+    private final Queue<int[]> pollOverflow =
+        new ConcurrentLinkedQueue<int[]>();
+    private final AtomicBoolean timerPending = new AtomicBoolean();
+    private volatile Thread waiter;
+    private volatile int overflowedEvents;
+    private volatile int coalescedTimers;
+    private final GlkTimer timer = new GlkTimer(new GlkTimer.Listener() {
+        @Override
+        public void onTick() {
+            timerFired();
+        }
+    });
+    private final ArrayList<OutputBatcher> batchers =
+        new ArrayList<OutputBatcher>();
+    private volatile Runnable layoutBarrier;
     
     /**
      * Translates an event message into the form required by
@@ -201,110 +237,269 @@ public class GlkEventQueue {
     }
     
     /**
-     * Returns an event message if one is immediately available, or
-     * {code null}. See {@link Glk#poll(int[])}.
+     * Stores the next poll-class event in {@code event} if one is
+     * immediately available, or zeroes it. See {@link Glk#poll(int[])}.
      * 
-     * @return an event message or {@code null}
+     * @param event a four-element array to store the event details
      */
-    public Message poll() {
-        synchronized(uiWait) {
-            Message msg = pollQueue.poll();
-            if (msg != null && msg.what == GlkEventType.Timer) {
-                hasTimerEvent = false;
-                scheduleNextTimer();
-            }
-            return msg;
+    public void poll(int[] event) {
+        if (!take(pollRing, pollOverflow, event) && !takeTimer(event)) {
+            clear(event);
         }
     }
     
     /**
-     * Blocks until an event message is available and returns it.
-     * See {@link Glk#select(int[])}.
+     * Blocks until an event is available and stores it in
+     * {@code event}. See {@link Glk#select(int[])}.
+     * <p>
+     * If the interpreter thread is interrupted while waiting, the
+     * event is zeroed and the interrupt status is left set.
      * 
-     * @return an event message 
+     * @param event a four-element array to store the event details
      */
-    public Message select() {
-        synchronized(uiWait) {
-            try {
-                while (selectQueue.isEmpty() && pollQueue.isEmpty()) {
-                    //Log.w("SELECT", "before wait");
-                    uiWait.wait();
-                    //Log.w("SELECT", "after wait");
-                }
-
-                Message msg;
-                msg = selectQueue.poll();
-                if (msg == null) {
-                    msg = pollQueue.poll();
-                }
-
-                if (msg != null && (msg.what == GlkEventType.Timer)) {
-                    hasTimerEvent = false;
-                    scheduleNextTimer();
-                }
-            
-                return msg;
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                return null;
+    public void select(int[] event) {
+        flushOutput();
+        syncLayout();
+        Thread self = Thread.currentThread();
+        while (!take(event)) {
+            waiter = self;
+            /* Re-check after publishing the waiter, so that an event
+             * offered before the producer could see us is not missed.
+             */
+            if (selectRing.isEmpty() && pollRing.isEmpty()
+                    && selectOverflow.isEmpty() && pollOverflow.isEmpty()
+                    && !timerPending.get()) {
+                LockSupport.park(this);
+            }
+            waiter = null;
+            if (self.isInterrupted()) {
+                clear(event);
+                return;
             }
         }
     }
     
+    private boolean take(int[] event) {
+        return take(selectRing, selectOverflow, event)
+            || take(pollRing, pollOverflow, event)
+            || takeTimer(event);
+    }
+    
+    /*
+     * Takes the oldest event of one class. The overflow list is looked
+     * at before the ring: while it holds anything the producer only adds
+     * to it, so whatever is in the ring then is older than its head.
+     */
+    private static boolean take(EventRing ring, Queue<int[]> overflow,
+            int[] event) {
+        
+        int[] spilled = overflow.peek();
+        if (ring.take(event)) {
+            return true;
+        }
+        if (spilled == null) {
+            return false;
+        }
+        overflow.remove();
+        System.arraycopy(spilled, 0, event, 0, EventRing.RECORD_INTS);
+        return true;
+    }
+    
+    private boolean takeTimer(int[] event) {
+        if (!timerPending.getAndSet(false)) {
+            return false;
+        }
+        event[0] = GlkEventType.Timer;
+        event[1] = 0;
+        event[2] = 0;
+        event[3] = 0;
+        return true;
+    }
+    
+    private static void clear(int[] event) {
+        event[0] = 0;
+        event[1] = 0;
+        event[2] = 0;
+        event[3] = 0;
+    }
+    
+    /**
+     * Adds an event to the queue. This must only be called from the
+     * UI thread; timer events should not be put here, since the queue
+     * generates them itself.
+     * 
+     * @param type the event type; see {@link GlkEventType}
+     * @param win the window the event applies to, or {@code null}
+     * @param arg1 the first event argument
+     * @param arg2 the second event argument
+     */
+    public void putEvent(int type, GlkWindow win, int arg1, int arg2) {
+        putEvent(type, (win == null ? 0 : win.getId()), arg1, arg2);
+    }
+    
     /**
-     * Adds an event message to the queue.
+     * Adds an event message to the queue. The message is recycled.
+     * This must only be called from the UI thread.
      * 
      * @param msg an event message.
      */
     public void putEvent(Message msg) {
-        synchronized(uiWait) {
-            boolean wasEmpty = selectQueue.isEmpty() && pollQueue.isEmpty();
-        
-            switch (msg.what) {
-            case GlkEventType.Arrange:
-            case GlkEventType.Redraw:
-            case GlkEventType.SoundNotify:
-                pollQueue.add(msg);
-                break;
-            case GlkEventType.Timer:
-                if (!hasTimerEvent) {
-                    pollQueue.add(msg);
-                    hasTimerEvent = true;
-                } else {
-                    return;
-                }
-                break;
-            default:
-                selectQueue.add(msg);
-                break;
-            }
+        int what = msg.what;
+        int win = (msg.obj == null ? 0 : ((GlkWindow) msg.obj).getId());
+        int arg1 = msg.arg1;
+        int arg2 = msg.arg2;
+        msg.recycle();
+        putEvent(what, win, arg1, arg2);
+    }
+    
+    private void putEvent(int type, int win, int arg1, int arg2) {
+        switch (type) {
+        case GlkEventType.Arrange:
+        case GlkEventType.Redraw:
+        case GlkEventType.SoundNotify:
+            offer(pollRing, pollOverflow, type, win, arg1, arg2);
+            break;
+        case GlkEventType.Timer:
+            timerFired();
+            return;
+        default:
+            offer(selectRing, selectOverflow, type, win, arg1, arg2);
+            break;
+        }
+        wakeWaiter();
+    }
+    
+    private void offer(EventRing ring, Queue<int[]> overflow,
+            int type, int win, int arg1, int arg2) {
         
-            if (wasEmpty) {
-                uiWait.notify();
+        if (overflow.isEmpty() && ring.offer(type, win, arg1, arg2)) {
+            return;
+        }
+        overflow.add(new int[] { type, win, arg1, arg2 });
+        overflowedEvents++;
+    }
+    
+    /*
+     * Called from the timer thread. Pending timer events are coalesced
+     * into a single one, so a flag is enough and the rings keep their
+     * single producer. Ticks that fall due while an event is pending
+     * are counted by getCoalescedTimerCount().
+     */
+    private void timerFired() {
+        if (timerPending.compareAndSet(false, true)) {
+            wakeWaiter();
+        } else {
+            coalescedTimers++;
+        }
+    }
+    
+    private void wakeWaiter() {
+        Thread t = waiter;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+    
+    /**
+     * Returns the number of events that went to an overflow list
+     * because their ring was full.
+     */
+    public int getOverflowedEventCount() {
+        return overflowedEvents;
+    }
+    
+    /**
+     * Returns the number of timer events folded into one that was
+     * already pending.
+     */
+    public int getCoalescedTimerCount() {
+        return coalescedTimers;
+    }
+    
+    /**
+     * Registers an output batcher to be flushed before the interpreter
+     * blocks waiting for an event.
+     * 
+     * @param batcher an output batcher
+     */
+    public void addOutputBatcher(OutputBatcher batcher) {
+        synchronized(batchers) {
+            batchers.add(batcher);
+        }
+    }
+    
+    /**
+     * Unregisters an output batcher.
+     * 
+     * @param batcher an output batcher
+     */
+    public void removeOutputBatcher(OutputBatcher batcher) {
+        synchronized(batchers) {
+            batchers.remove(batcher);
+        }
+    }
+    
+    /**
+     * Sets the barrier that {@link #syncLayout()} runs. The window
+     * layout installs one so that window operations it has queued are
+     * complete before the interpreter waits for input or asks for a
+     * window size.
+     * 
+     * @param barrier the barrier, or {@code null} for none
+     */
+    public void setLayoutBarrier(Runnable barrier) {
+        layoutBarrier = barrier;
+    }
+    
+    /**
+     * Waits for queued window operations to complete, if a layout
+     * barrier is set.
+     */
+    public void syncLayout() {
+        Runnable barrier = layoutBarrier;
+        if (barrier != null) {
+            barrier.run();
+        }
+    }
+    
+    /**
+     * Flushes the pending output of every registered window.
+     */
+    public void flushOutput() {
+        synchronized(batchers) {
+            for (int i = 0; i < batchers.size(); i++) {
+                batchers.get(i).flush();
             }
         }
     }
     
     public void cancelTimer() {
         timer.cancel();
-        timer = new Timer();
-        timerMillisecs = 0;
     }
     
+    /**
+     * Starts fixed-rate timer events; see {@link GlkTimer}.
+     * 
+     * @param millisecs the interval between events, or 0 to stop them
+     */
     public void requestTimer(int millisecs) {
-        timerMillisecs = millisecs;
-        scheduleNextTimer();
+        timer.start(millisecs);
     }
     
-    private void scheduleNextTimer() {
-        if (timerMillisecs == 0) {
-            return;
-        }
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                GlkEventQueue.this.putEvent(GlkEventQueue.newTimerEvent());
-            }
-        }, timerMillisecs);
+    /**
+     * Suspends or resumes timer events, for example while the activity
+     * is stopped. A pending timer event is not affected.
+     * 
+     * @param paused whether timer events should be suspended
+     */
+    public void setTimerPaused(boolean paused) {
+        timer.setPaused(paused);
+    }
+    
+    /**
+     * Returns the timer, for its jitter and missed-tick statistics.
+     */
+    public GlkTimer getTimer() {
+        return timer;
     }
 }
@@ -0,0 +1,213 @@
+/* This file is a part of roboglk.
+ * Copyright (c) 2009 Edward McCardell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.brickshadow.roboglk.util;
+
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+
+
+/**
+ * A fixed-rate timer for Glk timer events.
+ * <p>
+ * Ticks are scheduled against the time the timer was started rather
+ * than the time the previous tick ran, so the rate does not drift.
+ * If ticks are missed (because the thread was busy or the device was
+ * asleep) they are not replayed; the timer fires once and moves on to
+ * the next tick that is still in the future.
+ * <p>
+ * All timers share one background thread, which is started the first
+ * time it is needed and never replaced, so cancelling and restarting
+ * a timer is cheap. A timer can be paused, for example while its
+ * activity is stopped; resuming it restarts the schedule from the
+ * current time.
+ */
+public class GlkTimer {
+
+    /**
+     * Receives the ticks of a timer, on the timer thread.
+     */
+    public interface Listener {
+        void onTick();
+    }
+
+    private static final int MSG_TICK = 1;
+
+    private static HandlerThread thread;
+
+    private final Listener listener;
+    private final Handler handler;
+
+    /* These are guarded by the timer's monitor. */
+    private int periodMillis;
+    private boolean paused;
+    private long nextTick;
+    private int generation;
+
+    private volatile long tickCount;
+    private volatile long missedTicks;
+    private volatile long totalJitterMillis;
+    private volatile long maxJitterMillis;
+
+    public GlkTimer(Listener listener) {
+        this.listener = listener;
+        handler = new Handler(getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                tick(msg.arg1);
+                return true;
+            }
+        });
+    }
+
+    private static synchronized Looper getLooper() {
+        if (thread == null) {
+            thread = new HandlerThread("roboglk-timer");
+            thread.start();
+        }
+        return thread.getLooper();
+    }
+
+    /**
+     * Starts (or restarts) the timer with the given period. A period
+     * of zero stops it.
+     *
+     * @param millisecs the interval between ticks
+     */
+    public synchronized void start(int millisecs) {
+        stopTicks();
+        periodMillis = (millisecs > 0 ? millisecs : 0);
+        if (periodMillis != 0 && !paused) {
+            startTicks();
+        }
+    }
+
+    /**
+     * Stops the timer.
+     */
+    public synchronized void cancel() {
+        stopTicks();
+        periodMillis = 0;
+    }
+
+    /**
+     * Pauses or resumes the timer. The period is kept while paused.
+     *
+     * @param paused whether ticks should be suspended
+     */
+    public synchronized void setPaused(boolean paused) {
+        if (this.paused == paused) {
+            return;
+        }
+        this.paused = paused;
+        if (paused) {
+            stopTicks();
+        } else if (periodMillis != 0) {
+            startTicks();
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return periodMillis != 0 && !paused;
+    }
+
+    private void startTicks() {
+        nextTick = SystemClock.uptimeMillis() + periodMillis;
+        post();
+    }
+
+    private void stopTicks() {
+        /* A tick already taken off the queue sees the new generation
+         * and does nothing.
+         */
+        generation++;
+        handler.removeMessages(MSG_TICK);
+    }
+
+    private void post() {
+        handler.sendMessageAtTime(
+                handler.obtainMessage(MSG_TICK, generation, 0), nextTick);
+    }
+
+    /* The listener is called with the monitor held, so that no tick
+     * is delivered after cancel() returns.
+     */
+    private synchronized void tick(int gen) {
+        if (gen != generation || periodMillis == 0 || paused) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        long late = now - nextTick;
+        if (late < 0) {
+            /* Woken early; wait for the real deadline. */
+            post();
+            return;
+        }
+
+        tickCount++;
+        totalJitterMillis += late;
+        if (late > maxJitterMillis) {
+            maxJitterMillis = late;
+        }
+
+        /* Skip past any ticks that were missed entirely, keeping
+         * to the original schedule.
+         */
+        long missed = late / periodMillis;
+        missedTicks += missed;
+        nextTick += (missed + 1) * periodMillis;
+        post();
+
+        listener.onTick();
+    }
+
+    /** Returns the number of ticks delivered. */
+    public long getTickCount() {
+        return tickCount;
+    }
+
+    /** Returns the number of ticks skipped because they fell due
+     *  while an earlier tick was late. */
+    public long getMissedTickCount() {
+        return missedTicks;
+    }
+
+    /** Returns the mean delay, in milliseconds, between a tick's
+     *  scheduled time and its delivery. */
+    public float getMeanJitterMillis() {
+        long n = tickCount;
+        return (n == 0 ? 0f : (float) totalJitterMillis / n);
+    }
+
+    /** Returns the largest delay, in milliseconds, between a tick's
+     *  scheduled time and its delivery. */
+    public long getMaxJitterMillis() {
+        return maxJitterMillis;
+    }
+
+    /** Clears the tick, jitter and missed-tick statistics. */
+    public synchronized void resetStats() {
+        tickCount = 0;
+        missedTicks = 0;
+        totalJitterMillis = 0;
+        maxJitterMillis = 0;
+    }
+}
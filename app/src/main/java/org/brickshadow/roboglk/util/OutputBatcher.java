@@ -0,0 +1,515 @@
+/* This file is a part of roboglk.
+ * Copyright (c) 2009 Edward McCardell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.brickshadow.roboglk.util;
+
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+
+import org.brickshadow.roboglk.GlkOutputCommand;
+import org.brickshadow.roboglk.io.TextIO;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+
+/**
+ * Collects the output operations that the interpreter thread issues
+ * for a single text window, and applies them on the UI thread in
+ * batches.
+ * <p>
+ * Operations are appended to a reusable buffer instead of being posted
+ * to the UI thread one {@code Runnable} at a time. Adjacent text is
+ * merged into a single run, and redundant style or hyperlink changes
+ * collapse into the last one. The buffer is applied at most once per
+ * display frame, or immediately when {@link #flush()} is called (which
+ * {@link GlkEventQueue#select()} does before the interpreter blocks).
+ * <p>
+ * All appending methods must be called from the interpreter thread.
+ * Any other work that has to be ordered with respect to the output,
+ * such as clearing the window or starting input, should be passed to
+ * {@link #post(Runnable)}; callers that go to the UI thread by some
+ * other route (e.g. {@link UISync#waitFor(Runnable)}) must call
+ * {@link #flush()} first.
+ * <p>
+ * If a {@link Preparer} is installed, text, style and hyperlink changes
+ * are handed to it on a worker thread instead, and the UI thread only
+ * runs the actions that it returns.
+ */
+public class OutputBatcher {
+
+    /**
+     * Formats a window's output off the UI thread. Calls to a preparer
+     * are never concurrent, but they may come from either the worker
+     * thread or the interpreter thread.
+     */
+    public interface Preparer {
+
+        void print(char[] text, int start, int len);
+
+        void setStyle(int style);
+
+        void setHyperlink(int linkval);
+
+        /**
+         * Returns an action that shows the UI thread everything passed
+         * to the preparer since the last call, or {@code null} if there
+         * is nothing to show.
+         */
+        Runnable finish();
+    }
+
+    /**
+     * Receives the UI-thread cost of each turn's output.
+     */
+    public interface TimingListener {
+
+        /**
+         * Called on the UI thread when output is flushed, which happens
+         * whenever the interpreter waits for an event.
+         *
+         * @param batcher the batcher that applied the output
+         * @param uiNanos the time spent on the UI thread applying the
+         *                output since the previous call
+         * @param ops the number of operations applied in that time
+         */
+        void onTurnApplied(OutputBatcher batcher, long uiNanos, int ops);
+    }
+
+    /** The delay before a partially filled batch is applied. */
+    private static final int FRAME_MILLIS = 16;
+
+    private static final int OP_PRINT = 0;
+    private static final int OP_STYLE = 1;
+    private static final int OP_LINK = 2;
+    private static final int OP_RUN = 3;
+
+    private static HandlerThread worker;
+
+    private final TextIO io;
+    private final Handler uiHandler;
+    private Handler handler;
+    private Preparer preparer;
+    private volatile TimingListener timingListener;
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /* These are guarded by the batcher's monitor. */
+    private Batch pending = new Batch();
+    private Batch spare = new Batch();
+    private boolean drainPosted;
+    private boolean flushed;
+
+    /* Held while a batch is taken and handed on, to keep batches in order. */
+    private final Object drainLock = new Object();
+
+    /* These are only used on the UI thread. */
+    private long turnNanos;
+    private int turnOps;
+
+    private volatile int lastFlushOps;
+    private volatile long flushCount;
+    private volatile long opCount;
+
+    public OutputBatcher(Context context, TextIO io) {
+        this.io = io;
+        uiHandler = new Handler(context.getMainLooper());
+        handler = uiHandler;
+    }
+
+    private static synchronized Looper getWorkerLooper() {
+        if (worker == null) {
+            worker = new HandlerThread("roboglk-output");
+            worker.start();
+        }
+        return worker.getLooper();
+    }
+
+    /**
+     * Installs a preparer for the output. This must be done before any
+     * output is appended.
+     *
+     * @param preparer the preparer, or {@code null} to apply output
+     *                 directly on the UI thread
+     */
+    public synchronized void setPreparer(Preparer preparer) {
+        this.preparer = preparer;
+        handler = (preparer == null ? uiHandler
+                : new Handler(getWorkerLooper()));
+    }
+
+    /**
+     * Sets a listener for the UI-thread time spent on each turn's output,
+     * or {@code null} to stop measuring it.
+     */
+    public void setTimingListener(TimingListener listener) {
+        timingListener = listener;
+    }
+
+    /**
+     * Appends text to the batch.
+     *
+     * @param str the text to print
+     */
+    public synchronized void print(String str) {
+        int len = str.length();
+        if (len == 0) {
+            return;
+        }
+        Batch b = pending;
+        b.ensureText(len);
+        str.getChars(0, len, b.text, b.textLen);
+        b.textLen += len;
+        if (b.lastOp() == OP_PRINT) {
+            b.ops[b.numOps - 1] += len;
+        } else {
+            b.addOp(OP_PRINT, len);
+        }
+        b.count += 1;
+        schedule();
+    }
+
+    /**
+     * Appends the contents of a GlkJNI output command stream to the
+     * batch. See {@link GlkOutputCommand} for the format.
+     *
+     * @param cmds the commands
+     * @param len the length of the commands, in 16-bit units
+     */
+    public synchronized void appendCommands(CharBuffer cmds, int len) {
+        Batch b = pending;
+        int i = 0;
+        while (i < len) {
+            int cmd = cmds.get(i);
+            switch (cmd) {
+            case GlkOutputCommand.Text:
+                int n = cmds.get(i + 1);
+                if (n != 0) {
+                    b.ensureText(n);
+                    cmds.position(i + 2);
+                    cmds.get(b.text, b.textLen, n);
+                    b.textLen += n;
+                    if (b.lastOp() == OP_PRINT) {
+                        b.ops[b.numOps - 1] += n;
+                    } else {
+                        b.addOp(OP_PRINT, n);
+                    }
+                    b.count += 1;
+                }
+                i += 2 + n;
+                break;
+            case GlkOutputCommand.Style:
+            case GlkOutputCommand.Link:
+                int val = cmds.get(i + 1) | (cmds.get(i + 2) << 16);
+                addValueOp(cmd == GlkOutputCommand.Style ? OP_STYLE : OP_LINK,
+                        val);
+                i += 3;
+                break;
+            default:
+                throw new IllegalArgumentException(
+                        "unknown output command " + cmd);
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * Appends a style change to the batch.
+     *
+     * @param style one of the {@code GlkStyle} constants
+     */
+    public synchronized void setStyle(int style) {
+        addValueOp(OP_STYLE, style);
+    }
+
+    /**
+     * Appends a hyperlink change to the batch.
+     *
+     * @param linkval the new link value, or 0 for no link
+     */
+    public synchronized void setHyperlink(int linkval) {
+        addValueOp(OP_LINK, linkval);
+    }
+
+    /**
+     * Appends an arbitrary UI-thread action to the batch. It will run
+     * after all of the output that was appended before it.
+     *
+     * @param r the action
+     */
+    public synchronized void post(Runnable r) {
+        Batch b = pending;
+        b.addOp(OP_RUN, b.runs.size());
+        b.runs.add(r);
+        b.count += 1;
+        schedule();
+    }
+
+    /**
+     * Schedules the current batch to be applied on the UI thread as
+     * soon as possible, instead of waiting for the next frame. With a
+     * preparer, the batch is prepared on the calling thread, so that
+     * it is queued for the UI thread by the time this returns.
+     */
+    public void flush() {
+        synchronized(this) {
+            if (pending.numOps == 0) {
+                return;
+            }
+            flushed = true;
+            if (drainPosted) {
+                handler.removeCallbacks(drainTask);
+            }
+            if (preparer == null) {
+                drainPosted = true;
+                handler.post(drainTask);
+                return;
+            }
+            drainPosted = false;
+        }
+        drain();
+    }
+
+    /**
+     * Returns the number of operations applied by the most recent flush.
+     * Merged text and collapsed style changes are each counted as
+     * separate operations.
+     */
+    public int getLastFlushOps() {
+        return lastFlushOps;
+    }
+
+    /**
+     * Returns the number of batches that have been applied.
+     */
+    public long getFlushCount() {
+        return flushCount;
+    }
+
+    /**
+     * Returns the total number of operations that have been applied.
+     */
+    public long getOpCount() {
+        return opCount;
+    }
+
+    /**
+     * Returns the average number of operations applied per flush.
+     */
+    public float getOpsPerFlush() {
+        long flushes = flushCount;
+        return (flushes == 0 ? 0 : (float) opCount / flushes);
+    }
+
+    private void addValueOp(int op, int val) {
+        Batch b = pending;
+        if (b.lastOp() == op) {
+            b.ops[b.numOps - 1] = val;
+        } else {
+            b.addOp(op, val);
+        }
+        b.count += 1;
+        schedule();
+    }
+
+    private void schedule() {
+        if (!drainPosted) {
+            drainPosted = true;
+            handler.postDelayed(drainTask, FRAME_MILLIS);
+        }
+    }
+
+    /*
+     * Runs on the UI thread, or with a preparer on the worker thread (or
+     * the interpreter thread, from flush()). The whole pending batch is
+     * taken at once, so operations are applied in the order in which
+     * they were appended no matter which of the posted drain tasks gets
+     * to them first.
+     */
+    private void drain() {
+        synchronized(drainLock) {
+            Batch b;
+            Preparer p;
+            boolean endOfTurn;
+            synchronized(this) {
+                drainPosted = false;
+                b = pending;
+                if (b.numOps == 0) {
+                    return;
+                }
+                pending = (spare != null ? spare : new Batch());
+                spare = null;
+                p = preparer;
+                endOfTurn = flushed;
+                flushed = false;
+            }
+
+            if (p == null) {
+                long start = (timingListener != null ? System.nanoTime() : 0);
+                apply(b);
+                applied(b.count, endOfTurn, start);
+            } else {
+                prepare(p, b, endOfTurn);
+            }
+
+            b.clear();
+            synchronized(this) {
+                spare = b;
+            }
+        }
+    }
+
+    private void apply(Batch b) {
+        int textPos = 0;
+        for (int i = 0; i < b.numOps; i += 2) {
+            int arg = b.ops[i + 1];
+            switch (b.ops[i]) {
+            case OP_PRINT:
+                io.doPrint(new String(b.text, textPos, arg));
+                textPos += arg;
+                break;
+            case OP_STYLE:
+                io.doStyle(arg);
+                break;
+            case OP_LINK:
+                io.doHyperlink(arg);
+                break;
+            case OP_RUN:
+                b.runs.get(arg).run();
+                break;
+            }
+        }
+    }
+
+    /*
+     * Passes the batch through the preparer and posts the resulting
+     * actions to the UI thread as one message.
+     */
+    private void prepare(Preparer p, Batch b, final boolean endOfTurn) {
+        final ArrayList<Runnable> actions = new ArrayList<Runnable>();
+        int textPos = 0;
+        for (int i = 0; i < b.numOps; i += 2) {
+            int arg = b.ops[i + 1];
+            switch (b.ops[i]) {
+            case OP_PRINT:
+                p.print(b.text, textPos, arg);
+                textPos += arg;
+                break;
+            case OP_STYLE:
+                p.setStyle(arg);
+                break;
+            case OP_LINK:
+                p.setHyperlink(arg);
+                break;
+            case OP_RUN:
+                addAction(actions, p.finish());
+                actions.add(b.runs.get(arg));
+                break;
+            }
+        }
+        addAction(actions, p.finish());
+
+        final int count = b.count;
+        uiHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                long start = (timingListener != null ? System.nanoTime() : 0);
+                for (int i = 0; i < actions.size(); i++) {
+                    actions.get(i).run();
+                }
+                applied(count, endOfTurn, start);
+            }
+        });
+    }
+
+    private static void addAction(ArrayList<Runnable> actions, Runnable r) {
+        if (r != null) {
+            actions.add(r);
+        }
+    }
+
+    /* Runs on the UI thread after a batch has been applied. */
+    private void applied(int count, boolean endOfTurn, long start) {
+        lastFlushOps = count;
+        opCount += count;
+        flushCount += 1;
+
+        TimingListener listener = timingListener;
+        if (listener == null) {
+            return;
+        }
+        if (start != 0) {
+            turnNanos += System.nanoTime() - start;
+            turnOps += count;
+        }
+        if (endOfTurn) {
+            listener.onTurnApplied(this, turnNanos, turnOps);
+            turnNanos = 0;
+            turnOps = 0;
+        }
+    }
+
+    private static final class Batch {
+        /* Pairs of (opcode, argument). */
+        int[] ops = new int[64];
+        int numOps;
+        char[] text = new char[1024];
+        int textLen;
+        final ArrayList<Runnable> runs = new ArrayList<Runnable>();
+        int count;
+
+        int lastOp() {
+            return (numOps == 0 ? -1 : ops[numOps - 2]);
+        }
+
+        void addOp(int op, int arg) {
+            if (numOps + 2 > ops.length) {
+                int[] newOps = new int[ops.length * 2];
+                System.arraycopy(ops, 0, newOps, 0, numOps);
+                ops = newOps;
+            }
+            ops[numOps++] = op;
+            ops[numOps++] = arg;
+        }
+
+        void ensureText(int len) {
+            if (textLen + len > text.length) {
+                int newLen = text.length * 2;
+                while (textLen + len > newLen) {
+                    newLen *= 2;
+                }
+                char[] newText = new char[newLen];
+                System.arraycopy(text, 0, newText, 0, textLen);
+                text = newText;
+            }
+        }
+
+        void clear() {
+            numOps = 0;
+            textLen = 0;
+            runs.clear();
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/* This file is a part of roboglk.
+ * Copyright (c) 2009 Edward McCardell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.brickshadow.roboglk.view;
+
+
+import android.graphics.Typeface;
+import android.text.Layout;
+import android.text.Spanned;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.widget.TextView;
+
+
+/**
+ * Keeps count of the lines that a text view's text wraps to, measuring
+ * only the text that has been appended since the last count.
+ * <p>
+ * The line count of each finished paragraph is cached. Only the last,
+ * unfinished paragraph can change, and since lines are broken greedily,
+ * only from the start of its last line; so that is where measuring
+ * resumes. The cache is rebuilt when the width, text size or typeface
+ * of the view changes.
+ */
+final class LineCounter {
+
+    private final TextView view;
+
+    private int width = -1;
+    private float textSize;
+    private Typeface typeface;
+    private TextPaint paint;
+    private boolean valid;
+
+    /* The line counts of the finished paragraphs, oldest first. */
+    private int[] counts = new int[64];
+    private int first;
+    private int numCounts;
+    private int finishedLines;
+
+    /*
+     * The unfinished paragraph: where it starts, where its last line
+     * starts, how many lines come before that line, and how many lines
+     * it has in all.
+     */
+    private int openStart;
+    private int lastLineStart;
+    private int openLinesBefore;
+    private int openLines;
+
+    // The length of the text when it was last measured.
+    private int measuredEnd;
+
+    LineCounter(TextView view) {
+        this.view = view;
+    }
+
+    /**
+     * Returns the number of lines in the text, as of the last call to
+     * {@link #textAppended}.
+     */
+    int getLineCount() {
+        return finishedLines + openLines;
+    }
+
+    /**
+     * Measures text that has just been appended.
+     *
+     * @param text the whole text of the view
+     * @param oldLength the length of the text before the append
+     * @return the number of lines added, or 0 if the view has not been
+     *         laid out yet
+     */
+    int textAppended(Spanned text, int oldLength) {
+        if (!checkMetrics()) {
+            return 0;
+        }
+        if (!valid) {
+            rebuild(text, oldLength);
+        } else if (oldLength != measuredEnd) {
+            /*
+             * The unfinished paragraph was edited in place (line input
+             * or history), so all of it has to be measured again.
+             */
+            if (openStart > oldLength) {
+                rebuild(text, oldLength);
+            } else {
+                lastLineStart = openStart;
+                openLinesBefore = 0;
+                measure(text, oldLength);
+            }
+        }
+
+        int oldLines = getLineCount();
+        measure(text, text.length());
+        return getLineCount() - oldLines;
+    }
+
+    /**
+     * Must be called after text has been deleted from the start of the
+     * view's text.
+     *
+     * @param chars the number of characters deleted
+     * @param paragraphs the number of finished paragraphs among them
+     */
+    void headRemoved(int chars, int paragraphs) {
+        if (!valid) {
+            return;
+        }
+        if (paragraphs > numCounts || chars > openStart) {
+            valid = false;
+            return;
+        }
+        for (int i = 0; i < paragraphs; i++) {
+            finishedLines -= counts[first + i];
+        }
+        first += paragraphs;
+        numCounts -= paragraphs;
+        openStart -= chars;
+        lastLineStart -= chars;
+        measuredEnd -= chars;
+    }
+
+    /* Returns false if the view has no width yet. */
+    private boolean checkMetrics() {
+        int w = view.getWidth() - view.getPaddingLeft()
+                - view.getPaddingRight();
+        if (w <= 0) {
+            valid = false;
+            return false;
+        }
+        TextPaint viewPaint = view.getPaint();
+        if (w != width || viewPaint.getTextSize() != textSize
+                || viewPaint.getTypeface() != typeface) {
+            width = w;
+            textSize = viewPaint.getTextSize();
+            typeface = viewPaint.getTypeface();
+            paint = new TextPaint();
+            paint.set(viewPaint);
+            valid = false;
+        }
+        return true;
+    }
+
+    private void rebuild(CharSequence text, int end) {
+        first = 0;
+        numCounts = 0;
+        finishedLines = 0;
+        openStart = 0;
+        lastLineStart = 0;
+        openLinesBefore = 0;
+        openLines = 0;
+        valid = true;
+        measure(text, end);
+    }
+
+    /*
+     * Measures the text from the start of the last line of the unfinished
+     * paragraph up to end.
+     */
+    private void measure(CharSequence text, int end) {
+        int start = lastLineStart;
+        for (int i = lastLineStart; i < end; i++) {
+            if (text.charAt(i) == '\n') {
+                addCount(openLinesBefore + countLines(text, start, i));
+                start = i + 1;
+                openStart = start;
+                openLinesBefore = 0;
+            }
+        }
+
+        Layout layout = newLayout(text, start, end);
+        int lines = layout.getLineCount();
+        openLines = openLinesBefore + lines;
+        openLinesBefore += lines - 1;
+        lastLineStart = layout.getLineStart(lines - 1);
+        measuredEnd = end;
+    }
+
+    private int countLines(CharSequence text, int start, int end) {
+        return newLayout(text, start, end).getLineCount();
+    }
+
+    private Layout newLayout(CharSequence text, int start, int end) {
+        return new StaticLayout(text, start, end, paint, width,
+                Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, true);
+    }
+
+    private void addCount(int lines) {
+        if (first + numCounts == counts.length) {
+            if (first > counts.length / 2) {
+                System.arraycopy(counts, first, counts, 0, numCounts);
+            } else {
+                int[] newCounts = new int[counts.length * 2];
+                System.arraycopy(counts, first, newCounts, 0, numCounts);
+                counts = newCounts;
+            }
+            first = 0;
+        }
+        counts[first + numCounts] = lines;
+        numCounts += 1;
+        finishedLines += lines;
+    }
+}
@@ -0,0 +1,602 @@
+/* This file is a part of roboglk.
+ * Copyright (c) 2009 Edward McCardell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.brickshadow.roboglk.view;
+
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Typeface;
+import android.text.Editable;
+import android.text.Layout;
+import android.text.Selection;
+import android.text.SpannableString;
+import android.text.Spanned;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.text.style.CharacterStyle;
+import android.view.MotionEvent;
+
+
+/**
+ * A text-buffer view that does not keep the whole transcript in its
+ * {@code Editable}.
+ * <p>
+ * Whenever output completes a paragraph, the paragraph is copied into an
+ * immutable {@code Spanned} and deleted from the {@code Editable}, which
+ * therefore only ever holds the unfinished last paragraph (normally the
+ * prompt and the player's input). Finished paragraphs are measured once
+ * per width, and only those on screen are laid out and drawn, using a
+ * small pool of cached {@code StaticLayout}s. Appending costs the same
+ * however long the transcript is.
+ * <p>
+ * Scrolling, {@link #getLineCount()} and {@link #bringPointIntoView(int)}
+ * treat the finished paragraphs and the {@code Editable} as one text, so
+ * {@code TextBufferIO} can drive this view exactly like a plain
+ * {@link TextBufferView}.
+ * <p>
+ * Paragraphs can also be laid out ahead of time on another thread, with
+ * {@link #prepare(Spanned, LayoutSpec)}, and added with
+ * {@link #appendPrepared(List, CharSequence)}; the UI thread then only
+ * has to store them.
+ */
+public class ParagraphBufferView extends TextBufferView {
+
+    /* The number of paragraphs that may hold a layout at once. */
+    private static final int MAX_LAYOUTS = 48;
+
+    /**
+     * What is needed to lay out a paragraph away from the UI thread: the
+     * text width and a copy of the view's paint that is never changed.
+     */
+    public static final class LayoutSpec {
+        final int width;
+        final TextPaint paint;
+
+        LayoutSpec(int width, TextPaint paint) {
+            this.width = width;
+            this.paint = paint;
+        }
+
+        Layout newLayout(CharSequence text) {
+            return new StaticLayout(text, paint, width,
+                    Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, true);
+        }
+    }
+
+    /**
+     * A finished paragraph, with its layout if one could be made.
+     */
+    public static final class PreparedParagraph {
+        final Spanned text;
+        final LayoutSpec spec;
+        final Layout layout;
+
+        PreparedParagraph(Spanned text, LayoutSpec spec, Layout layout) {
+            this.text = text;
+            this.spec = spec;
+            this.layout = layout;
+        }
+    }
+
+    private static final class Paragraph {
+        final Spanned text;
+        // The spec that height and lines were measured with.
+        LayoutSpec spec;
+        int height = -1;
+        int lines;
+        Layout layout;
+
+        Paragraph(Spanned text) {
+            this.text = text;
+        }
+    }
+
+    private final ArrayList<Paragraph> paragraphs = new ArrayList<Paragraph>();
+
+    /*
+     * tops[i] is the offset of paragraph i from the top of the text, for
+     * the paragraphs that have been measured at layoutWidth.
+     */
+    private int[] tops = new int[64];
+    private int numMeasured;
+    private int sealedLines;
+    private int layoutWidth = -1;
+    private float layoutTextSize;
+    private Typeface layoutTypeface;
+
+    private final ArrayDeque<Paragraph> laidOut = new ArrayDeque<Paragraph>();
+    private volatile LayoutSpec layoutSpec;
+
+    private int maxParagraphs;
+    private boolean evictionHeld;
+    private float lastTouchY;
+
+    // The cursor or selection in the Editable, drawn by onDraw()
+    private final Path highlightPath = new Path();
+    private final Paint highlightPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private int highlightColor = 0x6633B5E5;
+
+    public ParagraphBufferView(Context context) {
+        super(context);
+    }
+
+    /*
+     * The Editable is never more than a paragraph long here, so the line
+     * count is cheap to get before and after.
+     */
+    @Override
+    public int appendText(CharSequence text) {
+        int oldLineCount = getLineCount();
+        append(text);
+        sealEditable();
+        paragraphsAdded();
+        return getLineCount() - oldLineCount;
+    }
+
+    /**
+     * Returns the spec that paragraphs should currently be laid out with,
+     * or {@code null} if the view has not been measured yet. May be
+     * called from any thread.
+     */
+    public LayoutSpec getLayoutSpec() {
+        return layoutSpec;
+    }
+
+    /**
+     * Lays out a finished paragraph. May be called from any thread.
+     *
+     * @param text the paragraph, without its newline
+     * @param spec the spec from {@link #getLayoutSpec()}, or {@code null}
+     *             to leave the layout to the UI thread
+     */
+    public static PreparedParagraph prepare(Spanned text, LayoutSpec spec) {
+        Layout layout = (spec == null ? null : spec.newLayout(text));
+        return new PreparedParagraph(text, spec, layout);
+    }
+
+    /**
+     * Adds paragraphs that were laid out by {@link #prepare}, followed by
+     * the start of an unfinished paragraph. Layouts made with an outdated
+     * spec are thrown away and redone here.
+     *
+     * @param prepared the finished paragraphs
+     * @param tail text with no newlines, to be appended to the
+     *             {@code Editable}
+     * @return the number of lines added
+     */
+    public int appendPrepared(List<PreparedParagraph> prepared,
+            CharSequence tail) {
+
+        int oldLineCount = getLineCount();
+        Editable text = getEditableText();
+        closeOpenSpans(text);
+
+        int first = 0;
+        if (text.length() > 0 && !prepared.isEmpty()) {
+            // The first paragraph finishes the one in the Editable.
+            appendStyled(prepared.get(0).text);
+            append("\n");
+            sealEditable();
+            first = 1;
+        }
+
+        measureParagraphs();
+        for (int i = first; i < prepared.size(); i++) {
+            PreparedParagraph pp = prepared.get(i);
+            Paragraph p = new Paragraph(pp.text);
+            if (pp.layout != null && pp.spec == layoutSpec) {
+                p.spec = pp.spec;
+                p.height = pp.layout.getHeight();
+                p.lines = pp.layout.getLineCount();
+                p.layout = pp.layout;
+                addLayout(p);
+            }
+            paragraphs.add(p);
+        }
+        if (headListener != null && prepared.size() > first) {
+            headListener.onHeadRemoved(0, prepared.size() - first);
+        }
+
+        appendStyled(tail);
+        paragraphsAdded();
+        return getLineCount() - oldLineCount;
+    }
+
+    /*
+     * A StyleManager attaches its shared spans to the text directly, but
+     * a span can only cover one range of a Spannable. Text styled away
+     * from the Editable may use a span that the Editable already holds,
+     * so those spans are wrapped before the text is appended.
+     */
+    private void appendStyled(CharSequence styled) {
+        Editable text = getEditableText();
+        if (styled instanceof Spanned) {
+            Spanned spanned = (Spanned) styled;
+            CharacterStyle[] spans = spanned.getSpans(0, spanned.length(),
+                    CharacterStyle.class);
+            SpannableString copy = null;
+            for (CharacterStyle span : spans) {
+                if (text.getSpanStart(span) < 0) {
+                    continue;
+                }
+                if (copy == null) {
+                    copy = new SpannableString(spanned);
+                }
+                int start = copy.getSpanStart(span);
+                int end = copy.getSpanEnd(span);
+                int flags = copy.getSpanFlags(span);
+                copy.removeSpan(span);
+                copy.setSpan(CharacterStyle.wrap(span), start, end, flags);
+            }
+            if (copy != null) {
+                styled = copy;
+            }
+        }
+        append(styled);
+    }
+
+    @Override
+    public void setScrollbackLimit(int paragraphs) {
+        maxParagraphs = paragraphs;
+    }
+
+    /*
+     * Paragraphs that go over the limit while eviction is held are
+     * evicted as soon as it is released.
+     */
+    @Override
+    public void setEvictionHeld(boolean held) {
+        if (held == evictionHeld) {
+            return;
+        }
+        evictionHeld = held;
+        if (!held) {
+            paragraphsAdded();
+        }
+    }
+
+    /**
+     * Returns the number of finished paragraphs held outside of the
+     * {@code Editable}.
+     */
+    public int getParagraphCount() {
+        return paragraphs.size();
+    }
+
+    /**
+     * Returns the number of style spans in the view's text, including
+     * the finished paragraphs. This looks at every paragraph.
+     */
+    @Override
+    public int getSpanCount() {
+        int count = super.getSpanCount();
+        for (Paragraph p : paragraphs) {
+            count += countStyleSpans(p.text);
+        }
+        return count;
+    }
+
+    @Override
+    public int getLineCount() {
+        if (paragraphs == null) {
+            // Called from the TextView constructor.
+            return super.getLineCount();
+        }
+        measureParagraphs();
+        return sealedLines + super.getLineCount();
+    }
+
+    /* Moves finished paragraphs out of the Editable. */
+    private void sealEditable() {
+        Editable text = getEditableText();
+        int end = text.length();
+        while (end > 0 && text.charAt(end - 1) != '\n') {
+            end -= 1;
+        }
+        if (end == 0) {
+            return;
+        }
+
+        int start = 0;
+        int count = 0;
+        for (int i = 0; i < end; i++) {
+            if (text.charAt(i) == '\n') {
+                paragraphs.add(new Paragraph(
+                        new SpannableString(text.subSequence(start, i))));
+                start = i + 1;
+                count += 1;
+            }
+        }
+
+        removeClosedSpans(text, end);
+        text.delete(0, end);
+        if (headListener != null) {
+            headListener.onHeadRemoved(end, count);
+        }
+    }
+
+    private void paragraphsAdded() {
+        if (!evictionHeld && maxParagraphs > 0
+                && paragraphs.size() > maxParagraphs) {
+            evict(paragraphs.size() - (maxParagraphs * 3 / 4));
+        }
+
+        measureParagraphs();
+        invalidate();
+    }
+
+    /* Drops the oldest paragraphs, keeping the same text on screen. */
+    private void evict(int count) {
+        int removedHeight = (count <= numMeasured ? tops[count] : -1);
+        int removedLines = 0;
+        for (int i = 0; i < count; i++) {
+            Paragraph p = paragraphs.get(i);
+            if (headListener != null) {
+                headListener.onTextEvicted(p.text + "\n");
+            }
+            removedLines += p.lines;
+            if (p.layout != null) {
+                laidOut.remove(p);
+            }
+        }
+        paragraphs.subList(0, count).clear();
+
+        if (removedHeight < 0) {
+            numMeasured = 0;
+            sealedLines = 0;
+        } else {
+            System.arraycopy(tops, count, tops, 0, numMeasured - count + 1);
+            for (int i = 0; i <= numMeasured - count; i++) {
+                tops[i] -= removedHeight;
+            }
+            numMeasured -= count;
+            sealedLines -= removedLines;
+            scrollTo(getScrollX(), getScrollY() - removedHeight);
+        }
+    }
+
+    private int getTextWidth() {
+        return getWidth() - getPaddingLeft() - getPaddingRight();
+    }
+
+    /*
+     * Measures any paragraphs that have not been measured with the
+     * current spec, making a new spec first if the width or the font
+     * has changed.
+     */
+    private void measureParagraphs() {
+        int width = getTextWidth();
+        if (width <= 0) {
+            return;
+        }
+        TextPaint paint = getPaint();
+        if (width != layoutWidth || paint.getTextSize() != layoutTextSize
+                || paint.getTypeface() != layoutTypeface) {
+            layoutWidth = width;
+            layoutTextSize = paint.getTextSize();
+            layoutTypeface = paint.getTypeface();
+            TextPaint specPaint = new TextPaint();
+            specPaint.set(paint);
+            specPaint.setColor(getCurrentTextColor());
+            layoutSpec = new LayoutSpec(width, specPaint);
+            numMeasured = 0;
+            sealedLines = 0;
+            for (Paragraph p : laidOut) {
+                p.layout = null;
+            }
+            laidOut.clear();
+        }
+
+        int n = paragraphs.size();
+        if (tops.length < n + 1) {
+            int[] newTops = new int[Math.max(n + 1, tops.length * 2)];
+            System.arraycopy(tops, 0, newTops, 0, numMeasured + 1);
+            tops = newTops;
+        }
+        for (int i = numMeasured; i < n; i++) {
+            Paragraph p = paragraphs.get(i);
+            if (p.spec != layoutSpec) {
+                Layout layout = getParagraphLayout(p);
+                p.spec = layoutSpec;
+                p.height = layout.getHeight();
+                p.lines = layout.getLineCount();
+            }
+            tops[i + 1] = tops[i] + p.height;
+            sealedLines += p.lines;
+        }
+        numMeasured = n;
+    }
+
+    private Layout getParagraphLayout(Paragraph p) {
+        if (p.layout == null) {
+            p.layout = layoutSpec.newLayout(p.text);
+            addLayout(p);
+        }
+        return p.layout;
+    }
+
+    private void addLayout(Paragraph p) {
+        laidOut.addLast(p);
+        if (laidOut.size() > MAX_LAYOUTS) {
+            laidOut.removeFirst().layout = null;
+        }
+    }
+
+    private int getSealedHeight() {
+        return tops[numMeasured];
+    }
+
+    private int getContentHeight() {
+        Layout tail = getLayout();
+        return getPaddingTop() + getSealedHeight()
+                + (tail == null ? 0 : tail.getHeight()) + getPaddingBottom();
+    }
+
+    /* Returns the first measured paragraph that ends below y. */
+    private int findParagraph(int y) {
+        int lo = 0;
+        int hi = numMeasured;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (tops[mid + 1] <= y) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        measureParagraphs();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        measureParagraphs();
+        getPaint().setColor(getCurrentTextColor());
+
+        int left = getPaddingLeft();
+        int top = getPaddingTop();
+        int scrollY = getScrollY();
+        int bottom = scrollY + getHeight();
+
+        for (int i = findParagraph(scrollY - top);
+                i < numMeasured && top + tops[i] < bottom; i++) {
+            canvas.save();
+            canvas.translate(left, top + tops[i]);
+            getParagraphLayout(paragraphs.get(i)).draw(canvas);
+            canvas.restore();
+        }
+
+        Layout tail = getLayout();
+        int tailTop = top + getSealedHeight();
+        if (tail != null && tailTop < bottom) {
+            canvas.save();
+            canvas.translate(left, tailTop);
+            tail.draw(canvas, getHighlight(tail), highlightPaint, 0);
+            canvas.restore();
+        }
+    }
+
+    /*
+     * TextView.onDraw() would draw the Editable at the top of the view
+     * rather than below the finished paragraphs, so the cursor and the
+     * selection are drawn here instead. The cursor does not blink.
+     */
+    private Path getHighlight(Layout tail) {
+        CharSequence text = getText();
+        int start = Selection.getSelectionStart(text);
+        int end = Selection.getSelectionEnd(text);
+        if (start < 0 || end < 0) {
+            return null;
+        }
+
+        highlightPath.reset();
+        if (start == end) {
+            if (!isFocused()) {
+                return null;
+            }
+            tail.getCursorPath(start, highlightPath, text);
+            highlightPaint.setColor(getCurrentTextColor());
+            highlightPaint.setStyle(Paint.Style.STROKE);
+        } else {
+            tail.getSelectionPath(Math.min(start, end), Math.max(start, end),
+                    highlightPath);
+            highlightPaint.setColor(highlightColor);
+            highlightPaint.setStyle(Paint.Style.FILL);
+        }
+        return highlightPath;
+    }
+
+    @Override
+    public void setHighlightColor(int color) {
+        super.setHighlightColor(color);
+        highlightColor = color;
+    }
+
+    @Override
+    public void scrollTo(int x, int y) {
+        if (tops == null) {
+            // Called from the TextView constructor.
+            super.scrollTo(x, y);
+            return;
+        }
+        int maxY = Math.max(0, getContentHeight() - getHeight());
+        super.scrollTo(x, Math.max(0, Math.min(y, maxY)));
+    }
+
+    @Override
+    public boolean bringPointIntoView(int offset) {
+        Layout tail = getLayout();
+        if (tail == null) {
+            return false;
+        }
+        measureParagraphs();
+        int line = tail.getLineForOffset(offset);
+        int lineTop = getPaddingTop() + getSealedHeight() + tail.getLineTop(line);
+        int lineBottom =
+            getPaddingTop() + getSealedHeight() + tail.getLineBottom(line);
+
+        int scrollY = getScrollY();
+        int newY = scrollY;
+        if (lineBottom > scrollY + getHeight() - getPaddingBottom()) {
+            newY = lineBottom - getHeight() + getPaddingBottom();
+        }
+        if (lineTop < newY + getPaddingTop()) {
+            newY = lineTop - getPaddingTop();
+        }
+        if (newY != scrollY) {
+            scrollTo(getScrollX(), newY);
+            return true;
+        }
+        return false;
+    }
+
+    /*
+     * The movement method only knows about the Editable, so dragging is
+     * handled here instead.
+     */
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (event.getAction() == MotionEvent.ACTION_MOVE) {
+            float y = event.getY();
+            scrollBy(0, (int) (lastTouchY - y));
+            lastTouchY = y;
+            return true;
+        }
+        if (event.getAction() == MotionEvent.ACTION_DOWN) {
+            lastTouchY = event.getY();
+        }
+        super.onTouchEvent(event);
+        return true;
+    }
+
+    @Override
+    protected int computeVerticalScrollRange() {
+        return getContentHeight();
+    }
+}
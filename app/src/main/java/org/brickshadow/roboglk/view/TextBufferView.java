@@ -20,8 +20,13 @@ package org.brickshadow.roboglk.view;
 
 
 import android.content.Context;
+import android.text.Editable;
+import android.text.Spannable;
+import android.text.Spanned;
 import android.text.method.MovementMethod;
 import android.text.method.ScrollingMovementMethod;
+import android.text.style.CharacterStyle;
+import android.text.style.ParagraphStyle;
 import android.util.AttributeSet;
 
 
@@ -33,6 +38,33 @@ import android.util.AttributeSet;
  */
 public class TextBufferView extends TextWindowView {
 
+    /**
+     * Receives notice of text that a view has moved out of its
+     * {@code Editable}. The plain {@code TextBufferView} keeps all of its
+     * text in the {@code Editable} and never calls this; subclasses that
+     * store finished text elsewhere do.
+     */
+    public interface HeadListener {
+
+        /**
+         * Called after text has been deleted from the start of the
+         * {@code Editable}.
+         *
+         * @param chars the number of characters deleted
+         * @param paragraphs the number of newlines among them
+         */
+        void onHeadRemoved(int chars, int paragraphs);
+
+        /**
+         * Called with text that has been dropped from the view for good.
+         */
+        void onTextEvicted(CharSequence text);
+    }
+
+    protected HeadListener headListener;
+
+    private final LineCounter lineCounter = new LineCounter(this);
+
     public TextBufferView(Context context) {
         super(context);
     }
@@ -50,4 +82,117 @@ public class TextBufferView extends TextWindowView {
         return ScrollingMovementMethod.getInstance();
     }
 
+    public void setHeadListener(HeadListener listener) {
+        headListener = listener;
+    }
+
+    /**
+     * Appends output to the view. All text should be added through this
+     * method rather than {@link #append(CharSequence)}, so that
+     * subclasses can see it.
+     * <p>
+     * Only the new text is measured, so the cost does not depend on how
+     * much text the view already holds.
+     *
+     * @return the number of lines that the text added
+     */
+    public int appendText(CharSequence text) {
+        Editable editable = getEditableText();
+        int oldLength = editable.length();
+        append(text);
+        return lineCounter.textAppended(editable, oldLength);
+    }
+
+    /**
+     * Must be called after text has been deleted from the start of the
+     * {@code Editable} by something other than the view itself.
+     *
+     * @param chars the number of characters deleted
+     * @param paragraphs the number of newlines among them
+     */
+    public void headDeleted(int chars, int paragraphs) {
+        lineCounter.headRemoved(chars, paragraphs);
+    }
+
+    /**
+     * Limits the number of paragraphs the view keeps outside of its
+     * {@code Editable}. Does nothing here.
+     *
+     * @param paragraphs the maximum number of paragraphs, or 0
+     */
+    public void setScrollbackLimit(int paragraphs) {}
+
+    /**
+     * Stops the view from evicting paragraphs while {@code held} is true,
+     * such as while the MORE prompt is showing and the player has not
+     * yet read the text. Does nothing here.
+     */
+    public void setEvictionHeld(boolean held) {}
+
+    /**
+     * Returns the number of style spans in the view's text.
+     */
+    public int getSpanCount() {
+        return countStyleSpans(getEditableText());
+    }
+
+    /**
+     * Returns the number of character and paragraph style spans in
+     * {@code text}.
+     */
+    public static int countStyleSpans(Spanned text) {
+        int len = text.length();
+        return text.getSpans(0, len, CharacterStyle.class).length
+                + text.getSpans(0, len, ParagraphStyle.class).length;
+    }
+
+    /**
+     * Removes the style spans that end at or before {@code end}, before
+     * that text is deleted; otherwise they would be left behind as empty
+     * spans. Spans that are still being extended (the ones a
+     * {@code StyleManager} leaves open at the end of the text) are kept.
+     */
+    public static void removeClosedSpans(Spannable text, int end) {
+        removeClosedSpans(text, end, CharacterStyle.class);
+        removeClosedSpans(text, end, ParagraphStyle.class);
+    }
+
+    private static <T> void removeClosedSpans(Spannable text, int end,
+            Class<T> kind) {
+
+        T[] spans = text.getSpans(0, end, kind);
+        for (T span : spans) {
+            if (text.getSpanEnd(span) <= end && text.getSpanFlags(span)
+                    != Spannable.SPAN_INCLUSIVE_INCLUSIVE) {
+                text.removeSpan(span);
+            }
+        }
+    }
+
+    /**
+     * Stops the open style spans in {@code text} from growing any
+     * further, dropping those that are empty.
+     */
+    public static void closeOpenSpans(Spannable text) {
+        closeOpenSpans(text, CharacterStyle.class);
+        closeOpenSpans(text, ParagraphStyle.class);
+    }
+
+    private static <T> void closeOpenSpans(Spannable text, Class<T> kind) {
+        T[] spans = text.getSpans(0, text.length(), kind);
+        for (T span : spans) {
+            if (text.getSpanFlags(span) != Spannable.SPAN_INCLUSIVE_INCLUSIVE) {
+                continue;
+            }
+            int start = text.getSpanStart(span);
+            int end = text.getSpanEnd(span);
+            if (start == end) {
+                text.removeSpan(span);
+            } else {
+                text.setSpan(span, start, end,
+                        Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+        }
+    }
+
 }
@@ -19,16 +19,78 @@ package org.brickshadow.roboglk.view;
 
 
 
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.graphics.Typeface;
+import android.text.TextPaint;
 import android.util.AttributeSet;
 
+import org.brickshadow.roboglk.GlkStyle;
 import org.brickshadow.roboglk.io.TextGridIO;
 
 
+/**
+ * A view for text-grid windows. The grid is kept as an array of
+ * characters and an array of style numbers, one of each per cell, and
+ * is drawn directly in {@link #onDraw(Canvas)} rather than through the
+ * {@code TextView} text, which stays empty. Changing a cell only marks
+ * its row dirty; {@link #invalidateDirtyRows()} then redraws just those
+ * rows.
+ * <p>
+ * Every cell is the same size, so each character is rendered once per
+ * style into a cell-sized bitmap, and cells are drawn by copying those.
+ * The glyph cache is thrown away when the styles or the cell size
+ * change. Glyphs are never recycled, since a display list that has not
+ * been drawn yet may still refer to them; the garbage collector frees
+ * them once nothing does.
+ * <p>
+ * During line input the view draws a cursor at the cell set by
+ * {@link #setCursor(int, int)}.
+ */
 public class TextGridView extends TextWindowView {
+    /* The most glyphs kept in the cache. */
+    private static final int MAX_GLYPHS = 256;
+
     private TextGridIO io;
 
+    private int cols;
+    private int rows;
+    private char[] cells = new char[0];
+    private byte[] styles = new byte[0];
+    private boolean[] dirtyRows = new boolean[0];
+
+    private TextPaint[] cellPaints;
+    private int[] cellBackColors;
+    private final Paint backPaint = new Paint();
+    private final Rect clip = new Rect();
+
+    // Rendered glyphs by style and character, least recently used first
+    private final LinkedHashMap<Integer, Bitmap> glyphs =
+        new LinkedHashMap<Integer, Bitmap>(64, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Integer, Bitmap> eldest) {
+                return size() > MAX_GLYPHS;
+            }
+        };
+    private int glyphWidth;
+    private int glyphHeight;
+    private final char[] glyphChar = new char[1];
+
+    // The input cursor's cell, or -1 if it is hidden
+    private int cursorX = -1;
+    private int cursorY = -1;
+    private final Paint cursorPaint = new Paint();
+
     public TextGridView(Context context) {
         super(context);
         setTypeface(Typeface.MONOSPACE);
@@ -49,7 +111,203 @@ public class TextGridView extends TextWindowView {
         io.refresh();
     }
 
+    @Override
+    protected void onFocusChanged(boolean focused, int direction,
+            Rect previouslyFocusedRect) {
+        super.onFocusChanged(focused, direction, previouslyFocusedRect);
+        // The cursor is only drawn while the view has focus.
+        if (cursorY >= 0) {
+            invalidate();
+        }
+    }
+
     public void setIO(TextGridIO io) {
         this.io = io;
     }
+
+    /**
+     * Sets the paint and background color for each style number. A
+     * background color of 0 lets the window background show through.
+     */
+    public void setCellStyles(TextPaint[] paints, int[] backColors) {
+        cellPaints = paints;
+        cellBackColors = backColors;
+        clearGlyphs();
+        invalidate();
+    }
+
+    /**
+     * Resizes the grid. Cells inside both the old and the new size keep
+     * their contents; the rest are blank.
+     */
+    public void setGridSize(int newCols, int newRows) {
+        char[] newCells = new char[newCols * newRows];
+        byte[] newStyles = new byte[newCols * newRows];
+        Arrays.fill(newCells, ' ');
+        int keepCols = Math.min(cols, newCols);
+        int keepRows = Math.min(rows, newRows);
+        for (int y = 0; y < keepRows; y++) {
+            System.arraycopy(cells, y * cols, newCells, y * newCols, keepCols);
+            System.arraycopy(styles, y * cols, newStyles, y * newCols,
+                    keepCols);
+        }
+        cols = newCols;
+        rows = newRows;
+        cells = newCells;
+        styles = newStyles;
+        dirtyRows = new boolean[newRows];
+        invalidate();
+    }
+
+    /**
+     * Blanks every cell.
+     */
+    public void clearGrid() {
+        Arrays.fill(cells, ' ');
+        Arrays.fill(styles, (byte) 0);
+        Arrays.fill(dirtyRows, true);
+    }
+
+    /**
+     * Sets a cell, if it is inside the grid.
+     */
+    public void setCell(int x, int y, char c, int style) {
+        if (x < 0 || x >= cols || y < 0 || y >= rows) {
+            return;
+        }
+        int i = y * cols + x;
+        if (cells[i] != c || styles[i] != style) {
+            cells[i] = c;
+            styles[i] = (byte) style;
+            dirtyRows[y] = true;
+        }
+    }
+
+    /**
+     * Shows the input cursor at a cell, or hides it if x is negative.
+     * Like a cell change, this takes effect at the next
+     * {@link #invalidateDirtyRows()}.
+     */
+    public void setCursor(int x, int y) {
+        if (x == cursorX && y == cursorY) {
+            return;
+        }
+        markDirty(cursorY);
+        cursorX = x;
+        cursorY = (x < 0 ? -1 : y);
+        markDirty(cursorY);
+    }
+
+    private void markDirty(int y) {
+        if (y >= 0 && y < rows) {
+            dirtyRows[y] = true;
+        }
+    }
+
+    /**
+     * Schedules the rows that have changed since the last call to be
+     * redrawn.
+     */
+    public void invalidateDirtyRows() {
+        int lineHeight = getLineHeight();
+        int top = getPaddingTop();
+        int y = 0;
+        while (y < rows) {
+            if (!dirtyRows[y]) {
+                y++;
+                continue;
+            }
+            int start = y;
+            while (y < rows && dirtyRows[y]) {
+                dirtyRows[y] = false;
+                y++;
+            }
+            invalidate(0, top + start * lineHeight, getWidth(),
+                    top + y * lineHeight);
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (cellPaints == null || rows == 0 || cols == 0) {
+            return;
+        }
+
+        int lineHeight = getLineHeight();
+        int left = getPaddingLeft();
+        int top = getPaddingTop();
+        float cellWidth = cellPaints[0].measureText("0");
+        int ascent = getPaint().getFontMetricsInt().ascent;
+
+        canvas.getClipBounds(clip);
+        int firstRow = Math.max(0, (clip.top - top) / lineHeight);
+        int lastRow = Math.min(rows - 1, (clip.bottom - top) / lineHeight);
+
+        for (int y = firstRow; y <= lastRow; y++) {
+            int rowTop = top + y * lineHeight;
+            int rowStart = y * cols;
+            int x = 0;
+            while (x < cols) {
+                // Fill the background of each same-style run at once.
+                int style = styles[rowStart + x];
+                int end = x + 1;
+                while (end < cols && styles[rowStart + end] == style) {
+                    end++;
+                }
+                float runLeft = left + x * cellWidth;
+                if (cellBackColors[style] != 0) {
+                    backPaint.setColor(cellBackColors[style]);
+                    canvas.drawRect(runLeft, rowTop, left + end * cellWidth,
+                            rowTop + lineHeight, backPaint);
+                }
+                for (; x < end; x++) {
+                    char c = cells[rowStart + x];
+                    if (c != ' ') {
+                        canvas.drawBitmap(
+                                getGlyph(c, style, cellWidth, lineHeight, ascent),
+                                left + x * cellWidth, rowTop, null);
+                    }
+                }
+            }
+        }
+
+        if (isFocused() && cursorY >= firstRow && cursorY <= lastRow
+                && cursorX < cols) {
+            // A bar at the left edge of the cell, like the TextView cursor
+            float cursorLeft = left + cursorX * cellWidth;
+            float cursorTop = top + cursorY * lineHeight;
+            cursorPaint.setColor(cellPaints[GlkStyle.Input].getColor());
+            canvas.drawRect(cursorLeft, cursorTop,
+                    cursorLeft + Math.max(1f, cellWidth / 8),
+                    cursorTop + lineHeight, cursorPaint);
+        }
+    }
+
+    /* Returns the cached image of a character in a style. */
+    private Bitmap getGlyph(char c, int style, float cellWidth,
+            int lineHeight, int ascent) {
+
+        int width = (int) Math.ceil(cellWidth);
+        if (width != glyphWidth || lineHeight != glyphHeight) {
+            clearGlyphs();
+            glyphWidth = width;
+            glyphHeight = lineHeight;
+        }
+
+        Integer key = (style << 16) | c;
+        Bitmap glyph = glyphs.get(key);
+        if (glyph == null) {
+            glyph = Bitmap.createBitmap(width, lineHeight,
+                    Bitmap.Config.ARGB_8888);
+            glyphChar[0] = c;
+            new Canvas(glyph).drawText(glyphChar, 0, 1, 0, -ascent,
+                    cellPaints[style]);
+            glyphs.put(key, glyph);
+        }
+        return glyph;
+    }
+
+    private void clearGlyphs() {
+        glyphs.clear();
+    }
 }
@@ -20,6 +20,7 @@ package org.brickshadow.roboglk.view;
 import android.content.Context;
 import android.content.res.Configuration;
 import android.graphics.Color;
+import android.graphics.Typeface;
 import android.util.AttributeSet;
 import android.view.KeyEvent;
 import android.view.inputmethod.EditorInfo;
@@ -29,8 +30,7 @@ import android.widget.TextView;
 
 public abstract class TextWindowView extends TextView {
 
-    private int numLines;
-    private int charsPerLine;
+    private volatile WindowMetrics metrics = WindowMetrics.EMPTY;
 
     public TextWindowView(Context context) {
         super(context);
@@ -49,19 +49,57 @@ public abstract class TextWindowView extends TextView {
     }
 
     /**
-     * Returns the visible line count. If this method is called outside the
-     * UI thread, it must be synchronized on this object.
+     * Returns the visible line count.
      */
     public int getNumLines() {
-        return numLines;
+        return metrics.numLines;
     }
 
     /**
-     * Returns the width of a line, in characters. If this method is called
-     * outside the UI thread, it must be synchronized on this object.
+     * Returns the width of a line, in characters.
      */
     public int getCharsPerLine() {
-        return charsPerLine;
+        return metrics.charsPerLine;
+    }
+
+    /**
+     * Returns the latest size snapshot. This may be called from any
+     * thread; the snapshot is replaced, never modified, when the view
+     * is laid out or its font changes.
+     */
+    public WindowMetrics getMetrics() {
+        WindowMetrics m = metrics;
+        /* The TextView constructor can get here before our fields are
+         * initialized.
+         */
+        return (m == null ? WindowMetrics.EMPTY : m);
+    }
+
+    /**
+     * Publishes a new size snapshot from the current size and font.
+     * Called on the UI thread.
+     */
+    protected void updateMetrics() {
+        int lineHeight = getLineHeight();
+        float charWidth = getPaint().measureText("0");
+        int width = getWidth();
+        int height = getHeight();
+        metrics = new WindowMetrics(
+                (charWidth > 0 ? (int) (width / charWidth) : 0),
+                (lineHeight > 0 ? height / lineHeight : 0),
+                width, height, lineHeight, charWidth);
+    }
+
+    @Override
+    public void setTextSize(int unit, float size) {
+        super.setTextSize(unit, size);
+        updateMetrics();
+    }
+
+    @Override
+    public void setTypeface(Typeface tf) {
+        super.setTypeface(tf);
+        updateMetrics();
     }
 
     @Override
@@ -89,9 +127,6 @@ public abstract class TextWindowView extends TextView {
     protected void onLayout(boolean changed, int left, int top, int right,
             int bottom) {
         super.onLayout(changed, left, top, right, bottom);
-        synchronized(this) {
-            numLines = getHeight() / getLineHeight();
-            charsPerLine = (int) (getWidth() / getPaint().measureText("0"));
-        }
+        updateMetrics();
     }
 }
@@ -0,0 +1,85 @@
+/* This file is a part of roboglk.
+ * Copyright (c) 2009 Edward McCardell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.brickshadow.roboglk.view;
+
+
+/**
+ * An immutable snapshot of the size of a text window. A view publishes
+ * a new snapshot whenever its size or font changes, so that other
+ * threads can read a consistent set of values without waiting for
+ * the UI thread.
+ */
+public final class WindowMetrics {
+
+    /** The metrics of a view that has not been laid out. */
+    public static final WindowMetrics EMPTY =
+        new WindowMetrics(0, 0, 0, 0, 0, 0f);
+
+    /** The number of "0" characters that fit on a line. */
+    public final int charsPerLine;
+
+    /** The number of lines that fit in the view. */
+    public final int numLines;
+
+    /** The width of the view, in pixels. */
+    public final int width;
+
+    /** The height of the view, in pixels. */
+    public final int height;
+
+    /** The height of a line of text, in pixels. */
+    public final int lineHeight;
+
+    /** The width of a "0" character, in pixels. */
+    public final float charWidth;
+
+    public WindowMetrics(int charsPerLine, int numLines, int width,
+            int height, int lineHeight, float charWidth) {
+        this.charsPerLine = charsPerLine;
+        this.numLines = numLines;
+        this.width = width;
+        this.height = height;
+        this.lineHeight = lineHeight;
+        this.charWidth = charWidth;
+    }
+
+    /**
+     * Returns the height of {@code lines} lines, reduced a line at a time
+     * until it is no more than {@code maxSize}.
+     */
+    public int getLinesSize(int lines, int maxSize) {
+        if (lineHeight <= 0) {
+            return 0;
+        }
+        lines = Math.max(0, Math.min(lines, maxSize / lineHeight));
+        return lines * lineHeight;
+    }
+
+    /**
+     * Returns the width of {@code chars} characters, reduced a character
+     * at a time until it is no more than {@code maxSize}.
+     */
+    public int getCharsSize(int chars, int maxSize) {
+        int w = (int) Math.ceil(charWidth);
+        if (w <= 0) {
+            return 0;
+        }
+        chars = Math.max(0, Math.min(chars, maxSize / w));
+        return chars * w;
+    }
+}
@@ -8,6 +8,7 @@
 
 #define ARGS_REVERSED
 #define glulx_malloc malloc
+#define glulx_free free
 
 /* Git passes along function arguments in reverse order. To make our lives
    more interesting. */
@@ -66,6 +67,37 @@ void init_accel()
     accelentries = NULL;
 }
 
+/* shutdown_accel():
+   Free the acceleration table and forget the parameters, so that the
+   next game starts from scratch.
+*/
+void shutdown_accel()
+{
+    int bucknum;
+    accelentry_t *ptr, *next;
+
+    if (accelentries) {
+        for (bucknum=0; bucknum<ACCEL_HASH_SIZE; bucknum++) {
+            for (ptr = accelentries[bucknum]; ptr; ptr = next) {
+                next = ptr->next;
+                glulx_free(ptr);
+            }
+        }
+        glulx_free(accelentries);
+        accelentries = NULL;
+    }
+
+    classes_table = 0;
+    indiv_prop_start = 0;
+    class_metaclass = 0;
+    object_metaclass = 0;
+    routine_metaclass = 0;
+    string_metaclass = 0;
+    self = 0;
+    num_attr_bytes = 0;
+    cpv__start = 0;
+}
+
 acceleration_func accel_find_func(glui32 index)
 {
     switch (index) {
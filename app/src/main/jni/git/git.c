@@ -9,27 +9,25 @@
 // This is the magic number at the start of Blorb files.
 #define FORM 0x464f524d
 
-static void gitMain (const git_uint8 * game, git_uint32 gameSize, git_uint32 cacheSize, git_uint32 undoSize)
+// The copy of the game file made by gitLoadStream(), and the I/O mode
+// the loaded game's header asks for. They are kept here so that
+// gitRunLoaded() can start the game later, and so that shutdownGit()
+// can free the copy if the game never returns. A game loaded by
+// gitLoadMemory() has no copy.
+static char * sGameCopy = NULL;
+static int sGameLoaded = 0;
+static enum IOMode sIOMode = IO_NULL;
+
+// Loads the gamefile into memory and checks that we're compatible
+// with the glulx spec version that the game uses. Returns the I/O
+// mode the game should start in.
+static enum IOMode loadGame (const git_uint8 * game, git_uint32 gameSize)
 {
     git_uint32 version;
     enum IOMode ioMode = IO_NULL;
-    
-    init_accel ();
 
-    // Initialise the Glk dispatch layer.
-    git_init_dispatch();
-
-    // Set various globals.    
-    gPeephole = 1;
-    gDebug = 0;
-    
-    // Load the gamefile into memory
-    // and initialise undo records.
     initMemory (game, gameSize);
-    initUndo (undoSize);
-    
-    // Check that we're compatible with the
-    // glulx spec version that the game uses.
+
     version = memRead32 (4);
     if (version == 0x010000 && version <= 0x0100FF)
     {
@@ -57,6 +55,23 @@ static void gitMain (const git_uint8 * game, git_uint32 gameSize, git_uint32 cac
             "of the gamefile format than Git understands. You should check "
             "whether a newer version of Git is available.");
     }
+    return ioMode;
+}
+
+// Runs a game that loadGame() has already put into memory.
+static void runGame (enum IOMode ioMode, git_uint32 cacheSize, git_uint32 undoSize)
+{
+    init_accel ();
+
+    // Initialise the Glk dispatch layer.
+    git_init_dispatch();
+
+    // Set various globals.    
+    gPeephole = 1;
+    gDebug = 0;
+    
+    // Initialise undo records.
+    initUndo (undoSize);
     
     // Call the top-level function.
     startProgram (cacheSize, ioMode);
@@ -66,6 +81,11 @@ static void gitMain (const git_uint8 * game, git_uint32 gameSize, git_uint32 cac
     shutdownMemory();
 }
 
+static void gitMain (const git_uint8 * game, git_uint32 gameSize, git_uint32 cacheSize, git_uint32 undoSize)
+{
+    runGame (loadGame (game, gameSize), cacheSize, undoSize);
+}
+
 static giblorb_result_t handleBlorb (strid_t stream)
 {
     giblorb_err_t err;
@@ -104,7 +124,10 @@ static giblorb_result_t handleBlorb (strid_t stream)
     return blorbres;
 }
 
-void gitWithStream (strid_t str, git_uint32 cacheSize, git_uint32 undoSize)
+// Reads the game from the stream, checks its header and sets up its
+// memory, without starting it. Any problem with the file is reported
+// through fatalError() here, before the game has opened any windows.
+void gitLoadStream (strid_t str)
 {
     char * game;
     git_uint32 gamePos;
@@ -135,6 +158,7 @@ void gitWithStream (strid_t str, git_uint32 cacheSize, git_uint32 undoSize)
     game = malloc (gameSize);
     if (game == NULL)
         fatalError ("failed to allocate memory to store game file");
+    sGameCopy = game;
     
     glk_stream_set_position (str, gamePos, seekmode_Start);
     
@@ -149,8 +173,49 @@ void gitWithStream (strid_t str, git_uint32 cacheSize, git_uint32 undoSize)
         ptr += n;
     }
     
-    gitMain ((git_uint8 *) game, gameSize, cacheSize, undoSize);
-    free (game);
+    sIOMode = loadGame ((git_uint8 *) game, gameSize);
+    sGameLoaded = 1;
+}
+
+// Like gitLoadStream(), but for a game (or Blorb file) that is already
+// in memory. The memory is used in place and must stay valid until
+// the game has finished.
+void gitLoadMemory (const git_uint8 * game, git_uint32 gameSize)
+{
+    if (gameSize >= 4 && read32 (game) == FORM)
+    {
+        strid_t stream;
+        giblorb_result_t result;
+
+        stream = glk_stream_open_memory ((char *) game, gameSize, filemode_Read, 0);
+        if (stream == NULL)
+            fatalError ("Can't open the Blorb file as a Glk memory stream.");
+
+        result = handleBlorb (stream);
+        game += result.data.startpos;
+        gameSize = result.length;
+    }
+
+    sIOMode = loadGame (game, gameSize);
+    sGameLoaded = 1;
+}
+
+// Starts the game loaded by gitLoadStream() or gitLoadMemory().
+void gitRunLoaded (git_uint32 cacheSize, git_uint32 undoSize)
+{
+    if (!sGameLoaded)
+        fatalError ("no game file has been loaded");
+
+    runGame (sIOMode, cacheSize, undoSize);
+    free (sGameCopy);
+    sGameCopy = NULL;
+    sGameLoaded = 0;
+}
+
+void gitWithStream (strid_t str, git_uint32 cacheSize, git_uint32 undoSize)
+{
+    gitLoadStream (str);
+    gitRunLoaded (cacheSize, undoSize);
 }
 
 void git (const git_uint8 * game, git_uint32 gameSize, git_uint32 cacheSize, git_uint32 undoSize)
@@ -174,3 +239,32 @@ void git (const git_uint8 * game, git_uint32 gameSize, git_uint32 cacheSize, git
     
     gitMain (game, gameSize, cacheSize, undoSize);
 }
+
+// Releases everything the interpreter allocated and resets its globals,
+// so that another game can be started in the same process. The Glk
+// library calls this after it has released its own objects. The game
+// may have been abandoned at any point (glk_exit() or a fatal error
+// unwinds straight out of the interpreter), so nothing can be assumed
+// to have been cleaned up already.
+void shutdownGit ()
+{
+    // The undo records and the heap refer to game memory,
+    // so they must go before it does.
+    shutdownUndo();
+    heap_shutdown();
+    shutdownMemory();
+
+    shutdownTerp();
+    shutdownCompiler();
+    shutdown_accel();
+    git_shutdown_dispatch();
+
+    gPeephole = 1;
+    gDebug = 0;
+    gCacheRAM = 0;
+
+    free (sGameCopy);
+    sGameCopy = NULL;
+    sGameLoaded = 0;
+    sIOMode = IO_NULL;
+}
@@ -30,11 +30,21 @@ extern void gitWithStream (strid_t stream,
                            git_uint32 cacheSize,
                            git_uint32 undoSize);
 
+extern void gitLoadStream (strid_t stream);
+
+extern void gitLoadMemory (const git_uint8 * game,
+                           git_uint32 gameSize);
+
+extern void gitRunLoaded (git_uint32 cacheSize,
+                          git_uint32 undoSize);
+
 extern void git (const git_uint8 * game,
                  git_uint32 gameSize,
                  git_uint32 cacheSize,
                  git_uint32 undoSize);
 
+extern void shutdownGit ();
+
 extern git_noreturn void fatalError (const char *);
 
 // memory.c
@@ -112,14 +122,28 @@ extern void emitCode (Label);
 
 extern git_sint32* gStackPointer;
 
+typedef struct GlkCall
+{
+    git_uint32 pc;       // Address of the @glk instruction.
+    git_sint32 * base;   // Bottom of the stack.
+    git_sint32 * frame;  // The caller's frame, or NULL outside a call.
+} GlkCall;
+
+extern GlkCall gGlkCall;
+
 extern void startProgram (size_t cacheSize, enum IOMode ioMode);
+extern void shutdownTerp ();
 
 // glkop.c
 
 extern int git_init_dispatch();
+extern void git_shutdown_dispatch();
 extern glui32 git_perform_glk(glui32 funcnum, glui32 numargs, glui32 *arglist);
 extern strid_t git_find_stream_by_id(glui32 id);
-extern glui32 git_find_id_for_stream(strid_t str);
+extern glui32 git_find_id_for_stream(strid_t str);
+extern glui32 git_find_id_for_window(winid_t win);
+extern glui32 git_find_id_for_fileref(frefid_t fref);
+extern void set_library_select_hook(void (*func)(glui32));
 
 // git_search.c
 
@@ -139,16 +163,30 @@ extern glui32 git_linear_search(glui32 key, glui32 keysize,
 extern git_sint32 saveToFile (git_sint32* base, git_sint32 * sp, git_sint32 file);
 extern git_sint32 restoreFromFile (git_sint32* base, git_sint32 file,
                       git_uint32 protectPos, git_uint32 protectSize);
+extern int writeCheckpoint (strid_t file);
+extern void resumeCheckpoint (glui32 eventAddr);
+extern glui32 turnSerial (glui32 * oldest);
+extern int rewindTurns (glui32 levels);
+extern int finishRewind (git_sint32* base,
+                git_uint32 protectPos, git_uint32 protectSize);
 
 // saveundo.c
 
 extern void initUndo (git_uint32 size);
+extern void setUndoDir (const char * dir);
 extern void resetUndo ();
 extern void shutdownUndo ();
 
 extern int  saveUndo (git_sint32* base, git_sint32* sp);
 extern int  restoreUndo (git_sint32* base,
                 git_uint32 protectPos, git_uint32 protectSize);
+extern git_uint32 undoSerial (git_uint32 * oldest);
+extern int  discardUndo (git_uint32 n);
+
+extern const git_uint8 * copyPage (const git_uint8 * bytes);
+extern void holdPage (const git_uint8 * page);
+extern void releasePage (const git_uint8 * page);
+extern const git_uint8 * newestUndoPage (git_uint32 addr);
 
 // heap.c
 
@@ -157,6 +195,7 @@ extern glui32 heap_alloc (glui32 len);
 extern void heap_free (glui32 addr);
 extern int heap_is_active ();
 extern void heap_clear ();
+extern void heap_shutdown ();
 extern int heap_get_summary (glui32 *valcount, glui32 **summary);
 extern int heap_apply_summary (glui32 valcount, glui32 *summary);
 
@@ -164,6 +203,7 @@ extern int heap_apply_summary (glui32 valcount, glui32 *summary);
 
 typedef glui32 (*acceleration_func)(glui32 argc, glui32 *argv);
 extern void init_accel ();
+extern void shutdown_accel ();
 extern acceleration_func accel_find_func (glui32 index);
 extern acceleration_func accel_get_func (glui32 addr);
 extern void accel_set_func (glui32 index, glui32 addr);
@@ -5,6 +5,7 @@
 // http://www.eblong.com/zarf/glulx/index.html
 
 #include "git.h"
+#include <string.h>
 #include <glk.h>
 #include <glkstart.h> // This comes with the Glk library.
 
@@ -15,9 +16,10 @@
 #include <errno.h>
 #endif
 
-// The only command-line argument is the filename.
+// The command line is the filename, after any options.
 glkunix_argumentlist_t glkunix_arguments[] =
 {
+    { "-undodir", glkunix_arg_ValueFollows, "-undodir DIR: Keep old undo states in a file in DIR." },
     { "", glkunix_arg_ValueFollows, "filename: The game file to load." },
     { NULL, glkunix_arg_End, NULL }
 };
@@ -25,12 +27,41 @@ glkunix_argumentlist_t glkunix_arguments[] =
 #define CACHE_SIZE (256 * 1024L)
 #define UNDO_SIZE (2 * 1024 * 1024L)
 
+#ifdef ANDROID
+// Provided by glkjni: logs the message and unwinds back to the Java
+// side, so that the session can be shut down without killing the app.
+extern void gli_fatal (char * msg);
+
+// Provided by glkjni: finds a story that was handed over as a range
+// of an open file and mapped into memory.
+extern int glkjni_get_story_image (char * pathname, char ** data, glui32 * len);
+#endif
+
 void fatalError (const char * s)
 {
+#ifdef ANDROID
+    gli_fatal ((char *) s);
+#endif
     fprintf (stderr, "*** fatal error: %s ***\n", s);
     exit (1);
 }
 
+// Applies the options and returns the filename, or NULL if there isn't one.
+static const char * parseArguments (glkunix_startup_t *data)
+{
+    const char * filename = NULL;
+    int i;
+
+    for (i = 1 ; i < data->argc ; ++i)
+    {
+        if (strcmp (data->argv[i], "-undodir") == 0 && i + 1 < data->argc)
+            setUndoDir (data->argv[++i]);
+        else
+            filename = data->argv[i];
+    }
+    return filename;
+}
+
 #ifdef USE_MMAP
 // Fast loader that uses some fancy Unix features.
 
@@ -38,12 +69,12 @@ const char * gFilename = 0;
 
 int glkunix_startup_code(glkunix_startup_t *data)
 {
-    if (data->argc <= 1)
+    gFilename = parseArguments (data);
+    if (gFilename == NULL)
     {
-        printf ("usage: git gamefile.ulx\n");
+        printf ("usage: git [-undodir DIR] gamefile.ulx\n");
         return 0;
     }
-    gFilename = data->argv[1];
     return 1;
 }
 
@@ -86,21 +117,55 @@ strid_t gStream = 0;
 
 int glkunix_startup_code(glkunix_startup_t *data)
 {
-    if (data->argc <= 1)
+    const char * filename = parseArguments (data);
+    if (filename == NULL)
     {
-        printf ("usage: git gamefile.ulx\n");
+        printf ("usage: git [-undodir DIR] gamefile.ulx\n");
         return 0;
     }
-    gStream = glkunix_stream_open_pathname ((char*) data->argv[1], 0, 0);
+#ifdef ANDROID
+    {
+        char * image;
+        glui32 imageLen;
+
+        // A mapped story can be run where it is, without a copy.
+        if (glkjni_get_story_image ((char*) filename, &image, &imageLen))
+        {
+            gitLoadMemory ((git_uint8 *) image, imageLen);
+            return 1;
+        }
+    }
+#endif
+    gStream = glkunix_stream_open_pathname ((char*) filename, 0, 0);
+#ifdef ANDROID
+    // Read and check the game now, so that a bad file makes
+    // GlkFactory.startup() fail and run() can start straight away.
+    if (gStream == NULL)
+        return 0;
+    gitLoadStream (gStream);
+#endif
     return 1;
 }
 
 void glk_main ()
 {
+#ifdef ANDROID
+    // Checkpoints are written on request, and resumed from (if Java
+    // asked to resume) when the game first waits for input.
+    glkjni_set_checkpoint_func (writeCheckpoint);
+    set_library_select_hook (resumeCheckpoint);
+
+    // The player can go straight back to a turn the undo states reach.
+    glkjni_set_undo_funcs (turnSerial, rewindTurns);
+
+    // glkunix_startup_code() has already loaded the game.
+    gitRunLoaded (CACHE_SIZE, UNDO_SIZE);
+#else
     if (gStream == NULL)
         fatalError ("could not open game file");
 
     gitWithStream (gStream, CACHE_SIZE, UNDO_SIZE);
+#endif
 }
 
 #endif // USE_MMAP
@@ -304,6 +304,44 @@ int git_init_dispatch()
   return TRUE;
 }
 
+/* git_shutdown_dispatch():
+   Free the class hash tables and any retained arrays, so that
+   git_init_dispatch() will set everything up again for the next game.
+   The Glk library has already dropped its objects and registry hooks.
+*/
+void git_shutdown_dispatch()
+{
+  int ix, jx;
+  classref_t *cref, *cnext;
+  arrayref_t *arref, *anext;
+
+  if (git_classes) {
+    for (ix=0; ix<num_classes; ix++) {
+      if (!git_classes[ix])
+        continue;
+      for (jx=0; jx<CLASSHASH_SIZE; jx++) {
+        for (cref = git_classes[ix]->bucket[jx]; cref; cref = cnext) {
+          cnext = cref->next;
+          glulx_free(cref);
+        }
+      }
+      glulx_free(git_classes[ix]);
+    }
+    glulx_free(git_classes);
+    git_classes = NULL;
+  }
+  num_classes = 0;
+
+  for (arref = arrays; arref; arref = anext) {
+    anext = arref->next;
+    glulx_free(arref->array);
+    glulx_free(arref);
+  }
+  arrays = NULL;
+
+  library_select_hook = NULL;
+}
+
 /* git_perform_glk():
    Turn a list of Glulx arguments into a list of Glk arguments,
    dispatch the function call, and return the result. 
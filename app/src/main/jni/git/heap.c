@@ -71,6 +71,22 @@ void heap_clear()
   /* heap_sanity_check(); */
 }
 
+/* heap_shutdown():
+   Free the block lists without touching the game's memory, which may
+   already have been released. Called when the interpreter is shut down.
+*/
+void heap_shutdown()
+{
+  while (heap_head) {
+    heapblock_t *blo = heap_head;
+    heap_head = blo->next;
+    glulx_free(blo);
+  }
+  heap_tail = NULL;
+  heap_start = 0;
+  alloc_count = 0;
+}
+
 /* heap_is_active():
    Returns whether the heap is active.
 */
@@ -166,6 +166,18 @@ static void parseSS (git_uint32* pc, Label op)
     parseStore (pc, reg_S1, modes [0], size32);
     parseStore (pc, reg_S2, modes [1], size32);
 }
+static void parseGlk (git_uint32* pc, git_uint32 pcStart)
+{
+    int modes [3];
+    parseModeNibbles (pc, 3, modes);
+
+    parseLoad (pc, reg_L1, modes [0], size32, NULL);
+    parseLoad (pc, reg_L2, modes [1], size32, NULL);
+    emitCode (label_glk);
+    // Checkpoints recognize the call by the instruction's address.
+    emitData (pcStart);
+    parseStore (pc, reg_S1, modes [2], size32);
+}
 static void parseCatch (git_uint32 * pc)
 {
     int modes [2];
@@ -411,7 +423,7 @@ void parseInstruction (git_uint32* pc, int * done)
         case op_streamstr:     parseL (pc, label_streamstr);     emitData(*pc); break;
         case op_streamunichar: parseL (pc, label_streamunichar); emitData(*pc); break;
  
-        case op_glk: parseLLS (pc, label_glk); break;
+        case op_glk: parseGlk (pc, pcStart); break;
         case op_gestalt: parseLLS (pc, label_gestalt); break;
 
         case op_binarysearch:
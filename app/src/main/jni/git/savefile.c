@@ -1,6 +1,7 @@
 // $Id: savefile.c,v 1.6 2003/10/20 16:05:06 iain Exp $
 
 #include "git.h"
+#include <string.h>
 
 static void writeWord (git_sint32 word)
 {
@@ -211,107 +212,507 @@ git_sint32 restoreFromFile (git_sint32 * base, git_sint32 id,
     return 0;
 }
 
-git_sint32 saveToFile (git_sint32 * base, git_sint32 * sp, git_sint32 id)
+// -------------------------------------------------------------
+// Saving
+//
+// A save is made in two steps. takeImage() copies what the save needs
+// out of the running game: the stack, the heap summary and RAM. RAM is
+// kept in the same 256-byte pages as the undo states in saveundo.c. A
+// page that hasn't changed since the newest undo state shares that
+// state's page, and one that hasn't changed since the game was loaded
+// is left out, so only the pages written to since the last @saveundo
+// are copied. writeImage() then turns the image into a Quetzal file.
+// It doesn't look at the game at all, so on Android it runs on the Glk
+// library's writer thread while the game carries on.
+
+typedef struct SaveImage
 {
-    git_uint32 n, zeroCount;
-    glui32 fileSize, fileSizePos;
-    glui32 memSize, memSizePos;
-    glui32 heapSize;
-    glui32* heap;
-
-    strid_t file, oldFile;
+    const git_uint8 *  rom;        // gInitMem, which doesn't change
+    git_uint32         ramStart;
+    git_uint32         extStart;
+    git_uint32         endMem;
+    const git_uint8 ** pages;      // (endMem - ramStart) / 256 of them
+    git_sint32 *       stack;
+    git_uint32         stackSize;  // in words
+    glui32 *           heap;
+    glui32             heapSize;
+} SaveImage;
+
+// A page is NULL if it matches the story file. Only pages below
+// extStart can; the ones above it have nothing to match.
+
+static SaveImage * takeImage (git_sint32 * base, git_sint32 * sp)
+{
+    SaveImage * image;
+    git_uint32 addr, slot;
+
+    image = malloc (sizeof (SaveImage));
+    if (image == NULL)
+        fatalError ("Couldn't allocate save image");
+
+    image->rom = gInitMem;
+    image->ramStart = gRamStart;
+    image->extStart = gExtStart;
+    image->endMem = gEndMem;
+
+    image->stackSize = sp - base;
+    image->stack = malloc (image->stackSize * 4 + 4);
+    image->pages = malloc ((gEndMem - gRamStart) / 256 * sizeof (git_uint8 *) + 1);
+    if (image->stack == NULL || image->pages == NULL)
+        fatalError ("Couldn't allocate save image");
+    memcpy (image->stack, base, image->stackSize * 4);
+
+    for (addr = gRamStart, slot = 0 ; addr < gEndMem ; addr += 256, ++slot)
+    {
+        const git_uint8 * page = newestUndoPage (addr);
+        int inRom = (addr < gExtStart);
 
-    // Find out what stream they want to use, and make sure it's valid.
-    file = git_find_stream_by_id (id);
-    if (file == 0)
-        return 1;
+        if (page != NULL && memcmp (page, gMem + addr, 256) == 0)
+        {
+            // Unchanged since the undo state was saved. It may
+            // still be the story file's page, which isn't shared.
+            if (inRom && page == gInitMem + addr)
+                page = NULL;
+            else
+                holdPage (page);
+        }
+        else if (inRom && memcmp (gInitMem + addr, gMem + addr, 256) == 0)
+            page = NULL;
+        else
+        {
+            page = copyPage (gMem + addr);
+            if (page == NULL)
+                fatalError ("Couldn't allocate save image");
+        }
+        image->pages [slot] = page;
+    }
 
-    // Get the state of the heap.
-    if (heap_get_summary (&heapSize, &heap))
+    if (heap_get_summary (&image->heapSize, &image->heap))
         fatalError ("Couldn't get heap summary");
 
-    // Make the given stream the default.
-    oldFile = glk_stream_get_current ();
-    glk_stream_set_current (file);
+    return image;
+}
 
-    // Write Quetzal header.
-    glk_put_string ("FORM");
+static void freeImage (SaveImage * image)
+{
+    git_uint32 slot, count = (image->endMem - image->ramStart) / 256;
+
+    for (slot = 0 ; slot < count ; ++slot)
+        if (image->pages [slot] != NULL)
+            releasePage (image->pages [slot]);
 
-    fileSizePos = glk_stream_get_position (file);
-    writeWord (0);
+    free (image->pages);
+    free (image->stack);
+    if (image->heap != NULL)
+        free (image->heap);
+    free (image);
+}
 
-    glk_put_string ("IFZS");
+// The file is built up in memory, so that the chunk sizes can be filled
+// in without seeking. Running out of memory marks the buffer as failed
+// rather than stopping the game, since this can run on another thread.
+
+typedef struct SaveBuffer
+{
+    git_uint8 * data;
+    git_uint32  size;
+    git_uint32  capacity;
+    int         failed;
+} SaveBuffer;
+
+static void putBytes (SaveBuffer * buf, const void * bytes, git_uint32 n)
+{
+    if (buf->failed)
+        return;
+
+    if (buf->size + n > buf->capacity)
+    {
+        git_uint32 capacity = buf->capacity ? buf->capacity : 4096;
+        git_uint8 * data;
+        while (capacity < buf->size + n)
+            capacity *= 2;
+        data = realloc (buf->data, capacity);
+        if (data == NULL)
+        {
+            buf->failed = 1;
+            return;
+        }
+        buf->data = data;
+        buf->capacity = capacity;
+    }
+    memcpy (buf->data + buf->size, bytes, n);
+    buf->size += n;
+}
+
+static void putByte (SaveBuffer * buf, git_uint8 c)
+{
+    putBytes (buf, &c, 1);
+}
+
+static void putWord (SaveBuffer * buf, git_uint32 word)
+{
+    git_uint8 bytes [4];
+    write32 (bytes, word);
+    putBytes (buf, bytes, 4);
+}
+
+// Sets a word that has already been written.
+static void patchWord (SaveBuffer * buf, git_uint32 pos, git_uint32 word)
+{
+    if (!buf->failed)
+        write32 (buf->data + pos, word);
+}
+
+// Fills buf with the image as a Quetzal file. Returns 0 on success.
+static int writeImage (const SaveImage * image, SaveBuffer * buf)
+{
+    git_uint32 n, zeroCount, slot;
+    git_uint32 memSizePos;
+
+    buf->data = NULL;
+    buf->size = buf->capacity = 0;
+    buf->failed = 0;
+
+    // Write Quetzal header.
+    putBytes (buf, "FORM", 4);
+    putWord (buf, 0);
+    putBytes (buf, "IFZS", 4);
 
     // Header chunk.
-    glk_put_string ("IFhd");
-    writeWord (128);
-    glk_put_buffer ((char *) gInitMem, 128);
+    putBytes (buf, "IFhd", 4);
+    putWord (buf, 128);
+    putBytes (buf, image->rom, 128);
 
     // Stack chunk.
-    glk_put_string ("Stks");
-    writeWord ((sp - base) * 4);
-    for (n = 0 ; n < (git_uint32) (sp - base) ; ++n)
-        writeWord (base [n]);
+    putBytes (buf, "Stks", 4);
+    putWord (buf, image->stackSize * 4);
+    for (n = 0 ; n < image->stackSize ; ++n)
+        putWord (buf, image->stack [n]);
 
     // Heap chunk.
-    if (heap != 0)
+    if (image->heap != 0)
     {
-        glk_put_string ("MAll");
-        writeWord (heapSize * 4);
-        for (n = 0 ; n < heapSize ; ++n)
-            writeWord (heap [n]);
-        free(heap);
+        putBytes (buf, "MAll", 4);
+        putWord (buf, image->heapSize * 4);
+        for (n = 0 ; n < image->heapSize ; ++n)
+            putWord (buf, image->heap [n]);
     }
 
     // Memory chunk.
-    glk_put_string ("CMem");
-    memSizePos = glk_stream_get_position (file);
-    writeWord (0);
+    putBytes (buf, "CMem", 4);
+    memSizePos = buf->size;
+    putWord (buf, 0);
 
-    writeWord (gEndMem);
-    for (zeroCount = 0, n = gRamStart ; n < gEndMem ; ++n)
+    putWord (buf, image->endMem);
+    for (zeroCount = 0, slot = 0, n = image->ramStart ; n < image->endMem ; n += 256, ++slot)
     {
-        unsigned char romC = (n < gExtStart) ? gInitMem[n] : 0;
-        unsigned char c = ((git_uint32) romC) ^ ((git_uint32) gMem[n]);
-        if (c == 0)
-            ++zeroCount;
-        else
+        const git_uint8 * page = image->pages [slot];
+        git_uint32 i;
+
+        // A page that matches the story file is all zeroes once XORed.
+        if (page == NULL)
         {
-            for ( ; zeroCount > 256 ; zeroCount -= 256)
-            {
-                glk_put_char (0);
-                glk_put_char (0xff);
-            }
+            zeroCount += 256;
+            continue;
+        }
 
-            if (zeroCount > 0)
+        for (i = 0 ; i < 256 ; ++i)
+        {
+            unsigned char romC = (n + i < image->extStart) ? image->rom [n + i] : 0;
+            unsigned char c = ((git_uint32) romC) ^ ((git_uint32) page [i]);
+            if (c == 0)
+                ++zeroCount;
+            else
             {
-                glk_put_char (0);
-                glk_put_char ((char) (zeroCount - 1));
-                zeroCount = 0;
-            }
+                for ( ; zeroCount > 256 ; zeroCount -= 256)
+                {
+                    putByte (buf, 0);
+                    putByte (buf, 0xff);
+                }
+
+                if (zeroCount > 0)
+                {
+                    putByte (buf, 0);
+                    putByte (buf, (git_uint8) (zeroCount - 1));
+                    zeroCount = 0;
+                }
 
-            glk_put_char (c);
+                putByte (buf, c);
+            }
         }
     }
     // Note: we don't bother writing out any remaining zeroes,
     // because the memory is padded out with zeroes on restore.
 
-    memSize = glk_stream_get_position (file) - memSizePos - 4;
-    if (memSize & 1)
-       glk_put_char (0);
+    patchWord (buf, memSizePos, buf->size - memSizePos - 4);
+    if ((buf->size - memSizePos) & 1)
+        putByte (buf, 0);
 
-    // Back up and fill in the lengths.
-    fileSize = glk_stream_get_position (file) - fileSizePos - 4;
+    // Fill in the length of the whole file.
+    patchWord (buf, 4, buf->size - 8);
 
-    glk_stream_set_position (file, fileSizePos, seekmode_Start);
-    writeWord (fileSize);
+    if (buf->failed)
+    {
+        free (buf->data);
+        buf->data = NULL;
+        return 1;
+    }
+    return 0;
+}
+
+// Writes the image to a Glk stream, and frees it.
+static git_sint32 writeImageToStream (SaveImage * image, strid_t file)
+{
+    SaveBuffer buf;
+    int failed = writeImage (image, &buf);
+    freeImage (image);
+    if (failed)
+        return 1;
+
+    glk_put_buffer_stream (file, (char *) buf.data, buf.size);
+    free (buf.data);
+    return 0;
+}
 
-    glk_stream_set_position (file, memSizePos, seekmode_Start);
-    writeWord (memSize);
+#ifdef ANDROID
+#include <glkstart.h>
+
+// Called on the writer thread. Returns nonzero if the whole file was written.
+static int writeImageToFile (FILE * fp, void * arg)
+{
+    SaveImage * image = arg;
+    SaveBuffer buf;
+    int ok = (writeImage (image, &buf) == 0);
+    freeImage (image);
+    if (!ok)
+        return 0;
+
+    ok = (fwrite (buf.data, 1, buf.size, fp) == buf.size);
+    free (buf.data);
+    return ok;
+}
+#endif // ANDROID
+
+git_sint32 saveToFile (git_sint32 * base, git_sint32 * sp, git_sint32 id)
+{
+    SaveImage * image;
+    strid_t file;
+
+    // Find out what stream they want to use, and make sure it's valid.
+    file = git_find_stream_by_id (id);
+    if (file == 0)
+        return 1;
+
+    image = takeImage (base, sp);
+
+#ifdef ANDROID
+    // Let the library finish the file in the background. The game is
+    // told the save worked as soon as the image is taken; if the file
+    // can't be written, the library logs it and keeps the old save.
+    if (glkjni_stream_write_later (file, writeImageToFile, image))
+        return 0;
+#endif // ANDROID
+
+    return writeImageToStream (image, file);
+}
+
+#ifdef ANDROID
+#include "gi_dispa.h"
+
+// -------------------------------------------------------------
+// Checkpoints
+//
+// A checkpoint is taken inside glk_select(), while the game waits for
+// input. It is a saved game, as written by writeImage(), after a header
+// that says where the call was made from: the address of the @glk
+// instruction, the depth of the caller's frame and of the stack, and
+// the Glk objects that were open.
+//
+// A save can't bring back the Glk objects the game had, so to resume,
+// the story is started afresh and run to its first glk_select(). If that
+// call matches the header, the saved game is restored then and there,
+// and the game goes on waiting for input where the checkpoint left it.
+
+#define CHECKPOINT_VERSION 1
+
+typedef struct ObjectList
+{
+    glui32 * words;
+    glui32 count;
+    glui32 size;
+} ObjectList;
+
+static void addObject (ObjectList * list, glui32 objclass, glui32 id, glui32 rock)
+{
+    if (list->count == list->size)
+    {
+        list->size = list->size ? list->size * 2 : 16;
+        list->words = realloc (list->words, list->size * 3 * sizeof (glui32));
+        if (list->words == NULL)
+            fatalError ("Couldn't allocate checkpoint object list");
+    }
+    list->words [list->count * 3] = objclass;
+    list->words [list->count * 3 + 1] = id;
+    list->words [list->count * 3 + 2] = rock;
+    ++list->count;
+}
+
+// Lists the open windows, streams and filerefs by class, ID and rock,
+// leaving out the checkpoint's own stream.
+static void listObjects (ObjectList * list, strid_t skip)
+{
+    winid_t win;
+    strid_t str;
+    frefid_t fref;
+    glui32 rock;
+
+    list->words = NULL;
+    list->count = list->size = 0;
+
+    for (win = glk_window_iterate (NULL, &rock) ; win ; win = glk_window_iterate (win, &rock))
+        addObject (list, gidisp_Class_Window, git_find_id_for_window (win), rock);
+
+    for (str = glk_stream_iterate (NULL, &rock) ; str ; str = glk_stream_iterate (str, &rock))
+        if (str != skip)
+            addObject (list, gidisp_Class_Stream, git_find_id_for_stream (str), rock);
+
+    for (fref = glk_fileref_iterate (NULL, &rock) ; fref ; fref = glk_fileref_iterate (fref, &rock))
+        addObject (list, gidisp_Class_Fileref, git_find_id_for_fileref (fref), rock);
+}
+
+int writeCheckpoint (strid_t file)
+{
+    ObjectList objects;
+    strid_t oldFile;
+    git_uint32 n;
+
+    if (gGlkCall.frame == NULL)
+        return 0; // Not called from the game.
+
+    listObjects (&objects, file);
+
+    oldFile = glk_stream_get_current ();
+    glk_stream_set_current (file);
+
+    glk_put_string ("GitC");
+    writeWord (CHECKPOINT_VERSION);
+    writeWord (gGlkCall.pc);
+    writeWord (gGlkCall.frame - gGlkCall.base);
+    writeWord (gStackPointer - gGlkCall.base);
+    writeWord (objects.count);
+    for (n = 0 ; n < objects.count * 3 ; ++n)
+        writeWord (objects.words [n]);
+    free (objects.words);
 
-    // Restore the previous default stream.
     glk_stream_set_current (oldFile);
 
-    // And we're done.
-    return 0;
+    // The checkpoint is written before the app goes away, so it can't
+    // be left to the writer thread.
+    return writeImageToStream (takeImage (gGlkCall.base, gStackPointer), file) == 0;
+}
+
+// Installed as the library select hook, so that it runs at the start
+// of the game's first glk_select().
+void resumeCheckpoint (glui32 eventAddr)
+{
+    ObjectList objects;
+    strid_t file;
+    git_uint32 n;
+    int match;
+
+    set_library_select_hook (NULL);
+
+    file = glkjni_open_checkpoint ();
+    if (file == NULL)
+        return;
+
+    listObjects (&objects, file);
+    match = readWord (file) == readtag ("GitC")
+        && readWord (file) == CHECKPOINT_VERSION
+        && readWord (file) == gGlkCall.pc
+        && readWord (file) == (git_uint32) (gGlkCall.frame - gGlkCall.base)
+        && readWord (file) == (git_uint32) (gStackPointer - gGlkCall.base)
+        && readWord (file) == objects.count;
+    for (n = 0 ; match && n < objects.count * 3 ; ++n)
+        match = (readWord (file) == objects.words [n]);
+    free (objects.words);
+
+    if (!match)
+    {
+        glk_stream_close (file, NULL);
+        glkjni_checkpoint_restored (0);
+        return;
+    }
+
+    // The stack and frame are where they were when the checkpoint was
+    // taken, so the terp's registers stay valid; do_glk picks up the
+    // restored stack pointer when this call returns.
+    if (restoreFromFile (gGlkCall.base, git_find_id_for_stream (file), 0, 0) != 0)
+    {
+        glk_stream_close (file, NULL);
+        glkjni_checkpoint_restored (0);
+        fatalError ("Couldn't resume from checkpoint");
+    }
+    glk_stream_close (file, NULL);
+    glkjni_checkpoint_restored (1);
+}
+
+// -------------------------------------------------------------
+// Going back to earlier turns
+//
+// The library asks for this inside glk_select(), which has still to
+// write its event into the game's memory. So rewindTurns() only notes
+// how far to go, and do_glk calls finishRewind() once the call has
+// returned, which carries on as if @restoreundo had just succeeded.
+
+static git_uint32 sRewindLevels = 0;
+
+glui32 turnSerial (glui32 * oldest)
+{
+    git_uint32 first;
+    glui32 next = undoSerial (&first);
+    *oldest = first;
+    return next;
 }
+
+int rewindTurns (glui32 levels)
+{
+    git_uint32 oldest, next;
+
+    if (gGlkCall.frame == NULL)
+        return 0; // Not called from the game.
+
+    next = undoSerial (&oldest);
+    if (levels == 0 || levels > next - oldest)
+        return 0;
+
+    sRewindLevels = levels;
+    return 1;
+}
+
+// Returns 1 if the undo state has been restored, leaving the stack
+// pointer in gStackPointer.
+int finishRewind (git_sint32* base, git_uint32 protectPos, git_uint32 protectSize)
+{
+    git_uint32 levels = sRewindLevels;
+    winid_t win;
+
+    if (levels == 0)
+        return 0;
+    sRewindLevels = 0;
+
+    // The input the game was waiting for belongs to the turn being
+    // taken back. Cancelling it may write to memory, so do it first.
+    for (win = glk_window_iterate (NULL, NULL) ; win ; win = glk_window_iterate (win, NULL))
+    {
+        glk_cancel_line_event (win, NULL);
+        glk_cancel_char_event (win);
+    }
+
+    if (discardUndo (levels - 1) != 0
+        || restoreUndo (base, protectPos, protectSize) != 0)
+        fatalError ("Couldn't go back to an earlier turn");
+    return 1;
+}
+
+#endif // ANDROID
@@ -1,13 +1,31 @@
 // $Id: saveundo.c,v 1.15 2003/10/20 16:05:06 iain Exp $
 
 #include "git.h"
+#include <stddef.h>
 #include <stdlib.h>
 #include <string.h>
 #include <assert.h>
+#include <unistd.h>
 
 typedef const git_uint8 * MemoryPage;
 typedef MemoryPage * MemoryMap;
 
+// A page that isn't in the story file is allocated with a count of its
+// holders in front of it. All the undo records that share a page count
+// as one holder between them, and each save image (see savefile.c) that
+// shares it counts as another, so the page stays until they are all
+// done with it. Images are freed on the writer thread, so the count is
+// changed atomically.
+
+typedef struct SharedPage
+{
+    volatile int holders;
+    git_uint8    data [256];
+} SharedPage;
+
+#define SHARED_PAGE(page) \
+    ((SharedPage *) ((git_uint8 *) (page) - offsetof (SharedPage, data)))
+
 typedef struct UndoRecord UndoRecord;
 
 struct UndoRecord
@@ -26,14 +44,87 @@ static UndoRecord * gUndo = NULL;
 static git_uint32 gUndoSize = 0;
 static git_uint32 gMaxUndoSize = 256 * 1024;
 
+// Records are numbered in the order they are saved; restoring one gives
+// its number back. gUndoCount counts the records in memory, and
+// gUndoSerial is the number the next one will get.
+static git_uint32 gUndoCount = 0;
+static git_uint32 gUndoSerial = 0;
+
+// Records that no longer fit in gMaxUndoSize are spilled, oldest first,
+// to a file. Each is written as its memory XORed with a reference and
+// run-length encoded, so only the bytes that changed take up space. The
+// reference is usually the record spilled before it, which gSpillRef
+// keeps in memory (sharing pages with the oldest record still in memory,
+// so it costs little). Every SPILL_KEY_INTERVAL records, or when there
+// is no reference, a key record is XORed against the story file instead,
+// so that any spilled record can be rebuilt by reading at most that many.
+
+#define SPILL_KEY_INTERVAL 16
+
+typedef struct SpillEntry
+{
+    long offset;
+    int  key;
+} SpillEntry;
+
+static char *       gSpillDir = NULL;
+static FILE *       gSpillFile = NULL;
+static SpillEntry * gSpill = NULL;
+static git_uint32   gSpillCount = 0;
+static git_uint32   gSpillCapacity = 0;
+static long         gSpillEnd = 0;
+static UndoRecord * gSpillRef = NULL;
+
 static void reserveSpace (git_uint32);
 static void deleteRecord (UndoRecord * u);
+static void dropSpillRef ();
+static int  spillRecord (UndoRecord * u);
+static int  unspillRecord ();
+static void discardSpill ();
 
 void initUndo (git_uint32 size)
 {
     gMaxUndoSize = size;
     gUndoSize = 0;
     gUndo = NULL;
+    gUndoCount = 0;
+    gUndoSerial = 0;
+}
+
+void setUndoDir (const char * dir)
+{
+    free (gSpillDir);
+    gSpillDir = NULL;
+    if (dir != NULL)
+    {
+        gSpillDir = malloc (strlen (dir) + 1);
+        if (gSpillDir == NULL)
+            fatalError ("Couldn't allocate memory for undo");
+        strcpy (gSpillDir, dir);
+    }
+}
+
+// Returns a new page holding a copy of 256 bytes, or NULL if there's
+// no memory for one. The caller is its only holder.
+MemoryPage copyPage (const git_uint8 * bytes)
+{
+    SharedPage * p = malloc (sizeof(SharedPage));
+    if (p == NULL)
+        return NULL;
+    p->holders = 1;
+    memcpy (p->data, bytes, 256);
+    return p->data;
+}
+
+void holdPage (MemoryPage page)
+{
+    __sync_add_and_fetch (&SHARED_PAGE(page)->holders, 1);
+}
+
+void releasePage (MemoryPage page)
+{
+    if (__sync_sub_and_fetch (&SHARED_PAGE(page)->holders, 1) == 0)
+        free (SHARED_PAGE(page));
 }
 
 int saveUndo (git_sint32 * base, git_sint32 * sp)
@@ -73,11 +164,10 @@ int saveUndo (git_sint32 * base, git_sint32 * sp)
             if (memcmp (gInitMem + addr, gMem + addr, 256) != 0)
             {
                 // We need to save this page.
-                git_uint8 * page = malloc(256);
+                MemoryPage page = copyPage (gMem + addr);
                 if (page == NULL)
                     fatalError ("Couldn't allocate memory for undo");
                     
-                memcpy (page, gMem + addr, 256);
                 undo->memoryMap[slot] = page;
                 totalSize += 256;
             }
@@ -92,11 +182,10 @@ int saveUndo (git_sint32 * base, git_sint32 * sp)
         // If the memory map has been extended, save the exended area
         for (addr = gExtStart ; addr < gEndMem ; addr += 256, ++slot)
         {
-            git_uint8 * page = malloc(256);
+            MemoryPage page = copyPage (gMem + addr);
             if (page == NULL)
                 fatalError ("Couldn't allocate memory for undo");
                 
-            memcpy (page, gMem + addr, 256);
             undo->memoryMap[slot] = page;
             totalSize += 256;
         }
@@ -110,8 +199,9 @@ int saveUndo (git_sint32 * base, git_sint32 * sp)
             if (memcmp (gUndo->memoryMap [slot], gMem + addr, 256) != 0)
             {
                 // We need to save this page.
-                git_uint8 * page = malloc(256);
-                memcpy (page, gMem + addr, 256);
+                MemoryPage page = copyPage (gMem + addr);
+                if (page == NULL)
+                    fatalError ("Couldn't allocate memory for undo");
                 undo->memoryMap[slot] = page;
                 totalSize += 256;
             }
@@ -126,11 +216,10 @@ int saveUndo (git_sint32 * base, git_sint32 * sp)
         // If the memory map has been extended, save the exended area
         for (addr = endMem ; addr < gEndMem ; addr += 256, ++slot)
         {
-            git_uint8 * page = malloc(256);
+            MemoryPage page = copyPage (gMem + addr);
             if (page == NULL)
                 fatalError ("Couldn't allocate memory for undo");
                 
-            memcpy (page, gMem + addr, 256);
             undo->memoryMap[slot] = page;
             totalSize += 256;
         }
@@ -149,6 +238,8 @@ int saveUndo (git_sint32 * base, git_sint32 * sp)
     
     gUndo = undo;
     gUndoSize += totalSize;
+    ++gUndoCount;
+    ++gUndoSerial;
 
     // Delete old records until we have enough free space.
     reserveSpace (0);
@@ -159,6 +250,11 @@ int saveUndo (git_sint32 * base, git_sint32 * sp)
 
 int restoreUndo (git_sint32* base, git_uint32 protectPos, git_uint32 protectSize)
 {
+    // Once the records in memory have been used up,
+    // bring back the newest one that was spilled.
+    if (gUndo == NULL && gSpillCount > 0)
+        unspillRecord ();
+
     if (gUndo == NULL)
     {
         // Nothing to undo!
@@ -212,19 +308,68 @@ int restoreUndo (git_sint32* base, git_uint32 protectPos, git_uint32 protectSize
 
         gUndo = undo->prev;
         deleteRecord (undo);
+        --gUndoCount;
+        --gUndoSerial;
 
         if (gUndo)
             gUndo->next = NULL;
         else
-            assert (gUndoSize == 0);
+            assert (gUndoSize == 0 || gSpillRef != NULL);
 
         // And we're done.
         return 0;
     }
 }
 
+git_uint32 undoSerial (git_uint32 * oldest)
+{
+    *oldest = gUndoSerial - (gUndoCount + gSpillCount);
+    return gUndoSerial;
+}
+
+// Throws away the n newest records, as if each had been restored in
+// turn, so that the next restoreUndo() goes back n + 1 levels. Spilled
+// records are dropped without being read. Returns 1 if there aren't
+// that many records.
+int discardUndo (git_uint32 n)
+{
+    if (n > gUndoCount + gSpillCount)
+        return 1;
+
+    gUndoSerial -= n;
+
+    for ( ; n > 0 && gUndo != NULL ; --n)
+    {
+        UndoRecord * undo = gUndo;
+        gUndo = undo->prev;
+        if (gUndo)
+            gUndo->next = NULL;
+        deleteRecord (undo);
+        --gUndoCount;
+    }
+
+    if (n > 0)
+    {
+        // The reference holds the newest spilled record, which is going.
+        dropSpillRef ();
+        gSpillCount -= n;
+        gSpillEnd = gSpill [gSpillCount].offset;
+    }
+    return 0;
+}
+
+// Returns the page that the newest undo record in memory has for addr,
+// or NULL if there isn't one. It may point into the story file.
+MemoryPage newestUndoPage (git_uint32 addr)
+{
+    if (gUndo == NULL || addr >= gUndo->endMem)
+        return NULL;
+    return gUndo->memoryMap [(addr - gRamStart) / 256];
+}
+
 void resetUndo ()
 {
+    discardSpill ();
     reserveSpace (gMaxUndoSize);
     assert (gUndo == NULL);
     assert (gUndoSize == 0);
@@ -233,6 +378,16 @@ void resetUndo ()
 void shutdownUndo ()
 {
     resetUndo();
+
+    if (gSpillFile != NULL)
+        fclose (gSpillFile);
+    gSpillFile = NULL;
+
+    free (gSpill);
+    gSpill = NULL;
+    gSpillCapacity = 0;
+
+    setUndoDir (NULL);
 }
 
 static void reserveSpace (git_uint32 n)
@@ -255,8 +410,16 @@ static void reserveSpace (git_uint32 n)
             assert (u->next->prev == u);
             u = u->next;
 
-            deleteRecord (u->prev);
+            // Move the oldest record out to the spill file, unless we're
+            // clearing everything out. If it can't be spilled, then the
+            // records that were spilled before it are no use either.
+            if (n > 0 || !spillRecord (u->prev))
+            {
+                discardSpill ();
+                deleteRecord (u->prev);
+            }
             u->prev = NULL;
+            --gUndoCount;
         }
         else
         {
@@ -266,6 +429,7 @@ static void reserveSpace (git_uint32 n)
                 gUndo = NULL;
 
                 deleteRecord (u);
+                --gUndoCount;
                 assert (gUndoSize == 0);
             }
             break;
@@ -302,6 +466,22 @@ static void deleteRecord (UndoRecord * u)
         }
     }
 
+    // Zero out all the slots which are shared with
+    // the reference for the spill file.
+
+    if (gSpillRef != NULL && u != gSpillRef)
+    {
+        addr = gRamStart;
+        slot = 0;
+
+        while (addr < u->endMem && addr < gSpillRef->endMem)
+        {
+            if (u->memoryMap [slot] == gSpillRef->memoryMap [slot])
+                u->memoryMap [slot] = NULL;
+            addr += 256, ++slot;
+        }
+    }
+
     // Zero out all the slots which are duplicates
     // of newer undo records.
 
@@ -326,7 +506,7 @@ static void deleteRecord (UndoRecord * u)
     {
         if (u->memoryMap [slot])
         {
-            free ((void*) u->memoryMap [slot]);
+            releasePage (u->memoryMap [slot]);
             gUndoSize -= 256;
         }
         addr += 256, ++slot;
@@ -348,3 +528,390 @@ static void deleteRecord (UndoRecord * u)
     free (u);
     gUndoSize -= sizeof(UndoRecord);
 }
+
+// -------------------------------------------------------------
+// Spill file
+
+static FILE * openSpillFile ()
+{
+    char * path;
+    FILE * file;
+    int fd;
+
+    if (gSpillDir == NULL)
+        return tmpfile ();
+
+    path = malloc (strlen (gSpillDir) + 32);
+    if (path == NULL)
+        return NULL;
+    sprintf (path, "%s/git-undo-XXXXXX", gSpillDir);
+
+    // The file is only ever reached through this handle,
+    // so it can be unlinked straight away.
+    fd = mkstemp (path);
+    if (fd < 0)
+    {
+        free (path);
+        return NULL;
+    }
+    unlink (path);
+    free (path);
+
+    file = fdopen (fd, "w+b");
+    if (file == NULL)
+        close (fd);
+    return file;
+}
+
+// Returns the oldest record that is still in memory.
+static UndoRecord * oldestRecord ()
+{
+    UndoRecord * u = gUndo;
+    while (u != NULL && u->prev != NULL)
+        u = u->prev;
+    return u;
+}
+
+// Frees the reference. Its pages may be shared with
+// the oldest record in memory, which keeps them.
+static void dropSpillRef ()
+{
+    UndoRecord * ref = gSpillRef;
+    if (ref == NULL)
+        return;
+
+    gSpillRef = NULL;
+    ref->prev = NULL;
+    ref->next = oldestRecord ();
+    deleteRecord (ref);
+}
+
+static void discardSpill ()
+{
+    dropSpillRef ();
+    gSpillCount = 0;
+    gSpillEnd = 0;
+}
+
+// Zeroes are written as runs of (0, count - 1), as in a Quetzal CMem chunk.
+static void writeZeroes (git_uint32 * zeroes)
+{
+    for ( ; *zeroes > 256 ; *zeroes -= 256)
+    {
+        putc (0, gSpillFile);
+        putc (0xff, gSpillFile);
+    }
+
+    if (*zeroes > 0)
+    {
+        putc (0, gSpillFile);
+        putc (*zeroes - 1, gSpillFile);
+        *zeroes = 0;
+    }
+}
+
+// Writes a page XORed with ref, which is NULL for a page of zeroes.
+// Zeroes are counted in *zeroes until a nonzero byte turns up.
+static void writePage (const git_uint8 * page, const git_uint8 * ref, git_uint32 * zeroes)
+{
+    int i;
+
+    if (page == ref)
+    {
+        *zeroes += 256;
+        return;
+    }
+
+    for (i = 0 ; i < 256 ; ++i)
+    {
+        git_uint8 c = page [i] ^ (ref ? ref [i] : 0);
+        if (c == 0)
+            ++*zeroes;
+        else
+        {
+            writeZeroes (zeroes);
+            putc (c, gSpillFile);
+        }
+    }
+}
+
+// Writes a record out as the newest in the spill file, and makes it the
+// reference. u must be the oldest record in memory, but not the newest.
+// Returns 1 on success.
+static int spillRecord (UndoRecord * u)
+{
+    git_uint32 addr, slot, zeroes, n;
+    git_uint32 stackWords = u->stackSize / sizeof(git_sint32);
+    int key;
+
+    assert (u->prev == NULL && u->next != NULL);
+
+    if (gSpillFile == NULL)
+    {
+        gSpillFile = openSpillFile ();
+        if (gSpillFile == NULL)
+            return 0;
+    }
+
+    if (gSpillCount == gSpillCapacity)
+    {
+        git_uint32 capacity = gSpillCapacity ? gSpillCapacity * 2 : 64;
+        SpillEntry * spill = realloc (gSpill, capacity * sizeof(SpillEntry));
+        if (spill == NULL)
+            return 0;
+        gSpill = spill;
+        gSpillCapacity = capacity;
+    }
+
+    // Is it time for a key record?
+    for (n = gSpillCount ; n > 0 && !gSpill [n - 1].key ; --n)
+        ;
+    key = (gSpillRef == NULL || gSpillCount - n >= SPILL_KEY_INTERVAL - 1);
+
+    if (fseek (gSpillFile, gSpillEnd, SEEK_SET) != 0)
+        return 0;
+
+    fwrite (&u->endMem, sizeof(git_uint32), 1, gSpillFile);
+    fwrite (&stackWords, sizeof(git_uint32), 1, gSpillFile);
+    fwrite (u->stack, sizeof(git_sint32), stackWords, gSpillFile);
+    fwrite (&u->heapSize, sizeof(glui32), 1, gSpillFile);
+    if (u->heapSize > 0)
+        fwrite (u->heap, sizeof(glui32), u->heapSize, gSpillFile);
+
+    zeroes = 0;
+    for (addr = gRamStart, slot = 0 ; addr < u->endMem ; addr += 256, ++slot)
+    {
+        const git_uint8 * ref;
+        if (key)
+            ref = (addr < gExtStart) ? gInitMem + addr : NULL;
+        else
+            ref = (addr < gSpillRef->endMem) ? gSpillRef->memoryMap [slot] : NULL;
+        writePage (u->memoryMap [slot], ref, &zeroes);
+    }
+    // Finish with the trailing zeroes, so that the record
+    // ends where the last of its memory has been read.
+    writeZeroes (&zeroes);
+
+    if (fflush (gSpillFile) != 0 || ferror (gSpillFile))
+    {
+        clearerr (gSpillFile);
+        return 0;
+    }
+
+    gSpill [gSpillCount].offset = gSpillEnd;
+    gSpill [gSpillCount].key = key;
+    ++gSpillCount;
+    gSpillEnd = ftell (gSpillFile);
+
+    // The record's memory becomes the reference for the next one,
+    // and the old reference can go. The stack and heap are on disk.
+    dropSpillRef ();
+
+    u->next->prev = NULL;
+    u->next = NULL;
+
+    free (u->stack);
+    u->stack = NULL;
+    gUndoSize -= u->stackSize;
+    u->stackSize = 0;
+
+    free (u->heap);
+    u->heap = NULL;
+    gUndoSize -= u->heapSize * 4;
+    u->heapSize = 0;
+
+    gSpillRef = u;
+    return 1;
+}
+
+static int readWords (void * words, git_uint32 count)
+{
+    return fread (words, sizeof(git_uint32), count, gSpillFile) == count;
+}
+
+// Reads a spilled record's stack and heap into undo, or skips
+// past them if undo is NULL. Returns the record's endMem, or 0.
+static git_uint32 readRecordHead (long offset, UndoRecord * undo)
+{
+    git_uint32 endMem, stackWords, heapSize;
+
+    if (fseek (gSpillFile, offset, SEEK_SET) != 0
+        || !readWords (&endMem, 1) || !readWords (&stackWords, 1))
+        return 0;
+
+    if (undo == NULL)
+    {
+        if (fseek (gSpillFile, stackWords * 4, SEEK_CUR) != 0
+            || !readWords (&heapSize, 1)
+            || fseek (gSpillFile, heapSize * 4, SEEK_CUR) != 0)
+            return 0;
+        return endMem;
+    }
+
+    undo->stackSize = stackWords * sizeof(git_sint32);
+    undo->stack = malloc (undo->stackSize + 4);
+    if (undo->stack == NULL)
+        fatalError ("Couldn't allocate memory for undo");
+    gUndoSize += undo->stackSize;
+    if (!readWords (undo->stack, stackWords) || !readWords (&heapSize, 1))
+        return 0;
+
+    if (heapSize > 0)
+    {
+        undo->heap = malloc (heapSize * 4);
+        if (undo->heap == NULL)
+            fatalError ("Couldn't allocate memory for undo");
+        undo->heapSize = heapSize;
+        gUndoSize += heapSize * 4;
+        if (!readWords (undo->heap, heapSize))
+            return 0;
+    }
+
+    return endMem;
+}
+
+// Decodes a record's memory, XORing it into image. Returns 1 on success.
+static int readMemory (git_uint8 * image, git_uint32 size)
+{
+    git_uint32 i = 0;
+    while (i < size)
+    {
+        int c = getc (gSpillFile);
+        if (c == EOF)
+            return 0;
+        if (c == 0)
+        {
+            int run = getc (gSpillFile);
+            if (run == EOF || i + run + 1 > size)
+                return 0;
+            i += run + 1;
+        }
+        else
+            image [i++] ^= c;
+    }
+    return 1;
+}
+
+// Rebuilds the memory of spilled record n into a new record,
+// starting from the key record before it.
+static UndoRecord * rebuildRecord (git_uint32 n)
+{
+    UndoRecord * undo;
+    git_uint8 * image = NULL;
+    git_uint32 imageEnd = gRamStart;
+    git_uint32 addr, slot, k;
+
+    undo = malloc (sizeof(UndoRecord));
+    if (undo == NULL)
+        fatalError ("Couldn't allocate undo record");
+    undo->memoryMap = NULL;
+    undo->stack = NULL;
+    undo->stackSize = 0;
+    undo->heap = NULL;
+    undo->heapSize = 0;
+    undo->prev = NULL;
+    undo->next = NULL;
+    gUndoSize += sizeof(UndoRecord);
+
+    for (k = n ; !gSpill [k].key ; --k)
+        ;
+
+    for ( ; k <= n ; ++k)
+    {
+        git_uint32 endMem = readRecordHead (gSpill [k].offset, (k == n) ? undo : NULL);
+        if (endMem == 0)
+            goto error;
+
+        if (endMem > imageEnd)
+        {
+            git_uint8 * bigger = realloc (image, endMem - gRamStart);
+            if (bigger == NULL)
+                fatalError ("Couldn't allocate memory for undo");
+            image = bigger;
+            memset (image + (imageEnd - gRamStart), 0, endMem - imageEnd);
+        }
+        imageEnd = endMem;
+
+        // A key record is XORed against the story file.
+        if (gSpill [k].key)
+        {
+            for (addr = gRamStart ; addr < imageEnd ; ++addr)
+                image [addr - gRamStart] = (addr < gExtStart) ? gInitMem [addr] : 0;
+        }
+
+        if (!readMemory (image, imageEnd - gRamStart))
+            goto error;
+    }
+
+    // Pages that match the story file point into it, as in saveUndo().
+    undo->endMem = imageEnd;
+    undo->memoryMap = malloc (sizeof(MemoryPage*) * (imageEnd - gRamStart) / 256);
+    if (undo->memoryMap == NULL)
+        fatalError ("Couldn't allocate memory for undo");
+    gUndoSize += sizeof(MemoryPage*) * (imageEnd - gRamStart) / 256;
+
+    for (addr = gRamStart, slot = 0 ; addr < imageEnd ; addr += 256, ++slot)
+    {
+        const git_uint8 * data = image + (addr - gRamStart);
+        if (addr < gExtStart && memcmp (gInitMem + addr, data, 256) == 0)
+            undo->memoryMap [slot] = gInitMem + addr;
+        else
+        {
+            MemoryPage page = copyPage (data);
+            if (page == NULL)
+                fatalError ("Couldn't allocate memory for undo");
+            undo->memoryMap [slot] = page;
+            gUndoSize += 256;
+        }
+    }
+
+    free (image);
+    return undo;
+
+error:
+    free (image);
+    free (undo->stack);
+    free (undo->heap);
+    gUndoSize -= sizeof(UndoRecord) + undo->stackSize + undo->heapSize * 4;
+    free (undo);
+    return NULL;
+}
+
+// Brings the newest spilled record back into memory as gUndo. The
+// reference already holds its memory; otherwise it has to be rebuilt.
+// Returns 1 on success; if the file can't be read, the spilled
+// records are thrown away.
+static int unspillRecord ()
+{
+    git_uint32 n = gSpillCount - 1;
+    UndoRecord * undo;
+
+    assert (gUndo == NULL && gSpillCount > 0);
+
+    if (gSpillRef != NULL)
+    {
+        undo = gSpillRef;
+        if (readRecordHead (gSpill [n].offset, undo) == 0)
+        {
+            discardSpill ();
+            return 0;
+        }
+        gSpillRef = NULL;
+    }
+    else
+    {
+        undo = rebuildRecord (n);
+        if (undo == NULL)
+        {
+            discardSpill ();
+            return 0;
+        }
+    }
+
+    gSpillEnd = gSpill [n].offset;
+    --gSpillCount;
+
+    gUndo = undo;
+    ++gUndoCount;
+    return 1;
+}
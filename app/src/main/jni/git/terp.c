@@ -14,6 +14,14 @@
 
 git_sint32* gStackPointer;
 
+// The @glk call in progress, if any. Checkpoints are written and
+// resumed inside one; see savefile.c.
+GlkCall gGlkCall;
+
+// The stack allocated by startProgram(). It is kept here so that it
+// can be freed if the program never reaches the end of startProgram().
+static git_sint32* sStackBase = NULL;
+
 #ifdef USE_DIRECT_THREADING
 Opcode* gOpcodeTable;
 #endif
@@ -119,6 +127,7 @@ void startProgram (size_t cacheSize, enum IOMode ioMode)
     base = malloc (stackSize);
     if (base == NULL)
         fatalError ("Couldn't allocate stack");
+    sStackBase = base;
         
     top = base + (stackSize / 4);
     frame = locals = values = sp = base;
@@ -1191,14 +1200,28 @@ do_tailcall:
         NEXT;
 
     do_glk:
+        // The compiler put the address of the @glk instruction here.
+        gGlkCall.pc = READ_PC;
         // The first argument is topmost in the stack; count is in L2.
         CHECK_USED(L2);
         // We want to store the arguments in 'args' in the same order.
         for (L3 = 0 ; L3 < L2 ; ++L3)
             args [L3] = POP;
         gStackPointer = sp;
+        gGlkCall.base = base;
+        gGlkCall.frame = frame;
         S1 = git_perform_glk (L1, L2, (glui32*) args);
+        gGlkCall.frame = NULL;
         sp = gStackPointer;
+#ifdef ANDROID
+        // The player may have gone back to an earlier turn.
+        if (finishRewind (base, protectPos, protectSize))
+        {
+            sp = gStackPointer;
+            S1 = -1;
+            goto do_pop_call_stub;
+        }
+#endif // ANDROID
         NEXT;
 
     do_binarysearch:
@@ -1460,5 +1483,14 @@ do_tailcall:
 finished:
 
     free (base);
+    sStackBase = NULL;
     shutdownCompiler();
 }
+
+void shutdownTerp ()
+{
+    free (sStackBase);
+    sStackBase = NULL;
+    gStackPointer = NULL;
+    gGlkCall.frame = NULL;
+}
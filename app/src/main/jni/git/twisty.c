@@ -1,5 +1,14 @@
 #include "glk.h"
+#include "git.h"
 
+extern strid_t gStream;
+
+/*
+ * Resets git so that another game can be started in the same process.
+ * glkjni has already closed all streams (including gStream) and
+ * dropped its dispatch registry by the time this is called.
+ */
 void glk_shutdown() {
-  // Not implemented, obsoleted by reloading the library from the Twisty side
+  shutdownGit();
+  gStream = NULL;
 }
@@ -16,15 +16,119 @@
  */
 
 #include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
 #include <jni.h>
 #include "glk.h"
 #include "glkjni.h"
+#include "glkstart.h"
 #include "jcall.h"
 
 static jint gli_timer_interval;
 
+/*
+ * Checkpoints. Java names the checkpoint file with
+ * GlkFactory.setCheckpoint(), and asks for a checkpoint by sending an
+ * evtype_Checkpoint event, which glk_select() handles without
+ * returning. The interpreter's function writes its state to a stream
+ * on a temporary file, which replaces the checkpoint only once it is
+ * complete.
+ */
+static char *checkpoint_path = NULL;
+static int checkpoint_resume = FALSE;
+static int (*checkpoint_func)(strid_t str) = NULL;
+
 void event_c_shutdown(void) {
     gli_timer_interval = 0;
+    free(checkpoint_path);
+    checkpoint_path = NULL;
+    checkpoint_resume = FALSE;
+    checkpoint_func = NULL;
+}
+
+void gli_set_checkpoint(char *path, int resume)
+{
+    free(checkpoint_path);
+    checkpoint_path = path;
+    checkpoint_resume = (path && resume);
+}
+
+void glkjni_set_checkpoint_func(int (*func)(strid_t str))
+{
+    checkpoint_func = func;
+}
+
+/* Tells Java how a checkpoint was written or restored. */
+static void gli_checkpoint_notify(int restored, int ok)
+{
+#ifdef ANDROID
+    if (restored) {
+        (*jni_env)->CallVoidMethod(GLK_M(CHECKPOINTRESTORED),
+                (jboolean)(ok != 0));
+    } else {
+        (*jni_env)->CallVoidMethod(GLK_M(CHECKPOINTWRITTEN),
+                (jboolean)(ok != 0));
+    }
+    jni_check_exc();
+#endif
+}
+
+static void gli_write_checkpoint(void)
+{
+    char *temp;
+    strid_t str;
+    int ok = FALSE;
+
+    if (checkpoint_path && checkpoint_func) {
+        temp = (char *)gli_malloc(strlen(checkpoint_path) + 5);
+        strcpy(temp, checkpoint_path);
+        strcat(temp, ".tmp");
+
+        str = gli_stream_open_pathname_write(temp, 0);
+        if (str) {
+            ok = (*checkpoint_func)(str);
+            glk_stream_close(str, NULL);
+            if (ok) {
+                ok = !rename(temp, checkpoint_path);
+            } else {
+                remove(temp);
+            }
+        }
+        free(temp);
+    }
+
+    gli_checkpoint_notify(FALSE, ok);
+}
+
+/*
+ * Returns a stream on the checkpoint to resume from, the first time it
+ * is called after Java asked to resume; otherwise returns NULL. The
+ * caller closes the stream and must report the outcome with
+ * glkjni_checkpoint_restored().
+ */
+strid_t glkjni_open_checkpoint(void)
+{
+    strid_t str;
+
+    if (!checkpoint_resume) {
+        return NULL;
+    }
+    checkpoint_resume = FALSE;
+
+    str = glkunix_stream_open_pathname(checkpoint_path, FALSE, 0);
+    if (!str) {
+        gli_checkpoint_notify(TRUE, FALSE);
+    }
+    return str;
+}
+
+void glkjni_checkpoint_restored(int ok)
+{
+    /* Whatever the game printed before resuming must reach its windows
+     * before Java puts anything in them.
+     */
+    gli_windows_print();
+    gli_checkpoint_notify(TRUE, ok);
 }
 
 static int gli_process_event(event_t *event, glui32 type, glui32 id,
@@ -64,7 +168,8 @@ static void gli_select(event_t *event, int mid)
 {
     jintArray jdata;
     jint *data;
-    int evOK;
+    int evOK, checkpoint, rewind;
+    jint turn;
 
     gli_windows_print();
 
@@ -80,11 +185,31 @@ begin:
         gli_fatal("JNI error: could not access array");
     }
 
-    evOK = gli_process_event(event, data[0], data[1], data[2], data[3]);
+    checkpoint = (data[0] == evtype_Checkpoint);
+    rewind = (data[0] == evtype_Rewind);
+    turn = data[1];
+    if (checkpoint || rewind) {
+        evOK = FALSE;
+    } else {
+        evOK = gli_process_event(event, data[0], data[1], data[2],
+                data[3]);
+    }
 
     (*jni_env)->ReleaseIntArrayElements(jni_env, jdata, data, JNI_ABORT);
     DELETE_LOCAL(jdata);
 
+    if (checkpoint) {
+        gli_write_checkpoint();
+    }
+
+    /* Going back to a turn is up to the interpreter, which gets
+     * control back with an empty event.
+     */
+    if (rewind && gli_timeline_rewind((glui32)turn)) {
+        gli_event_clearevent(event);
+        evOK = TRUE;
+    }
+
     if (!evOK) {
         goto begin;
     }
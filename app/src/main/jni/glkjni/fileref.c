@@ -16,7 +16,10 @@
  */
 
 #include <stdio.h>
+#include <stdlib.h>
 #include <string.h>
+#include <unistd.h>
+#include <sys/mman.h>
 #include <jni.h>
 #include "glk.h"
 #include "glkjni.h"
@@ -335,6 +338,10 @@ int gli_fileref_get_textmode(fileref_t *fref) {
     return fref->textmode;
 }
 
+int gli_fileref_get_filetype(fileref_t *fref) {
+    return fref->filetype;
+}
+
 char *gli_fileref_get_filename(fileref_t *fref) {
     return fref->filename;
 }
@@ -376,6 +383,70 @@ void glkunix_set_base_file(char *filename)
      */
 }
 
+/*
+ * A story handed to the library as a range of an open file (such as
+ * an uncompressed resource inside the application package) rather
+ * than as a path. The range is mapped read-only, and opening the
+ * story's name gives a memory stream over the mapping, so the story
+ * is never copied to a file of its own.
+ */
+static char *story_name = NULL;
+static void *story_map = NULL;
+static size_t story_maplen = 0;
+static char *story_data = NULL;
+static glui32 story_len = 0;
+
+int gli_story_map(char *name, int fd, jlong offset, jlong length)
+{
+    long pagesize = sysconf(_SC_PAGESIZE);
+    jlong base;
+
+    gli_story_unmap();
+    if (fd < 0 || offset < 0 || length <= 0 || length > 0xFFFFFFFFLL) {
+        return FALSE;
+    }
+
+    /* mmap wants a page-aligned offset. */
+    base = offset - (offset % pagesize);
+    story_maplen = (size_t)(length + (offset - base));
+    story_map = mmap(NULL, story_maplen, PROT_READ, MAP_PRIVATE, fd,
+            (off_t)base);
+    if (story_map == MAP_FAILED) {
+        story_map = NULL;
+        story_maplen = 0;
+        return FALSE;
+    }
+
+    story_data = (char *)story_map + (offset - base);
+    story_len = (glui32)length;
+    story_name = gli_malloc(strlen(name) + 1);
+    strcpy(story_name, name);
+    return TRUE;
+}
+
+void gli_story_unmap(void)
+{
+    if (story_map) {
+        munmap(story_map, story_maplen);
+    }
+    free(story_name);
+    story_name = NULL;
+    story_map = NULL;
+    story_maplen = 0;
+    story_data = NULL;
+    story_len = 0;
+}
+
+int glkjni_get_story_image(char *pathname, char **data, glui32 *len)
+{
+    if (!story_data || !pathname || strcmp(pathname, story_name)) {
+        return FALSE;
+    }
+    *data = story_data;
+    *len = story_len;
+    return TRUE;
+}
+
 strid_t glkunix_stream_open_pathname(char *pathname, glui32 textmode,
     glui32 rock)
 {
@@ -383,6 +454,11 @@ strid_t glkunix_stream_open_pathname(char *pathname, glui32 textmode,
     fileref_t *fref;
     glui32 usage;
 
+    if (story_data && !strcmp(pathname, story_name)) {
+        return glk_stream_open_memory(story_data, story_len,
+                filemode_Read, rock);
+    }
+
     usage = textmode ? fileusage_TextMode : fileusage_BinaryMode;
     fref = gli_fileref_new(pathname, usage, 0, NULL);
     str = glk_stream_open_file(fref, filemode_Read, 0);
@@ -390,3 +466,20 @@ strid_t glkunix_stream_open_pathname(char *pathname, glui32 textmode,
 
     return str;
 }
+
+/*
+ * Opens a binary file for writing by its full path. This is for files
+ * that belong to the library rather than to the game, such as
+ * checkpoints.
+ */
+strid_t gli_stream_open_pathname_write(char *pathname, glui32 rock)
+{
+    strid_t str;
+    fileref_t *fref;
+
+    fref = gli_fileref_new(pathname, fileusage_BinaryMode, 0, NULL);
+    str = glk_stream_open_file(fref, filemode_Write, rock);
+    gli_fileref_delete(fref);
+
+    return str;
+}
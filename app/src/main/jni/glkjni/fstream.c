@@ -15,8 +15,12 @@
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+#define _POSIX_C_SOURCE 200112L
+
 #include <stdio.h>
+#include <stdlib.h>
 #include <string.h>
+#include <unistd.h>
 #include "glk.h"
 #include "glkjni.h"
 #include "stream.h"
@@ -26,6 +30,11 @@ struct fstream_data_struct {
     int textmode;
 
     FILE *file;
+
+    /* If the file is written under a temporary name, to replace
+     * filename only when it is complete. */
+    char *tempname;
+    char *filename;
 };
 
 fstream_data_t *fstream_create_data(FILE *fl, int textmode, int unicode)
@@ -36,17 +45,84 @@ fstream_data_t *fstream_create_data(FILE *fl, int textmode, int unicode)
     data->file = fl;
     data->textmode = textmode;
     data->unicode = unicode;
+    data->tempname = NULL;
+    data->filename = NULL;
 
     return data;
 }
 
-void fstream_delete(fstream_data_t *data)
+/* Makes closing the stream rename the file it writes, tempname, to
+ * filename. Takes ownership of both names. */
+void fstream_set_replace(fstream_data_t *data, char *tempname,
+        char *filename)
+{
+    data->tempname = tempname;
+    data->filename = filename;
+}
+
+/*
+ * Closes a file that was being written. If it has a temporary name,
+ * it is synced to disk and renamed over filename if everything went
+ * well, or removed if not, so that the file it replaces is never left
+ * half written. Returns FALSE on failure. Safe to call on any thread.
+ */
+int fstream_finish_file(FILE *fl, char *tempname, char *filename, int ok)
+{
+    if (fflush(fl) != 0) {
+        ok = FALSE;
+    }
+    if (tempname && ok && fsync(fileno(fl)) != 0) {
+        ok = FALSE;
+    }
+    if (fclose(fl) != 0) {
+        ok = FALSE;
+    }
+    if (tempname) {
+        if (ok) {
+            ok = !rename(tempname, filename);
+        }
+        if (!ok) {
+            remove(tempname);
+        }
+    }
+    return ok;
+}
+
+/* Hands the file, and its names if any, over to the caller. The stream
+ * is left without a file. */
+FILE *fstream_take_file(fstream_data_t *data, char **tempname,
+        char **filename)
+{
+    FILE *fl = data->file;
+
+    *tempname = data->tempname;
+    *filename = data->filename;
+    data->file = NULL;
+    data->tempname = NULL;
+    data->filename = NULL;
+
+    return fl;
+}
+
+/* Closes the file. A file being written under a temporary name only
+ * replaces the old one if complete is TRUE. */
+void fstream_delete(fstream_data_t *data, int complete)
 {
-    fclose(data->file);
+    if (data->file) {
+        if (!fstream_finish_file(data->file, data->tempname,
+                data->filename, complete) && complete) {
+            gli_strict_warning("stream_close: could not write file.");
+        }
+    }
+    free(data->tempname);
+    free(data->filename);
 }
 
 void fstream_set_pos(fstream_data_t *data, glsi32 pos, glui32 seekmode)
 {
+    if (!data->file) {
+        return;
+    }
     if (data->unicode) {
         pos *= 4;
     }
@@ -57,6 +133,9 @@ void fstream_set_pos(fstream_data_t *data, glsi32 pos, glui32 seekmode)
 
 glui32 fstream_get_pos(fstream_data_t *data)
 {
+    if (!data->file) {
+        return 0;
+    }
     if (data->unicode) {
         return ftell(data->file) / 4;
     } else {
@@ -0,0 +1,132 @@
+/* This file is a part of GlkJNI.
+ * Copyright (c) 2009 Edward McCardell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Background writes. An interpreter can hand a file stream over to a
+ * writer thread, with a function that writes the rest of the file, so
+ * that the game doesn't wait for the disk. The thread closes the file
+ * when the function returns; a saved game then replaces the old one
+ * (see gli_stream_open_file).
+ *
+ * Only one write is in progress at a time: starting another one,
+ * opening a file stream and shutting the library down all wait for it
+ * to finish. So a file is never read before it has been written, and
+ * every write is done before the game exits.
+ *
+ * The function runs on the writer thread, so it must not call Glk or
+ * anything else that isn't thread-safe.
+ */
+
+#include <pthread.h>
+#include "glk.h"
+#include "glkjni.h"
+#include "glkstart.h"
+#include "stream.h"
+
+typedef struct gli_write_struct {
+    FILE *file;
+    char *tempname;
+    char *filename;
+    int (*func)(FILE *file, void *arg);
+    void *arg;
+} gli_write_t;
+
+static pthread_mutex_t gli_write_lock = PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t gli_write_done = PTHREAD_COND_INITIALIZER;
+static int gli_write_busy = FALSE;
+
+/* A file that can't be written is reported here, since the game has
+ * moved on. The file it was to replace is left as it was. */
+static void gli_write_finish(gli_write_t *w)
+{
+    int ok;
+
+    ok = (*w->func)(w->file, w->arg);
+    ok = fstream_finish_file(w->file, w->tempname, w->filename, ok);
+    if (!ok) {
+        gli_strict_warning("could not write file in the background.");
+    }
+
+    free(w->tempname);
+    free(w->filename);
+    free(w);
+}
+
+static void *gli_writer(void *arg)
+{
+    gli_write_finish((gli_write_t *)arg);
+
+    pthread_mutex_lock(&gli_write_lock);
+    gli_write_busy = FALSE;
+    pthread_cond_broadcast(&gli_write_done);
+    pthread_mutex_unlock(&gli_write_lock);
+
+    return NULL;
+}
+
+void gli_wait_writes(void)
+{
+    pthread_mutex_lock(&gli_write_lock);
+    while (gli_write_busy) {
+        pthread_cond_wait(&gli_write_done, &gli_write_lock);
+    }
+    pthread_mutex_unlock(&gli_write_lock);
+}
+
+/*
+ * Calls func on the writer thread to write the rest of the stream's
+ * file, starting where the stream is. func returns TRUE if it wrote
+ * everything, and is responsible for arg. Afterwards the stream can
+ * only be closed.
+ *
+ * Returns FALSE, without calling func, if the stream isn't a file
+ * being written; the caller should then write it itself.
+ */
+int glkjni_stream_write_later(strid_t str,
+        int (*func)(FILE *file, void *arg), void *arg)
+{
+    gli_write_t *w;
+    pthread_t thread;
+    pthread_attr_t attr;
+    int started;
+
+    gli_wait_writes();
+
+    w = (gli_write_t *)gli_malloc(sizeof(gli_write_t));
+    w->file = gli_stream_take_file(str, &w->tempname, &w->filename);
+    if (!w->file) {
+        free(w);
+        return FALSE;
+    }
+    w->func = func;
+    w->arg = arg;
+
+    pthread_mutex_lock(&gli_write_lock);
+    gli_write_busy = TRUE;
+    pthread_mutex_unlock(&gli_write_lock);
+
+    pthread_attr_init(&attr);
+    pthread_attr_setdetachstate(&attr, PTHREAD_CREATE_DETACHED);
+    started = !pthread_create(&thread, &attr, gli_writer, w);
+    pthread_attr_destroy(&attr);
+
+    if (!started) {
+        /* Write it here and now instead. */
+        gli_writer(w);
+    }
+    return TRUE;
+}
@@ -47,6 +47,7 @@ void glkjni_c_shutdown(void)
     gli_register_arr = NULL;
     gli_unregister_arr = NULL;
     giblorb_destroy_map(blorbmap);
+    blorbmap = NULL;
 }
 
 #ifdef ANDROID
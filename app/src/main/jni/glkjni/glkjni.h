@@ -23,6 +23,7 @@
 #include <android/log.h>
 #endif
 
+#include <stdio.h>
 #include <stdlib.h>
 #include <jni.h>
 #include "glk.h"
@@ -50,6 +51,12 @@
 #define strtype_Window (2)
 #define strtype_Memory (3)
 
+/* Not a Glk event type: Java asking for a checkpoint (see event.c). */
+#define evtype_Checkpoint (0x100)
+
+/* Not a Glk event type: Java asking to go back to a turn (see timeline.c). */
+#define evtype_Rewind (0x101)
+
 #ifdef ANDROID
 #define gli_strict_warning(msg) \
     (__android_log_print(ANDROID_LOG_WARN, "glk", "Library error: %s\n", msg))
@@ -82,12 +89,21 @@ void gli_fatal(char *msg);
 void *gli_malloc(size_t size);
 
 int gli_fileref_get_textmode(frefid_t fref);
+int gli_fileref_get_filetype(frefid_t fref);
 char *gli_fileref_get_filename(frefid_t fref);
+int gli_story_map(char *name, int fd, jlong offset, jlong length);
+void gli_story_unmap(void);
+int glkjni_get_story_image(char *pathname, char **data, glui32 *len);
+strid_t gli_stream_open_pathname_write(char *pathname, glui32 rock);
+void gli_set_checkpoint(char *path, int resume);
+int gli_timeline_rewind(glui32 turn);
 
 void gli_stream_set_current(strid_t str);
 strid_t gli_stream_register(int type, int readable, int writable,
         int rock, void *data);
 void gli_stream_unregister(strid_t str);
+FILE *gli_stream_take_file(strid_t str, char **tempname, char **filename);
+void gli_wait_writes(void);
 void gli_stream_fill_result(strid_t str, stream_result_t *result);
 void gli_stream_echo_line(strid_t str, char *buf, glui32 len);
 void gli_stream_echo_line_uni(strid_t str, glui32 *buf, glui32 len);
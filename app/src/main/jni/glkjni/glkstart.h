@@ -16,6 +16,8 @@
 #ifndef GT_START_H
 #define GT_START_H
 
+#include <stdio.h>
+
 /* We define our own TRUE and FALSE and NULL, because ANSI
     is a strange world. */
 #ifndef TRUE
@@ -53,5 +55,24 @@ extern void glkunix_set_base_file(char *filename);
 extern strid_t glkunix_stream_open_pathname(char *pathname, glui32 textmode, 
     glui32 rock);
 
+/* Checkpoints, for resuming a game where it was left (see event.c).
+    The function writes the interpreter's state to the stream and
+    returns TRUE, or returns FALSE if the game can't be resumed from
+    where it is. */
+extern void glkjni_set_checkpoint_func(int (*func)(strid_t str));
+extern strid_t glkjni_open_checkpoint(void);
+extern void glkjni_checkpoint_restored(int ok);
+
+/* The turn timeline (see timeline.c). The serial function returns the
+    number the next undo state saved will get, and sets *oldest to the
+    number of the oldest state that can still be restored. The rewind
+    function undoes that many states at once, or returns FALSE. */
+extern void glkjni_set_undo_funcs(glui32 (*serial)(glui32 *oldest),
+    int (*rewind)(glui32 levels));
+
+/* Background writes of file streams (see fwriter.c). */
+extern int glkjni_stream_write_later(strid_t str,
+    int (*func)(FILE *file, void *arg), void *arg);
+
 #endif /* GT_START_H */
 
@@ -96,8 +96,16 @@ methodcache_t jni_mcache[] = {
                 "(L" GLKJNI_PKG "/BlorbResource;Z)V"),
         METHOD(GLK, SELECT, "select", "([I)V"),
         METHOD(GLK, POLL, "poll", "([I)V"),
+#ifdef ANDROID
+        METHOD(GLK, CHECKPOINTWRITTEN, "checkpointWritten", "(Z)V"),
+        METHOD(GLK, CHECKPOINTRESTORED, "checkpointRestored", "(Z)V"),
+        METHOD(GLK, TURNENTERED, "turnEntered", "(IILjava/lang/String;)V"),
+        METHOD(GLK, REWOUND, "rewound", "(IZ)V"),
+#endif
 
         METHOD(GLKWINDOW, PRINT, "print", "(Ljava/lang/String;)V"),
+        METHOD(GLKWINDOW, PRINTCMDS, "printCommands",
+                "(Ljava/nio/ByteBuffer;I)V"),
         METHOD(GLKWINDOW, STYLE, "setStyle", "(I)V"),
         METHOD(GLKWINDOW, DISTINGUISH, "distinguishStyles", "(II)Z"),
         METHOD(GLKWINDOW, MEASURESTYLE, "measureStyle", "(II)I"),
@@ -444,10 +452,11 @@ static void jni_init_methods(char *glkpackage)
 }
 
 /*
- * Calls glkunix_startup_code.
+ * Calls glkunix_startup_code. If fd is not -1, the given range of it
+ * is mapped and stands in for the story file (the last argument).
  */
-static jboolean JNICALL jni_glkstartup(JNIEnv *env, jclass class,
-        jobject gobj, jobjectArray args)
+static jboolean jni_startup(JNIEnv *env, jobject gobj, jobjectArray args,
+        jint fd, jlong offset, jlong length)
 {
     jsize jArgc;
     jsize argc = 0;
@@ -489,6 +498,17 @@ static jboolean JNICALL jni_glkstartup(JNIEnv *env, jclass class,
     }
     argv[argc] = NULL;
 
+    if (fd != -1) {
+        if (argc < 2 || !gli_story_map(argv[argc - 1], fd, offset, length)) {
+            /* Nothing has taken ownership of the arguments yet. */
+            for (i = 0; i < argc; i++) {
+                free(argv[i]);
+            }
+            free(argv);
+            goto whoops;
+        }
+    }
+
     startdata = (glkunix_startup_t *)gli_malloc(sizeof(glkunix_startup_t));
     startdata->argc = argc;
     startdata->argv = argv;
@@ -506,6 +526,19 @@ whoops:
     return FALSE;
 }
 
+static jboolean JNICALL jni_glkstartup(JNIEnv *env, jclass class,
+        jobject gobj, jobjectArray args)
+{
+    return jni_startup(env, gobj, args, -1, 0, 0);
+}
+
+static jboolean JNICALL jni_glkstartupfd(JNIEnv *env, jclass class,
+        jobject gobj, jobjectArray args, jint fd, jlong offset,
+        jlong length)
+{
+    return jni_startup(env, gobj, args, fd, offset, length);
+}
+
 /* Prototypes for the shutdown functions. */
 void gi_blorb_c_shutdown(void);
 void glkjni_c_shutdown(void);
@@ -513,6 +546,7 @@ void sound_c_shutdown(void);
 void stream_c_shutdown(void);
 void window_c_shutdown(void);
 void event_c_shutdown(void);
+void timeline_c_shutdown(void);
 void fileref_c_shutdown(void);
 
 static void JNICALL jni_glkshutdown(JNIEnv *env, jclass class)
@@ -522,34 +556,48 @@ static void JNICALL jni_glkshutdown(JNIEnv *env, jclass class)
     gi_blorb_c_shutdown();
     glkjni_c_shutdown();
     event_c_shutdown();
+    timeline_c_shutdown();
     sound_c_shutdown();
     stream_c_shutdown();
     window_c_shutdown();
     fileref_c_shutdown();
     jcall_c_shutdown();
 
-    /* TODO: this will have to switch on the program name to
-     *       call the correct function, once we have multiple
-     *       interpreters in the same library.
+    /* glkmain's glk_shutdown() dispatches to the interpreter
+     * that was started.
      */
     glk_shutdown();
+
+    /* The interpreter may have been running straight out of the
+     * mapped story, so it can only go now.
+     */
+    gli_story_unmap();
 }
 
 static void jni_register_startup(char *glkpackage)
 {
-    JNINativeMethod nm;
+    JNINativeMethod nm[2];
     char msig[256];
+    char fdsig[256];
 
     strcpy(msig, "(L");
     strcat(msig, glkpackage);
     strcat(msig, "/Glk;[Ljava/lang/String;)Z");
 
-    nm.name = "startup";
-    nm.signature = msig;
-    nm.fnPtr = jni_glkstartup;
+    strcpy(fdsig, "(L");
+    strcat(fdsig, glkpackage);
+    strcat(fdsig, "/Glk;[Ljava/lang/String;IJJ)Z");
+
+    nm[0].name = "startup";
+    nm[0].signature = msig;
+    nm[0].fnPtr = jni_glkstartup;
+
+    nm[1].name = "startup";
+    nm[1].signature = fdsig;
+    nm[1].fnPtr = jni_glkstartupfd;
 
     (*jni_env)->RegisterNatives(jni_env,
-            jni_ccache[GLKFACTORY_CLASS].class, &nm, 1);
+            jni_ccache[GLKFACTORY_CLASS].class, nm, 2);
     jni_exit_on_exc();  /* This method is required. */
 
 }
@@ -585,6 +633,31 @@ static void jni_register_main()
             jni_ccache[GLKFACTORY_CLASS].class, &nm, 1);
     jni_exit_on_exc();  /* This method is only required by Android. */
 }
+
+static void JNICALL jni_glksetcheckpoint(JNIEnv *env, jclass class,
+        jstring jpath, jboolean resume)
+{
+    jni_env = env;
+
+    if (setjmp(jump_error)) {
+        return;
+    }
+
+    gli_set_checkpoint(jpath ? jni_nativefromjstr(jpath) : NULL, resume);
+}
+
+static void jni_register_checkpoint()
+{
+    JNINativeMethod nm;
+
+    nm.name = "setCheckpoint";
+    nm.signature = "(Ljava/lang/String;Z)V";
+    nm.fnPtr = jni_glksetcheckpoint;
+
+    (*jni_env)->RegisterNatives(jni_env,
+            jni_ccache[GLKFACTORY_CLASS].class, &nm, 1);
+    jni_exit_on_exc();
+}
 #endif
 
 static void jni_register_shutdown()
@@ -615,6 +688,7 @@ static void jni_register_natives(char *glkpackage)
     jni_register_startup(glkpackage);
 #ifdef ANDROID
     jni_register_main();
+    jni_register_checkpoint();
 #endif
     jni_register_shutdown();
 }
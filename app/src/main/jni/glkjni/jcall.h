@@ -100,8 +100,15 @@ enum IMethodID {
     GLK_SOUNDHINT_METHOD,
     GLK_SELECT_METHOD,
     GLK_POLL_METHOD,
+#ifdef ANDROID
+    GLK_CHECKPOINTWRITTEN_METHOD,
+    GLK_CHECKPOINTRESTORED_METHOD,
+    GLK_TURNENTERED_METHOD,
+    GLK_REWOUND_METHOD,
+#endif
 
     GLKWINDOW_PRINT_METHOD,
+    GLKWINDOW_PRINTCMDS_METHOD,
     GLKWINDOW_STYLE_METHOD,
     GLKWINDOW_DISTINGUISH_METHOD,
     GLKWINDOW_MEASURESTYLE_METHOD,
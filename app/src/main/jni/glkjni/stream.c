@@ -43,13 +43,18 @@ void stream_c_shutdown(void)
 {
     stream_t *curr, *next;
 
+    /* Saves still being written must be finished first. */
+    gli_wait_writes();
+
     curr = gli_streamlist;
 
     while (curr) {
         next = curr->next;
 
+        /* A save the game never closed is dropped, not put in place
+         * of the file it was replacing. */
         if (curr->type == strtype_File) {
-            fstream_delete(curr->data);
+            fstream_delete(curr->data, FALSE);
         }
 
         /* This will be handled by window_c_shutdown. */
@@ -191,6 +196,7 @@ static stream_t *gli_stream_open_file(frefid_t fref, glui32 fmode,
     FILE *fl;
     fstream_data_t *data;
     int textmode;
+    char *filename, *tempname = NULL;
 
     if (!fref) {
         gli_strict_warning("stream_open_file: invalid fileref id");
@@ -218,13 +224,31 @@ static stream_t *gli_stream_open_file(frefid_t fref, glui32 fmode,
         strcat(modestr, "b");
     }
 
-    fl = fopen(gli_fileref_get_filename(fref), modestr);
+    /* The file may be one that is still being written. */
+    gli_wait_writes();
+
+    /* A saved game is written beside the old one, and replaces it when
+     * the stream is closed. */
+    filename = gli_fileref_get_filename(fref);
+    if (fmode == filemode_Write
+            && gli_fileref_get_filetype(fref) == fileusage_SavedGame) {
+        tempname = (char *)gli_malloc(strlen(filename) + 5);
+        strcpy(tempname, filename);
+        strcat(tempname, ".tmp");
+    }
+
+    fl = fopen(tempname ? tempname : filename, modestr);
     if (!fl) {
         gli_strict_warning("stream_open_file: unable to open file.");
+        free(tempname);
         return NULL;
     }
 
     data = fstream_create_data(fl, textmode, unicode);
+    if (tempname) {
+        fstream_set_replace(data, tempname,
+                strcpy((char *)gli_malloc(strlen(filename) + 1), filename));
+    }
 
     return gli_stream_register(strtype_File,
             (fmode == filemode_Read || fmode == filemode_ReadWrite),
@@ -243,11 +267,28 @@ strid_t glk_stream_open_file_uni(frefid_t fref, glui32 fmode,
     return gli_stream_open_file(fref, fmode, rock, TRUE);
 }
 
+/*
+ * Takes the file from a stream that is being written, with the names
+ * it is to be renamed from and to (both NULL if it isn't). The stream
+ * can then only be closed; it reads and writes nothing. Returns NULL
+ * if the stream isn't a writable file stream.
+ */
+FILE *gli_stream_take_file(stream_t *str, char **tempname, char **filename)
+{
+    if (!str || str->type != strtype_File || !str->writable) {
+        return NULL;
+    }
+
+    str->readable = FALSE;
+    str->writable = FALSE;
+    return fstream_take_file(str->data, tempname, filename);
+}
+
 void gli_stream_delete(stream_t *str) {
     gli_windows_unechostr(str);
 
     if (str->type == strtype_File) {
-        fstream_delete(str->data);
+        fstream_delete(str->data, TRUE);
         free(str->data);
     } else if (str->type == strtype_Memory) {
         free(str->data);
@@ -39,7 +39,12 @@ void mstream_write(mstream_data_t *data, char *buf, glui32 len);
 void mstream_write_uni(mstream_data_t *data, glui32 *buf, glui32 len);
 
 fstream_data_t *fstream_create_data(FILE *fl, int textmode, int unicode);
-void fstream_delete(fstream_data_t *data);
+void fstream_set_replace(fstream_data_t *data, char *tempname,
+        char *filename);
+int fstream_finish_file(FILE *fl, char *tempname, char *filename, int ok);
+FILE *fstream_take_file(fstream_data_t *data, char **tempname,
+        char **filename);
+void fstream_delete(fstream_data_t *data, int complete);
 void fstream_set_pos(fstream_data_t *data, glsi32 pos, glui32 seekmode);
 glui32 fstream_get_pos(fstream_data_t *data);
 glsi32 fstream_getc(fstream_data_t *data);
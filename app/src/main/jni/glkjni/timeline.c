@@ -0,0 +1,189 @@
+/* This file is a part of GlkJNI.
+ * Copyright (c) 2009 Edward McCardell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * The turn timeline. Every line the player enters is a turn, and the
+ * player can go straight back to any turn the interpreter still has
+ * the undo state for.
+ *
+ * The interpreter numbers its undo states in the order they are saved
+ * (see glkjni_set_undo_funcs). A state that is undone gives its number
+ * back, to be used by the next state saved. When a line is entered,
+ * the timeline records the number the next state will get: that is the
+ * state the game saves after reading the line, and restoring it takes
+ * the turn back. So turn n is found at turns[n - 1], and the number of
+ * states to undo is the difference between two serial numbers.
+ *
+ * Turns whose states have been undone, or which never had one, are
+ * dropped when the next line is entered. The command is not kept
+ * here; Java is sent it with the turn number and keeps the list it
+ * shows.
+ *
+ * Java asks to go back with an evtype_Rewind event, which glk_select()
+ * hands to gli_timeline_rewind(). If the interpreter agrees, the
+ * select returns an evtype_None event, so that the interpreter gets
+ * control back and carries on from the state it has restored.
+ */
+
+#include <stdlib.h>
+#include <jni.h>
+#include "glk.h"
+#include "glkjni.h"
+#include "glkstart.h"
+#include "jcall.h"
+#include "window.h"
+
+static glui32 (*undo_serial_func)(glui32 *oldest) = NULL;
+static int (*undo_rewind_func)(glui32 levels) = NULL;
+
+/* The serial number of the undo state that takes back each turn. */
+static glui32 *turns = NULL;
+static glui32 turn_count = 0;
+static glui32 turn_size = 0;
+
+void timeline_c_shutdown(void)
+{
+    free(turns);
+    turns = NULL;
+    turn_count = 0;
+    turn_size = 0;
+    undo_serial_func = NULL;
+    undo_rewind_func = NULL;
+}
+
+void glkjni_set_undo_funcs(glui32 (*serial)(glui32 *oldest),
+        int (*rewind)(glui32 levels))
+{
+    undo_serial_func = serial;
+    undo_rewind_func = rewind;
+}
+
+#ifdef ANDROID
+/*
+ * Returns the first turn whose state is no older than oldest. The
+ * serial numbers go up with the turns, so this is a binary search.
+ */
+static glui32 gli_timeline_first(glui32 oldest)
+{
+    glui32 lo = 0;
+    glui32 hi = turn_count;
+    glui32 mid;
+
+    while (lo < hi) {
+        mid = lo + (hi - lo) / 2;
+        if (turns[mid] < oldest) {
+            lo = mid + 1;
+        } else {
+            hi = mid;
+        }
+    }
+    return lo + 1;
+}
+
+/* Sends Java the command of a new turn. */
+static void gli_timeline_notify_turn(window_t *win, glui32 len,
+        glui32 first)
+{
+    textwin_data_t *text = win->text;
+    jchar *chars;
+    jstring jcommand;
+    glui32 i, ch;
+
+    chars = (jchar *)gli_malloc(len * sizeof(jchar));
+    for (i = 0; i < len; i++) {
+        if (text->inbuf_unicode) {
+            ch = ((glui32 *)text->inbuf)[i];
+        } else {
+            ch = ((unsigned char *)text->inbuf)[i];
+        }
+        chars[i] = (jchar)(ch > 0xFFFF ? UNKNOWN_CHAR : ch);
+    }
+    jcommand = (*jni_env)->NewString(jni_env, chars, len);
+    free(chars);
+    if (!jcommand) {
+        jni_no_mem();
+    }
+
+    (*jni_env)->CallVoidMethod(GLK_M(TURNENTERED), (jint)turn_count,
+            (jint)first, jcommand);
+    DELETE_LOCAL(jcommand);
+    jni_check_exc();
+}
+#endif
+
+/*
+ * Records the line of input the player has just entered in win, before
+ * its buffer is given back to the interpreter.
+ */
+void gli_timeline_line_input(window_t *win, glui32 len)
+{
+    glui32 next, oldest;
+
+    if (!undo_serial_func || !win->text || !win->text->inbuf || !len) {
+        return;
+    }
+
+    next = (*undo_serial_func)(&oldest);
+
+    while (turn_count > 0 && turns[turn_count - 1] >= next) {
+        turn_count--;
+    }
+
+    if (turn_count == turn_size) {
+        turn_size = turn_size ? turn_size * 2 : 64;
+        turns = (glui32 *)realloc(turns, turn_size * sizeof(glui32));
+        if (!turns) {
+            gli_fatal("could not allocate turn timeline");
+        }
+    }
+    turns[turn_count++] = next;
+
+#ifdef ANDROID
+    gli_timeline_notify_turn(win, len, gli_timeline_first(oldest));
+#endif
+}
+
+/*
+ * Goes back to the given turn, undoing its command and every one after
+ * it. Returns TRUE if the interpreter has restored the state, or will
+ * as soon as the select returns.
+ */
+int gli_timeline_rewind(glui32 turn)
+{
+    glui32 next, oldest, serial;
+    int ok = FALSE;
+
+    if (undo_serial_func && turn >= 1 && turn <= turn_count) {
+        serial = turns[turn - 1];
+        next = (*undo_serial_func)(&oldest);
+        if (serial >= oldest && serial < next) {
+            ok = (*undo_rewind_func)(next - serial);
+        }
+    }
+
+    if (ok) {
+        turn_count = turn - 1;
+    }
+
+#ifdef ANDROID
+    (*jni_env)->CallVoidMethod(GLK_M(REWOUND), (jint)turn,
+            (jboolean)(ok != 0));
+    jni_check_exc();
+#endif
+
+    return ok;
+}
@@ -24,6 +24,13 @@
 
 #define OUTBUFCHARS (2048)
 
+/* The commands in the output stream; see GlkOutputCommand.java. */
+#define OUTCMD_TEXT (1)
+#define OUTCMD_STYLE (2)
+#define OUTCMD_LINK (3)
+
+static void gli_window_buffer_value(window_t *win, jchar cmd, glui32 val);
+
 void gli_textwin_init(window_t *win)
 {
     textwin_data_t *text =
@@ -39,6 +46,19 @@ void gli_textwin_init(window_t *win)
 
     text->outbuf = (jchar *)gli_malloc(sizeof(jchar) * OUTBUFCHARS);
     text->outbuf_count = 0;
+    text->run_start = -1;
+
+    /*
+     * If the JVM does not support direct buffer access, fall back to
+     * passing output as strings.
+     */
+    text->cmdbuf = (*jni_env)->NewDirectByteBuffer(jni_env, text->outbuf,
+            sizeof(jchar) * OUTBUFCHARS);
+    if (text->cmdbuf) {
+        text->cmdbuf = jni_replace_with_global(text->cmdbuf);
+    } else {
+        (*jni_env)->ExceptionClear(jni_env);
+    }
 
     win->text = text;
 }
@@ -97,9 +117,41 @@ void gli_echo_line_input(window_t *win, glui32 len)
     }
 }
 
-void gli_window_clear_outbuf(textwin_data_t *text)
+static void gli_window_reset_outbuf(textwin_data_t *text)
 {
     text->outbuf_count = 0;
+    text->run_start = -1;
+}
+
+/*
+ * Discards buffered output. Style and hyperlink changes that were
+ * buffered along with the text still have to reach Java, so in command
+ * mode the current values are queued again.
+ */
+void gli_window_clear_outbuf(window_t *win)
+{
+    textwin_data_t *text = win->text;
+
+    if (!text->outbuf_count) {
+        return;
+    }
+
+    gli_window_reset_outbuf(text);
+
+    if (text->cmdbuf) {
+        gli_window_buffer_value(win, OUTCMD_STYLE, text->curr_style);
+        gli_window_buffer_value(win, OUTCMD_LINK, text->curr_linkval);
+    }
+}
+
+/* Fills in the length of the text command being built, if any. */
+static void gli_window_end_run(textwin_data_t *text)
+{
+    if (text->run_start >= 0) {
+        text->outbuf[text->run_start + 1] =
+                (jchar)(text->outbuf_count - text->run_start - 2);
+        text->run_start = -1;
+    }
 }
 
 void gli_window_print(window_t *win)
@@ -111,19 +163,49 @@ void gli_window_print(window_t *win)
         return;
     }
 
-    jstr = (*jni_env)->NewString(jni_env, text->outbuf, text->outbuf_count);
-    (*jni_env)->CallVoidMethod(WIN_M(win->jwin, PRINT), jstr);
-    DELETE_LOCAL(jstr);
-    jni_check_exc();
+    if (text->cmdbuf) {
+        gli_window_end_run(text);
+        (*jni_env)->CallVoidMethod(WIN_M(win->jwin, PRINTCMDS),
+                text->cmdbuf, (jint)text->outbuf_count);
+        jni_check_exc();
+    } else {
+        jstr = (*jni_env)->NewString(jni_env, text->outbuf,
+                text->outbuf_count);
+        (*jni_env)->CallVoidMethod(WIN_M(win->jwin, PRINT), jstr);
+        DELETE_LOCAL(jstr);
+        jni_check_exc();
+    }
 
-    gli_window_clear_outbuf(text);
+    gli_window_reset_outbuf(text);
+}
+
+/* Queues a style or hyperlink command. Only used in command mode. */
+static void gli_window_buffer_value(window_t *win, jchar cmd, glui32 val)
+{
+    textwin_data_t *text = win->text;
+
+    gli_window_end_run(text);
+    if (text->outbuf_count > OUTBUFCHARS - 3) {
+        gli_window_print(win);
+    }
+    text->outbuf[text->outbuf_count++] = cmd;
+    text->outbuf[text->outbuf_count++] = (jchar)(val & 0xFFFF);
+    text->outbuf[text->outbuf_count++] = (jchar)(val >> 16);
 }
 
 static void gli_window_buffer_char(window_t *win, glui32 ch)
 {
-    if (win->text->outbuf_count > OUTBUFCHARS - 2) {
+    textwin_data_t *text = win->text;
+
+    /* Leave room for a command header and a surrogate pair. */
+    if (text->outbuf_count > OUTBUFCHARS - 4) {
         gli_window_print(win);
     }
+    if (text->cmdbuf && text->run_start < 0) {
+        text->run_start = text->outbuf_count;
+        text->outbuf[text->outbuf_count] = OUTCMD_TEXT;
+        text->outbuf_count += 2;
+    }
     if (ch > 0xFFFF) {
         jchar surr1, surr2;
 
@@ -400,11 +482,15 @@ void gli_window_set_style(window_t *win, glui32 val)
         return;
     }
 
-    gli_window_print(win);
+    if (win->text->cmdbuf) {
+        gli_window_buffer_value(win, OUTCMD_STYLE, val);
+    } else {
+        gli_window_print(win);
 
-    (*jni_env)->CallVoidMethod(WIN_M(win->jwin, STYLE),
-            (jint)val);
-    jni_check_exc();
+        (*jni_env)->CallVoidMethod(WIN_M(win->jwin, STYLE),
+                (jint)val);
+        jni_check_exc();
+    }
 
     win->text->curr_style = val;
     if (win->echostr) {
@@ -480,11 +566,15 @@ void gli_window_set_hyperlink(window_t *win, glui32 val)
         return;
     }
 
-    gli_window_print(win);
+    if (win->text->cmdbuf) {
+        gli_window_buffer_value(win, OUTCMD_LINK, val);
+    } else {
+        gli_window_print(win);
 
-    (*jni_env)->CallVoidMethod(
-            WIN_M(win->jwin, SETLINK), (jint)val);
-    jni_check_exc();
+        (*jni_env)->CallVoidMethod(
+                WIN_M(win->jwin, SETLINK), (jint)val);
+        jni_check_exc();
+    }
 
     win->text->curr_linkval = val;
 }
@@ -38,6 +38,9 @@ static void gli_window_delete(window_t *win)
     win->key = NULL;
 
     if (win->text) {
+        if (win->text->cmdbuf) {
+            DELETE_GLOBAL(win->text->cmdbuf);
+        }
         free(win->text->outbuf);
         free(win->text);
         win->text = NULL;
@@ -152,6 +155,7 @@ int gli_process_window_event(window_t *win, glui32 type, glui32 val1)
             }
             win->text->kb_request = 0;
             gli_echo_line_input(win, val1);
+            gli_timeline_line_input(win, val1);
             gli_unregister_win_input(win);
         }
         break;
@@ -687,7 +691,7 @@ void glk_window_clear(window_t *win)
             gli_strict_warning("window_clear: window has pending line request");
             return;
         }
-        gli_window_clear_outbuf(win->text);
+        gli_window_clear_outbuf(win);
     }
 
     (*jni_env)->CallVoidMethod(WIN_M(win->jwin, CLEAR));
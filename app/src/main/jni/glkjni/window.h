@@ -66,14 +66,23 @@ struct textwin_data_struct {
     int inbuf_len;
     jchar *outbuf;
     int outbuf_count;
+    /*
+     * A direct ByteBuffer over outbuf, or NULL if the JVM could not
+     * create one. When it exists, outbuf holds a command stream (see
+     * GlkOutputCommand) instead of plain text.
+     */
+    jobject cmdbuf;
+    /* The start of the text command being filled, or -1. */
+    int run_start;
     gidispatch_rock_t inbuf_rock;
 };
 
 void gli_textwin_init(window_t *win);
 void gli_unregister_win_input(window_t *win);
 void gli_echo_line_input(window_t *win, glui32 len);
+void gli_timeline_line_input(window_t *win, glui32 len);
 void gli_window_print(window_t *win);
-void gli_window_clear_outbuf(textwin_data_t *text);
+void gli_window_clear_outbuf(window_t *win);
 int gli_text_wintype(glui32 wintype);
 
 #endif /* WINDOW_H_ */
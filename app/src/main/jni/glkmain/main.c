@@ -35,8 +35,8 @@ int glkunix_startup_code(glkunix_startup_t *data) {
   // Nitfol supports myriad flag commands, but expects
   // at least one non-flag argv that contains the name
   // of the file to open.
-  // Git expects exactly one argv that contains the name
-  // of the file to open.
+  // Git expects one argv that contains the name of the
+  // file to open, after its -undodir option if any.
   if (strcmp(data->argv[0], "nitfol") == 0) {
     terp_to_use = NITFOL;
     return glkunix_startup_code_nitfol(data);
@@ -56,11 +56,15 @@ void glk_main() {
   }
 }
 
+/*
+ * Resets the interpreter that was used, so that the next startup can
+ * pick either one again within the same process.
+ */
 void glk_shutdown() {
-  // Obsoleted by reloading the library from the Twisty side
   if (terp_to_use == GIT) {
     glk_shutdown_git();
   } else if (terp_to_use == NITFOL) {
     glk_shutdown_nitfol();
   }
+  terp_to_use = UNKNOWN;
 }
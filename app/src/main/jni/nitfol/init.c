@@ -416,4 +416,5 @@ void z_close(void)
   free_windows();
   kill_stack();
   n_free(z_memory);
+  z_memory = NULL;
 }
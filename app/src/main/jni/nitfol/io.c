@@ -1169,7 +1169,7 @@ void z_erase_line(zwinid window)
 /* Waits for input or timeout
  * Returns:
  *   0 - output during wait; may need to redraw or somesuch
- *  -1 - callback routine said to stop
+ *  -1 - callback routine said to stop, or went back to an earlier move
  *  10 - read input
  * 254 - mouse input
  * char and line events will be canceled by the time it exits
@@ -1192,6 +1192,16 @@ static int waitforinput(zwinid window, glui32 *val,
   while(window->glk_input_pending) {
     glk_select(&moo);
 
+    if(moo.type == evtype_None && read_abort) {  /* see rewind_undo */
+      if(window->pending_input_type == evtype_CharInput)
+	glk_cancel_char_event(window->win);
+      else
+	glk_cancel_line_event(window->win, NULL);
+      window->glk_input_pending = FALSE;
+      *val = 0;
+      return -1;
+    }
+
     check_sound(moo);
 
     switch(moo.type) {
@@ -1405,7 +1415,7 @@ int z_read(zwinid window, char *dest, unsigned maxlen, unsigned initlen,
       }
     }
 
-    if(done)
+    if(done && !read_abort)
       stream4line(dest, length, *terminator);
 
 #ifdef DEBUGGING
@@ -1572,11 +1582,11 @@ void nitfol_io_c_shutdown(void)
 		zwin->glk_input_pending = FALSE;
 		zwin->height = 0;
 		for (j = 0; j < 12; j++) {
-			zwin->images[i].height = 0;
-			zwin->images[i].image_num = 0;
-			zwin->images[i].width = 0;
-			zwin->images[i].x = 0;
-			zwin->images[i].y = 0;
+			zwin->images[j].height = 0;
+			zwin->images[j].image_num = 0;
+			zwin->images[j].width = 0;
+			zwin->images[j].x = 0;
+			zwin->images[j].y = 0;
 		}
 		zwin->last_height = 0;
 		zwin->max_offset = 0;
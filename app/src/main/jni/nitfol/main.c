@@ -21,6 +21,10 @@
 
 #include "gi_blorb.h"
 
+#ifdef ANDROID
+#include <glkstart.h>
+#endif
+
 
 static void set_zfile(strid_t file)
 {
@@ -116,7 +120,8 @@ void glk_main(void)
 "     -mapsize     Specify map size\n"
 "     -maploc      Specify map location\n"
 "     -terpnum     Specify interpreter number\n"
-"     -terpver     Specify interpreter version\n");
+"     -terpver     Specify interpreter version\n"
+"     -undomem     Limit undo to this many kilobytes\n");
     glk_exit();
   }
   z_init(current_zfile);
@@ -128,6 +133,12 @@ void glk_main(void)
 	mop_store_result(2);
     }
   }
+#ifdef ANDROID
+  glkjni_set_checkpoint_func(write_checkpoint);
+  glkjni_set_undo_funcs(undo_serial, rewind_undo);
+  if(!savefile)
+    resume_checkpoint();
+#endif
   init_undo();
   decode();
 }
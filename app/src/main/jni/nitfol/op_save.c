@@ -254,3 +254,117 @@ BOOL check_game_for_save(strid_t gamefile, zword release, const char serial[6],
   }
   return TRUE;
 }
+
+
+/* A checkpoint can only be taken while the game waits in one of the read
+   opcodes.  It records the PC of the read itself rather than the PC after
+   its operands, so that the resumed game simply reads again.  (Operands
+   popped off the stack are not pushed back, so a read that takes them
+   from the stack can't be resumed, and no checkpoint is written for it.) */
+static offset checkpoint_PC;
+static BOOL checkpoint_ok = FALSE;
+
+void checkpoint_begin_read(void)
+{
+  checkpoint_PC = oldPC;
+  checkpoint_ok = TRUE;
+}
+
+
+void checkpoint_end_read(void)
+{
+  checkpoint_ok = FALSE;
+}
+
+
+#ifdef ANDROID
+
+#include <glkstart.h>
+
+/* Whether the variable-form instruction at pc takes any operand from the
+   stack (variable 0).  The read opcodes are all variable-form. */
+static BOOL pops_operands(offset pc)
+{
+  unsigned optypes;
+  int i;
+
+  if((HIBYTE(pc) & 0xc0) != 0xc0)
+    return FALSE;
+
+  optypes = HIBYTE(pc+1);
+  pc += 2;
+  for(i = 0; i < 4; i++) {
+    switch(optypes & (3 << 6)) {
+    case 0 << 6:
+      pc += ZWORD_SIZE; break;
+    case 1 << 6:
+      pc++; break;
+    case 2 << 6:
+      if(HIBYTE(pc) == 0)
+	return TRUE;
+      pc++; break;
+    default:
+      return FALSE;
+    }
+    optypes <<= 2;
+  }
+  return FALSE;
+}
+
+
+int write_checkpoint(strid_t stream)
+{
+  BOOL result;
+  offset savedPC;
+
+  if(!checkpoint_ok || pops_operands(checkpoint_PC))
+    return FALSE;
+
+  savedPC = PC;
+  PC = checkpoint_PC;
+  result = savequetzal(stream);
+  PC = savedPC;
+
+  return result;
+}
+
+
+BOOL resume_checkpoint(void)
+{
+  BOOL result;
+  strid_t file;
+
+  file = glkjni_open_checkpoint();
+  if(!file)
+    return FALSE;
+
+  result = restorequetzal(file);
+
+  glk_stream_close(file, NULL);
+
+  if(result) {
+    glui32 wid, hei;
+    z_find_size(&wid, &hei);
+    set_header(wid, hei);
+  } else {
+    /* A failed restore can leave memory half overwritten */
+    z_init(current_zfile);
+  }
+
+  glkjni_checkpoint_restored(result);
+  return result;
+}
+
+
+/* Goes back the given number of moves, from inside glk_select() while the
+   game waits in a read.  The read then gives up (see waitforinput), and the
+   game carries on from the move restored, as it does after /undo */
+int rewind_undo(glui32 levels)
+{
+  if(!checkpoint_ok || !restoreundo_many(levels))
+    return FALSE;
+  read_abort = TRUE;
+  return TRUE;
+}
+
+#endif
@@ -21,5 +21,14 @@ void op_save_undo (void);
 void op_restore_undo (void);
 void op_quit (void);
 BOOL check_game_for_save (strid_t gamefile , zword release , const char serial[6] , zword checksum );
+void checkpoint_begin_read (void);
+void checkpoint_end_read (void);
+
+#ifdef ANDROID
+int write_checkpoint (strid_t stream );
+BOOL resume_checkpoint (void);
+int rewind_undo (glui32 levels );
+
+#endif
 
 #endif /* CFH_OP_SAVE_H */
@@ -132,6 +132,10 @@ static void code_terpver(const char *string)
 #line 79 "nitfol.opt"
 { if(string) { if(n_strlen(string) == 1) interp_ver = *string; else interp_ver = n_strtol(string, NULL, 10); } }
 
+static void code_undomem(int number)
+#line 82 "nitfol.opt"
+{ undo_limit = number; }
+
 #line 760 "opt2glkc.pl"
 typedef enum { option_flag, option_file, option_wfile, option_number, option_string } option_type;
 typedef struct { const char *longname; char shortname; const char *description; option_type type; void (*int_func)(int); int defint; void (*str_func)(strid_t); strid_t defstream; void (*string_func)(const char *); const char *defstring; } option_option;
@@ -160,7 +164,8 @@ static option_option options[] = {
   { "mapsize", '-', "Specify map size", option_number, code_mapsize, 12, NULL, NULL, NULL, NULL },
   { "maploc", '-', "Specify map location", option_string, NULL, 0, NULL, NULL, code_maploc, "above" },
   { "terpnum", '-', "Specify interpreter number", option_number, code_terpnum, 2, NULL, NULL, NULL, NULL },
-  { "terpver", '-', "Specify interpreter version", option_string, NULL, 0, NULL, NULL, code_terpver, "N" }
+  { "terpver", '-', "Specify interpreter version", option_string, NULL, 0, NULL, NULL, code_terpver, "N" },
+  { "undomem", '-', "Limit undo to this many kilobytes", option_number, code_undomem, 1024, NULL, NULL, NULL, NULL }
 };
 
 #line 811 "opt2glkc.pl"
@@ -16,7 +16,17 @@ void nitfol_io_c_shutdown(void);
  * assumed to have a default value) before written, I reset it here.
  */
 void glk_shutdown() {
-	// Obsoleted by reloading the library from the Twisty side
+	/* The game may have been abandoned anywhere (glk_exit() unwinds
+	 * straight out of the interpreter), so z_close() may never have
+	 * run. Its Glk calls can't be made now that glkjni has dropped
+	 * its windows, so free its memory directly.
+	 */
+	kill_undo();
+	kill_stack();
+	n_free(z_memory);
+	z_memory = NULL;
+	forget_corrections();
+
 	/* globals.c */
 	current_zfile = NULL;
 	zfile_offset = 0;
@@ -37,6 +47,7 @@ void glk_shutdown() {
 	auto_save_undo_char = FALSE;
 	faked_random_seed = 0;
 	stacklimit = 0;
+	undo_limit = 1024;
 	in_timer = FALSE;
 	exit_decoder = FALSE;
 	time_ret = 0;
@@ -64,10 +64,25 @@ help                           28  +  199  +  172  =  399
    advantage of this somehow.  (another hundred bytes to save, another 1000
    turns per meg...)
 
+   Going back one turn only takes one delta, but reaching a turn far back
+   would take one per turn in between.  So every KEYFRAME_INTERVAL turns
+   the whole of dynamic memory is kept as well, diffed against the story
+   file, which is what a quetzal save does.  The deltas work in either
+   direction, so any turn can be reached from the nearest keyframe (or the
+   current state, if that is nearer) with fewer than KEYFRAME_INTERVAL
+   deltas.  A keyframe costs a few times as much as a delta, so this adds a
+   fraction to the memory used.
+
+   The memory used is capped at undo_limit kilobytes (if not 0); the oldest
+   turns are forgotten first.
+
 */
 
+#define KEYFRAME_INTERVAL 16
 
-static zbyte *prevstate = NULL;
+static zbyte *prevstate = NULL;   /* The state of move move_index */
+static zbyte *origstate = NULL;   /* Dynamic memory as in the story file */
+static glui32 undo_memory = 0;    /* Bytes used by movelist */
 
 typedef struct move_difference move_difference;
 
@@ -83,18 +98,54 @@ struct move_difference {
 
   zbyte *stackchunk;  /* Quetzal encoded */
   glui32 stacklength;
+
+  zbyte *keyframe;    /* If not NULL, all of memory, diffed against origstate */
+  glui32 keyframelength;
+  glui32 serial;      /* Counts moves, to space out the keyframes */
 };
 
+/* Newest first.  The delta of each move is from the state of the move
+   after it (the one before it in time) */
 static move_difference *movelist = NULL;
 static int move_index;
 
 
+static glui32 move_size(move_difference *p)
+{
+  return sizeof(*p) + p->deltalength + p->stacklength + p->keyframelength;
+}
+
+static void free_move(move_difference *p)
+{
+  undo_memory -= move_size(p);
+  n_free(p->delta);
+  n_free(p->stackchunk);
+  n_free(p->keyframe);
+}
+
+static move_difference *nth_move(int n)
+{
+  move_difference *p;
+  for(p = movelist; p && n > 0; p = p->next)
+    n--;
+  return p;
+}
+
+
 void init_undo(void)
 {
   kill_undo();
 
   prevstate = (zbyte *) n_malloc(dynamic_size);
   n_memcpy(prevstate, z_memory, dynamic_size);
+
+  origstate = (zbyte *) n_malloc(dynamic_size);
+  glk_stream_set_position(current_zfile, zfile_offset, seekmode_Start);
+  if(glk_get_buffer_stream(current_zfile, (char *) origstate, dynamic_size)
+     != dynamic_size) {
+    n_free(origstate);   /* Do without keyframes */
+    origstate = NULL;
+  }
 }
 
 /* Frees old undo slots if possible in order to reduce memory consumption.
@@ -102,20 +153,65 @@ void init_undo(void)
 BOOL free_undo(void)
 {
   move_difference *p, *g = NULL;
+  int n = 1;
   for(p = movelist; p; p=p->next)
-    if(p->next)
+    if(p->next) {
       g = p;
+      n++;
+    }
   if(g == NULL)
     return FALSE;
 
-  n_free(g->next->delta);
-  n_free(g->next->stackchunk);
+  /* If we're at the state before the oldest move, step forward to the
+     state of that move, which will then be the one before the oldest */
+  if(move_index == n) {
+    quetzal_undiff(prevstate, dynamic_size, g->next->delta,
+		   g->next->deltalength, TRUE);
+    move_index--;
+  }
+
+  free_move(g->next);
   n_free(g->next);
   g->next = NULL;
   return TRUE;
 }
 
 
+/* Makes prevstate the state of move n, starting from the current state or
+   from a keyframe, whichever needs fewer deltas */
+static void seek_state(int n)
+{
+  move_difference *p, *key = NULL;
+  int i, lo, hi;
+  int from = move_index;
+  int cost = n > move_index ? n - move_index : move_index - n;
+
+  for(p = movelist, i = 0; p; p = p->next, i++) {
+    int distance = n > i ? n - i : i - n;
+    if(p->keyframe && distance + 1 < cost) {
+      key = p;
+      from = i;
+      cost = distance + 1;
+    }
+  }
+
+  if(key) {
+    n_memcpy(prevstate, origstate, dynamic_size);
+    quetzal_undiff(prevstate, dynamic_size, key->keyframe,
+		   key->keyframelength, TRUE);
+  }
+
+  /* XOR deltas can be applied in any order */
+  lo = from < n ? from : n;
+  hi = from < n ? n : from;
+  for(p = movelist, i = 0; p && i < hi; p = p->next, i++)
+    if(i >= lo)
+      quetzal_undiff(prevstate, dynamic_size, p->delta, p->deltalength, TRUE);
+
+  move_index = n;
+}
+
+
 BOOL saveundo(BOOL in_instruction)
 {
   move_difference newdiff;
@@ -133,6 +229,13 @@ BOOL saveundo(BOOL in_instruction)
      && !movelist->PC_in_instruction)
     init_undo();
 
+  /* The moves that were undone can't be redone after this.  Dropping them
+     first means free_undo() won't move prevstate from under us */
+  while(move_index > 0) {
+    free_move(movelist);
+    LEremove(movelist);
+    move_index--;
+  }
     
   if(!quetzal_diff(z_memory, prevstate, dynamic_size, &newdiff.delta,
 		   &newdiff.deltalength, TRUE))
@@ -151,6 +254,9 @@ BOOL saveundo(BOOL in_instruction)
   }
 #endif
   
+  newdiff.keyframe = NULL;
+  newdiff.keyframelength = 0;
+
   newdiff.PC = PC;
   newdiff.oldPC = oldPC;
   
@@ -178,35 +284,47 @@ BOOL saveundo(BOOL in_instruction)
     return FALSE;
   }
 
-  while(move_index-- > 0) {
-    n_free(movelist->delta);
-    n_free(movelist->stackchunk);
-    LEremove(movelist);
-  }
+  newdiff.serial = movelist ? movelist->serial + 1 : 0;
+  if(origstate && newdiff.serial % KEYFRAME_INTERVAL == 0)
+    quetzal_diff(z_memory, origstate, dynamic_size, &newdiff.keyframe,
+		 &newdiff.keyframelength, TRUE);
+
   LEadd(movelist, newdiff);
-  move_index++;
+  undo_memory += move_size(movelist);
   n_memcpy(prevstate, z_memory, dynamic_size);
 
+  if(undo_limit)
+    while(undo_memory > (glui32) undo_limit * 1024 && free_undo())
+      ;
+
   has_done_save_undo = TRUE;
   return TRUE;
 }
 
 
 BOOL restoreundo(void)
+{
+  return restoreundo_many(1);
+}
+
+
+/* Undoes the given number of moves at once.  Takes no longer than undoing
+   one, plus at most one keyframe and KEYFRAME_INTERVAL deltas */
+BOOL restoreundo_many(int levels)
 {
   strid_t stack;
-  int i;
+  int n = move_index + levels - 1;
   glui32 wid, hei;
-  move_difference *p = movelist;
+  move_difference *p;
 
-  if(!p || move_index < 0)
+  if(levels < 1 || move_index < 0)
     return FALSE;
-  
-  for(i = 0; i < move_index; i++) {
-    p=p->next;
-    if(!p)
-      return FALSE;
-  }
+
+  p = nth_move(n);
+  if(!p)
+    return FALSE;
+
+  seek_state(n);
   move_index++;
 
   n_memcpy(z_memory, prevstate, dynamic_size);
@@ -235,6 +353,25 @@ BOOL restoreundo(void)
 }
 
 
+/* Returns the serial number the next saved move will get, and puts the
+   serial of the oldest move that can still be undone in *oldest.  Undoing
+   back to the move numbered n takes (returned value - n) levels */
+glui32 undo_serial(glui32 *oldest)
+{
+  move_difference *p, *last;
+  move_difference *cur = nth_move(move_index);
+
+  if(!cur) {
+    *oldest = 0;
+    return 0;
+  }
+  for(last = p = cur; p; p = p->next)
+    last = p;
+  *oldest = last->serial;
+  return cur->serial + 1;
+}
+
+
 /* Just like restoreundo, but the opposite ;) 
    The idea is to go to the @save_undo location, but return 0 instead of 2
    so the game thinks it just successfully saved the game. For games which
@@ -242,20 +379,17 @@ BOOL restoreundo(void)
 BOOL restoreredo(void)
 {
   strid_t stack;
-  int i;
   glui32 wid, hei;
   stream_result_t poo;
-  move_difference *p = movelist;
+  move_difference *p;
 
-  if(!p || move_index <= 0)
+  if(move_index <= 0)
     return FALSE;
   
+  p = nth_move(move_index - 1);
+  if(!p)
+    return FALSE;
   move_index--;
-  for(i = 0; i < move_index; i++) {
-    p=p->next;
-    if(!p)
-      return FALSE;
-  }
 
   quetzal_undiff(prevstate, dynamic_size, p->delta, p->deltalength, TRUE);
   
@@ -365,13 +499,15 @@ void kill_undo(void)
 {
   n_free(prevstate);
   prevstate = 0;
+  n_free(origstate);
+  origstate = 0;
 
   while(movelist) {
-    n_free(movelist->delta);
-    n_free(movelist->stackchunk);
+    free_move(movelist);
     LEremove(movelist);
   }
   move_index = 0;
+  undo_memory = 0;
 
 #ifdef DEBUGGING
   n_free(automap_undoslot.z_mem);
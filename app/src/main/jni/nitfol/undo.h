@@ -12,6 +12,8 @@ void init_undo (void);
 BOOL free_undo (void);
 BOOL saveundo (BOOL in_instruction );
 BOOL restoreundo (void);
+BOOL restoreundo_many (int levels );
+glui32 undo_serial (glui32 *oldest );
 BOOL restoreredo (void);
 
 #ifdef DEBUGGING
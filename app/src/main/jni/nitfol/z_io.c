@@ -898,8 +898,10 @@ void op_sread(void)
   if(numoperands < 4)
     operand[3] = 0;
 
+  checkpoint_begin_read();
   length = n_read(text + 1, maxlen, operand[1], 0,
 		  operand[2], operand[3], &term);
+  checkpoint_end_read();
   if(!read_abort) {
     LOBYTEwrite(text + 1 + length, 0);  /* zero terminator */
 
@@ -924,8 +926,10 @@ void op_aread(void)
   if(numoperands < 4)
     operand[3] = 0;
 
+  checkpoint_begin_read();
   length = n_read(text + 2, maxlen, operand[1], initlen,
 		operand[2], operand[3], &term);
+  checkpoint_end_read();
   if(!read_abort) {
     LOBYTEwrite(text + 1, length);
     mop_store_result(term);
@@ -959,7 +963,9 @@ void op_read_char(void)
   if(numoperands < 3)
     operand[2] = 0;
 
+  checkpoint_begin_read();
   validch = z_read_char(current_window, operand[1], timer_callback, operand[2]);
+  checkpoint_end_read();
 
   if(read_abort)
     return;